@@ -0,0 +1,257 @@
+package kv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * Index of the blocks of a block compressed segment. Such a segment is only
+ * ever written whole, by compaction, see {@link BlockSegmentWriter}, as its
+ * {@link SegmentHeader}, the stored blocks one after the other, this index
+ * and a footer: index position (8), block count (4), checksum of the index
+ * and the footer before it (4) and a marker (4). Each index record holds the
+ * logical start of the block (8), its position in the file (8), its stored
+ * length (4) and its raw length (4).
+ * <p>
+ * A block holds whole entries, encoded as in any other segment. An entry is
+ * addressed by its logical offset, its offset in the blocks decompressed
+ * one after the other, and that is the offset the key directory and the hint
+ * file hold for it. Blocks that do not get smaller are stored as they are.
+ */
+public class BlockIndex {
+
+  public static final int FOOTER_SIZE = 20;
+  // "BLKI"
+  public static final int FOOTER_MARKER = 0x424C4B49;
+
+  private static final int RECORD_SIZE = 24;
+
+  private long[] logicalStarts;
+  private long[] positions;
+  private int[] storedLengths;
+  private int[] rawLengths;
+  private int count;
+
+  public BlockIndex() {
+    this(16);
+  }
+
+  private BlockIndex(int capacity) {
+    this.logicalStarts = new long[capacity];
+    this.positions = new long[capacity];
+    this.storedLengths = new int[capacity];
+    this.rawLengths = new int[capacity];
+  }
+
+  /**
+   * Adds the next block, which starts where the last one ended.
+   */
+  public void add(long position, int storedLength, int rawLength) {
+    if (count == positions.length) {
+      int capacity = count * 2;
+      logicalStarts = Arrays.copyOf(logicalStarts, capacity);
+      positions = Arrays.copyOf(positions, capacity);
+      storedLengths = Arrays.copyOf(storedLengths, capacity);
+      rawLengths = Arrays.copyOf(rawLengths, capacity);
+    }
+
+    logicalStarts[count] = getLogicalLength();
+    positions[count] = position;
+    storedLengths[count] = storedLength;
+    rawLengths[count] = rawLength;
+    count++;
+  }
+
+  public int getBlockCount() {
+    return count;
+  }
+
+  /**
+   * Length of all the blocks decompressed.
+   */
+  public long getLogicalLength() {
+    return count == 0 ? 0 : logicalStarts[count - 1] + rawLengths[count - 1];
+  }
+
+  public long getLogicalStart(int block) {
+    return logicalStarts[block];
+  }
+
+  public long getPosition(int block) {
+    return positions[block];
+  }
+
+  public int getStoredLength(int block) {
+    return storedLengths[block];
+  }
+
+  public int getRawLength(int block) {
+    return rawLengths[block];
+  }
+
+  public boolean isCompressed(int block) {
+    return storedLengths[block] < rawLengths[block];
+  }
+
+  /**
+   * The block holding the given logical offset, -1 if there is none.
+   */
+  public int find(long logicalOffset) {
+    int low = 0;
+    int high = count - 1;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+
+      if (logicalOffset < logicalStarts[middle]) {
+        high = middle - 1;
+      } else if (logicalOffset >= logicalStarts[middle] + rawLengths[middle]) {
+        low = middle + 1;
+      } else {
+        return middle;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Writes the index and the footer, for an index that starts at the given
+   * position of the file.
+   */
+  public void write(OutputStream out, long position, ChecksumType checksumType) throws IOException {
+    ByteBuffer index = ByteBuffer.allocate(count * RECORD_SIZE + FOOTER_SIZE);
+
+    for (int i = 0; i < count; i++) {
+      index.putLong(logicalStarts[i]);
+      index.putLong(positions[i]);
+      index.putInt(storedLengths[i]);
+      index.putInt(rawLengths[i]);
+    }
+
+    index.putLong(position);
+    index.putInt(count);
+
+    Checksum checksum = checksumType.create();
+    checksum.update(index.array(), 0, index.position());
+
+    index.putInt((int) checksum.getValue());
+    index.putInt(FOOTER_MARKER);
+
+    out.write(index.array());
+  }
+
+  /**
+   * Reads the index of the block compressed segment open on the channel,
+   * failing if anything about it does not add up.
+   */
+  public static BlockIndex read(FileChannel channel, SegmentHeader header) throws IOException {
+    long size = channel.size();
+
+    if (size < header.getLength() + FOOTER_SIZE) {
+      throw new IOException("Block segment is too short for its footer");
+    }
+
+    ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+    readFully(channel, footer, size - FOOTER_SIZE);
+
+    long indexPosition = footer.getLong(0);
+    int count = footer.getInt(8);
+
+    if (footer.getInt(16) != FOOTER_MARKER || count < 0
+        || indexPosition < header.getLength()
+        || indexPosition + (long) count * RECORD_SIZE != size - FOOTER_SIZE) {
+      throw new IOException("Invalid block segment footer");
+    }
+
+    ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE + FOOTER_SIZE);
+    readFully(channel, records, indexPosition);
+
+    Checksum checksum = header.getChecksum().create();
+    checksum.update(records.array(), 0, count * RECORD_SIZE + 12);
+
+    if ((int) checksum.getValue() != footer.getInt(12)) {
+      throw new LogFormatter.CrcMismatchException();
+    }
+
+    BlockIndex index = new BlockIndex(Math.max(count, 1));
+
+    for (int i = 0; i < count; i++) {
+      records.position(i * RECORD_SIZE);
+      long logicalStart = records.getLong();
+      long position = records.getLong();
+      int storedLength = records.getInt();
+      int rawLength = records.getInt();
+
+      if (logicalStart != index.getLogicalLength() || position < header.getLength()
+          || storedLength < 0 || rawLength < storedLength || position + storedLength > indexPosition) {
+        throw new IOException("Invalid block index record: " + i);
+      }
+
+      index.add(position, storedLength, rawLength);
+    }
+
+    return index;
+  }
+
+  /**
+   * Decompresses the stored bytes of a block, the remaining bytes of the
+   * buffer, into the start of the array.
+   */
+  public static void decompress(
+      ByteBuffer stored, int rawLength,
+      CompressionCodec codec, byte[] into) throws IOException {
+
+    if (stored.remaining() == rawLength) {
+      stored.duplicate().get(into, 0, rawLength);
+      return;
+    }
+
+    ArrayOutputStream out = new ArrayOutputStream(into, rawLength);
+    codec.decompress(stored, out);
+
+    if (out.length != rawLength) {
+      throw new IOException("Block decompressed to " + out.length + " bytes instead of " + rawLength);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected EOF when reading block index");
+      }
+    }
+
+    buffer.flip();
+  }
+
+  // writes into an array of a known size, failing rather than growing it
+  private static class ArrayOutputStream extends OutputStream {
+    private final byte[] array;
+    private final int limit;
+    private int length;
+
+    private ArrayOutputStream(byte[] array, int limit) {
+      this.array = array;
+      this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+      if (count > limit - length) {
+        throw new IOException("Block decompressed to more than " + limit + " bytes");
+      }
+
+      System.arraycopy(bytes, offset, array, length, count);
+      length += count;
+    }
+  }
+}
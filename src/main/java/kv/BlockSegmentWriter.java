@@ -0,0 +1,145 @@
+package kv;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Writes a block compressed segment, see {@link BlockIndex}. Entries are
+ * encoded into a block until the next one would make it larger than the
+ * block size, then the block is compressed and appended. An entry larger
+ * than a block gets a block of its own. The last block and the index are
+ * written by {@link #force()}, after which nothing more can be written.
+ */
+public class BlockSegmentWriter implements SegmentWriter {
+
+  private static final Logger log = LoggerFactory.getLogger(BlockSegmentWriter.class);
+
+  private final FileOutputStream out;
+  private final int id;
+  private final SegmentHeader header;
+  private final Compression compression;
+  private final int blockSize;
+  private final BlockIndex index = new BlockIndex();
+  private final HintFile.Writer hints = new HintFile.Writer();
+
+  // raw entries of the block being filled
+  private ByteBuffer block;
+  // where the next block goes in the file
+  private long position;
+  private boolean finished;
+
+  public BlockSegmentWriter(
+      Path path, int id, SegmentHeader header,
+      Compression compression, int blockSize) throws IOException {
+
+    File file = path.toFile();
+
+    if (!file.createNewFile()) {
+      throw new IOException("Expected new segment to not exist");
+    }
+
+    this.out = new FileOutputStream(file);
+    this.id = id;
+    this.header = header.withBlocks(compression);
+    this.compression = compression;
+    this.blockSize = blockSize;
+    this.block = ByteBuffer.allocate(blockSize);
+
+    this.header.write(out);
+    this.position = this.header.getLength();
+  }
+
+  @Override
+  public KeyDirectory.Location write(ByteSlice key, InputStream value) throws IOException {
+    if (finished) {
+      throw new IOException("Block segment is finished, cannot write");
+    }
+
+    ByteBuffer valueBuffer = value == null ? null : ByteBuffer.wrap(IOUtils.toByteArray(value));
+    int valueLength = valueBuffer == null ? 0 : valueBuffer.remaining();
+    int length = RecordCodec.encodedLength(key, valueLength);
+
+    if (block.position() > 0 && block.position() + length > blockSize) {
+      flushBlock();
+    }
+
+    if (length > block.remaining()) {
+      block = ByteBuffer.allocate(length);
+    }
+
+    long offset = index.getLogicalLength() + block.position();
+    RecordCodec.get().encode(block, key, valueBuffer, header.getVersion(), header.getChecksum());
+    hints.append(key, offset, valueLength, valueBuffer == null);
+
+    return new KeyDirectory.Location(id, offset, length);
+  }
+
+  private void flushBlock() throws IOException {
+    block.flip();
+
+    int rawLength = block.remaining();
+    byte[] compressed = compression.getCodec().compress(block);
+
+    if (compressed != null && compressed.length < rawLength) {
+      out.write(compressed);
+      index.add(position, compressed.length, rawLength);
+      position += compressed.length;
+
+    } else {
+      out.write(block.array(), block.arrayOffset() + block.position(), rawLength);
+      index.add(position, rawLength, rawLength);
+      position += rawLength;
+    }
+
+    log.trace("Wrote block {} of {} bytes", index.getBlockCount() - 1, rawLength);
+
+    block = block.capacity() > blockSize ? ByteBuffer.allocate(blockSize) : block;
+    block.clear();
+  }
+
+  /**
+   * Writes the last block and the index, unless they are already written,
+   * and forces the file to disk.
+   */
+  @Override
+  public void force() throws IOException {
+    if (!finished) {
+      if (block.position() > 0) {
+        flushBlock();
+      }
+
+      index.write(out, position, header.getChecksum());
+      finished = true;
+    }
+
+    out.getChannel().force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  @Override
+  public void writeHints(Path segmentPath) throws IOException {
+    hints.write(segmentPath);
+  }
+
+  @Override
+  public SegmentHeader getHeader() {
+    return header;
+  }
+
+  @Override
+  public Compression getCompression() {
+    return compression;
+  }
+}
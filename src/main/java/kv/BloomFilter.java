@@ -0,0 +1,142 @@
+package kv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over the keys of a sorted segment, stored with its
+ * {@link SortedIndex}, so that reads of keys the segment does not hold skip
+ * its index and file. Each key sets as many bits as the filter has hash
+ * functions, picked by double hashing a 64 bit hash of the key. Serialized
+ * as the hash function count (4), the number of longs of bits (4) and the
+ * longs.
+ */
+public class BloomFilter {
+
+  private static final int MAX_HASH_COUNT = 30;
+
+  private final long[] bits;
+  private final int hashCount;
+  private final long bitCount;
+
+  private BloomFilter(long[] bits, int hashCount) {
+    this.bits = bits;
+    this.hashCount = hashCount;
+    this.bitCount = (long) bits.length * 64;
+  }
+
+  /**
+   * A filter of the keys with the given hashes, see {@link #hash}, sized for
+   * the given bits per key. Ten bits per key give about one false positive
+   * in a hundred.
+   */
+  public static BloomFilter create(long[] keyHashes, int keyCount, int bitsPerKey) {
+    long wanted = Math.max(64, (long) keyCount * bitsPerKey);
+    int longs = (int) Math.min((wanted + 63) / 64, Integer.MAX_VALUE / 64);
+    // the count that minimizes false positives, bits per key times ln 2
+    int hashCount = (int) Math.max(1, Math.min(MAX_HASH_COUNT, Math.round(bitsPerKey * 0.69)));
+
+    BloomFilter filter = new BloomFilter(new long[longs], hashCount);
+
+    for (int i = 0; i < keyCount; i++) {
+      filter.add(keyHashes[i]);
+    }
+
+    return filter;
+  }
+
+  /**
+   * 64 bit hash of the key, FNV-1a over its bytes with the result mixed so
+   * that both halves are well distributed.
+   */
+  public static long hash(ByteSlice key) {
+    long hash = 0xcbf29ce484222325L;
+
+    for (int i = 0; i < key.length(); i++) {
+      hash ^= key.byteAt(i) & 0xff;
+      hash *= 0x100000001b3L;
+    }
+
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+
+    return hash;
+  }
+
+  private void add(long hash) {
+    long h1 = hash & 0xffffffffL;
+    long h2 = hash >>> 32;
+
+    for (int i = 0; i < hashCount; i++) {
+      long bit = (h1 + i * h2) % bitCount;
+      bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /**
+   * False if the key is certainly not in the filter.
+   */
+  public boolean mightContain(ByteSlice key) {
+    long hash = hash(key);
+    long h1 = hash & 0xffffffffL;
+    long h2 = hash >>> 32;
+
+    for (int i = 0; i < hashCount; i++) {
+      long bit = (h1 + i * h2) % bitCount;
+
+      if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public int getHashCount() {
+    return hashCount;
+  }
+
+  public long getBitCount() {
+    return bitCount;
+  }
+
+  public int serializedSize() {
+    return 8 + bits.length * 8;
+  }
+
+  public void writeTo(ByteBuffer out) {
+    out.putInt(hashCount);
+    out.putInt(bits.length);
+
+    for (long word : bits) {
+      out.putLong(word);
+    }
+  }
+
+  /**
+   * Reads a filter from the buffer's position, moving it past the filter.
+   */
+  public static BloomFilter readFrom(ByteBuffer in) throws IOException {
+    if (in.remaining() < 8) {
+      throw new IOException("Bloom filter is truncated");
+    }
+
+    int hashCount = in.getInt();
+    int longs = in.getInt();
+
+    if (hashCount < 1 || hashCount > MAX_HASH_COUNT || longs < 1 || longs > in.remaining() / 8) {
+      throw new IOException("Invalid bloom filter of " + longs + " longs and " + hashCount + " hashes");
+    }
+
+    long[] bits = new long[longs];
+
+    for (int i = 0; i < longs; i++) {
+      bits[i] = in.getLong();
+    }
+
+    return new BloomFilter(bits, hashCount);
+  }
+}
@@ -1,9 +1,14 @@
 package kv;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-public class ByteSlice {
+/**
+ * Bytes used as a key, never modified once wrapped. Slices are ordered by
+ * their bytes compared as unsigned values, a prefix of another first.
+ */
+public class ByteSlice implements Comparable<ByteSlice> {
 
   private final byte[] data;
 
@@ -24,10 +29,53 @@ public class ByteSlice {
     return Arrays.hashCode(data);
   }
 
+  @Override
+  public int compareTo(ByteSlice other) {
+    return compareTo(ByteBuffer.wrap(other.data));
+  }
+
+  /**
+   * Compares the key with the remaining bytes of the buffer, leaving its
+   * position as it was.
+   */
+  int compareTo(ByteBuffer other) {
+    int length = Math.min(data.length, other.remaining());
+    int start = other.position();
+
+    for (int i = 0; i < length; i++) {
+      int cmp = Integer.compare(data[i] & 0xff, other.get(start + i) & 0xff);
+
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+
+    return Integer.compare(data.length, other.remaining());
+  }
+
   public byte[] copyData() {
     return Arrays.copyOf(data, data.length);
   }
 
+  public int length() {
+    return data.length;
+  }
+
+  public byte byteAt(int index) {
+    return data[index];
+  }
+
+  void writeTo(ByteBuffer out) {
+    out.put(data);
+  }
+
+  /**
+   * A buffer over the bytes of the slice, which must not be written to.
+   */
+  ByteBuffer asBuffer() {
+    return ByteBuffer.wrap(data);
+  }
+
   public InputStream toStream() {
     return new InputStream() {
       int position = 0;
@@ -0,0 +1,166 @@
+package kv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * Bounded LRU of read only file channels shared by all segments of a
+ * database. Channels are opened on first use and closed when they fall out
+ * of the cache, which keeps the number of open file descriptors bounded no
+ * matter how many segments exist.
+ * <p>
+ * A reader may observe its channel being closed underneath it when the
+ * channel is evicted, in which case it should call {@link #get(String)}
+ * again to reopen it.
+ * <p>
+ * Asynchronous channels, see {@link #getAsync(String)}, share the same
+ * bound, so a file read both ways takes two of its places. They complete
+ * their reads on the executor the cache was given.
+ */
+public class ChannelCache {
+
+  private static final Logger log = LoggerFactory.getLogger(ChannelCache.class);
+
+  private final Map<Key, Channel> channels;
+  // asked for when an asynchronous channel is opened, null to complete its reads on the default thread pool
+  private final Supplier<ExecutorService> asyncExecutor;
+
+  public ChannelCache(final int capacity) {
+    this(capacity, () -> null);
+  }
+
+  public ChannelCache(final int capacity, Supplier<ExecutorService> asyncExecutor) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Channel cache capacity must be positive");
+    }
+
+    this.channels = new LinkedHashMap<Key, Channel>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Channel> eldest) {
+        if (size() <= capacity) {
+          return false;
+        }
+
+        log.trace("Evicting channel for {}", eldest.getKey());
+
+        closeQuietly(eldest.getValue());
+
+        return true;
+      }
+    };
+    this.asyncExecutor = asyncExecutor;
+  }
+
+  public synchronized FileChannel get(String filePath) throws IOException {
+    Key key = new Key(filePath, false);
+    FileChannel channel = (FileChannel) this.channels.get(key);
+
+    if (channel == null || !channel.isOpen()) {
+      log.trace("Opening channel for {}", filePath);
+
+      channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+      this.channels.put(key, channel);
+    }
+
+    return channel;
+  }
+
+  /**
+   * An asynchronous channel for the file, which may be closed underneath
+   * its reads just like the channels of {@link #get(String)}.
+   */
+  public synchronized AsynchronousFileChannel getAsync(String filePath) throws IOException {
+    Key key = new Key(filePath, true);
+    AsynchronousFileChannel channel = (AsynchronousFileChannel) this.channels.get(key);
+
+    if (channel == null || !channel.isOpen()) {
+      log.trace("Opening asynchronous channel for {}", filePath);
+
+      channel = AsynchronousFileChannel.open(
+          Paths.get(filePath), Collections.singleton(StandardOpenOption.READ), this.asyncExecutor.get());
+      this.channels.put(key, channel);
+    }
+
+    return channel;
+  }
+
+  public synchronized void evict(String filePath) {
+    for (boolean async : new boolean[]{false, true}) {
+      Channel channel = this.channels.remove(new Key(filePath, async));
+
+      if (channel != null) {
+        closeQuietly(channel);
+      }
+    }
+  }
+
+  public synchronized int size() {
+    return this.channels.size();
+  }
+
+  public void close() {
+    List<Channel> toClose;
+
+    synchronized (this) {
+      toClose = new ArrayList<>(this.channels.values());
+      this.channels.clear();
+    }
+
+    for (Channel channel : toClose) {
+      closeQuietly(channel);
+    }
+  }
+
+  private static void closeQuietly(Channel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.error("Error closing channel", e);
+    }
+  }
+
+  // a file and the kind of channel it is open with
+  private static class Key {
+    private final String filePath;
+    private final boolean async;
+
+    private Key(String filePath, boolean async) {
+      this.filePath = filePath;
+      this.async = async;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+      return filePath.equals(other.filePath) && async == other.async;
+    }
+
+    @Override
+    public int hashCode() {
+      return filePath.hashCode() * 31 + (async ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+      return async ? filePath + " (async)" : filePath;
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package kv;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Checksum algorithms entries can be protected with. The algorithm of a
+ * segment is named by its {@link SegmentHeader}, segments from before it
+ * was named use {@link #CRC32}.
+ */
+public enum ChecksumType {
+
+  CRC32(0, 0xedb88320L) {
+    @Override
+    public Checksum create() {
+      return new java.util.zip.CRC32();
+    }
+  },
+
+  /**
+   * Castagnoli crc, which recent JDKs compute with dedicated instructions.
+   * Needs a Java 9 or later runtime, it is looked up when first used since
+   * the code is built for Java 8.
+   */
+  CRC32C(1, 0x82f63b78L) {
+    @Override
+    public boolean isSupported() {
+      return Crc32c.CONSTRUCTOR != null;
+    }
+
+    @Override
+    public Checksum create() {
+      if (Crc32c.CONSTRUCTOR == null) {
+        throw new UnsupportedOperationException(unsupportedMessage());
+      }
+
+      try {
+        return Crc32c.CONSTRUCTOR.newInstance();
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Could not create CRC32C checksum", e);
+      }
+    }
+  };
+
+  // chunk fed to a checksum at a time for buffers without an array
+  private static final int UPDATE_CHUNK_SIZE = 8192;
+
+  private final int id;
+  // reversed polynomial, the one the algorithm shifts by
+  private final long polynomial;
+
+  ChecksumType(int id, long polynomial) {
+    this.id = id;
+    this.polynomial = polynomial;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Whether the running JDK provides the algorithm.
+   */
+  public boolean isSupported() {
+    return true;
+  }
+
+  String unsupportedMessage() {
+    return "Checksum algorithm " + name() + " needs a Java 9 or later runtime";
+  }
+
+  public abstract Checksum create();
+
+  public static ChecksumType fromId(int id) throws IOException {
+    for (ChecksumType type : values()) {
+      if (type.id == id) {
+        if (!type.isSupported()) {
+          throw new IOException(type.unsupportedMessage());
+        }
+
+        return type;
+      }
+    }
+
+    throw new IOException("Unknown checksum algorithm: " + id);
+  }
+
+  /**
+   * Updates the checksum with the remaining bytes of the buffer, leaving
+   * its position at its limit. Java 8 only has this method on
+   * {@link java.util.zip.CRC32} itself, other checksums are fed the bytes
+   * through an array.
+   */
+  public static void update(Checksum checksum, ByteBuffer buffer) {
+    if (checksum instanceof java.util.zip.CRC32) {
+      ((java.util.zip.CRC32) checksum).update(buffer);
+      return;
+    }
+
+    if (buffer.hasArray()) {
+      checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.position(buffer.limit());
+      return;
+    }
+
+    byte[] chunk = new byte[Math.min(buffer.remaining(), UPDATE_CHUNK_SIZE)];
+
+    while (buffer.hasRemaining()) {
+      int length = Math.min(buffer.remaining(), chunk.length);
+      buffer.get(chunk, 0, length);
+      checksum.update(chunk, 0, length);
+    }
+  }
+
+  /**
+   * The checksum of two runs of bytes written one after the other, given the
+   * checksum of each and the length of the second, as zlib's crc32_combine
+   * computes it: the first checksum is advanced over as many zero bytes as
+   * the second run holds, then the second checksum is folded in.
+   */
+  public long combine(long crc1, long crc2, long length2) {
+    if (length2 <= 0) {
+      return crc1;
+    }
+
+    long[] even = new long[32];
+    long[] odd = new long[32];
+
+    // operator for a single zero bit
+    odd[0] = polynomial;
+    long row = 1;
+
+    for (int n = 1; n < 32; n++) {
+      odd[n] = row;
+      row <<= 1;
+    }
+
+    // operators for two and then four zero bits
+    gf2MatrixSquare(even, odd);
+    gf2MatrixSquare(odd, even);
+
+    // apply one zero byte operator per set bit of the length, squaring it
+    // for each bit, the first squaring gives the operator for one byte
+    do {
+      gf2MatrixSquare(even, odd);
+
+      if ((length2 & 1) != 0) {
+        crc1 = gf2MatrixTimes(even, crc1);
+      }
+
+      length2 >>= 1;
+
+      if (length2 == 0) {
+        break;
+      }
+
+      gf2MatrixSquare(odd, even);
+
+      if ((length2 & 1) != 0) {
+        crc1 = gf2MatrixTimes(odd, crc1);
+      }
+
+      length2 >>= 1;
+    } while (length2 != 0);
+
+    return crc1 ^ crc2;
+  }
+
+  private static long gf2MatrixTimes(long[] matrix, long vector) {
+    long sum = 0;
+
+    for (int i = 0; vector != 0; i++, vector >>>= 1) {
+      if ((vector & 1) != 0) {
+        sum ^= matrix[i];
+      }
+    }
+
+    return sum;
+  }
+
+  private static void gf2MatrixSquare(long[] square, long[] matrix) {
+    for (int n = 0; n < 32; n++) {
+      square[n] = gf2MatrixTimes(matrix, matrix[n]);
+    }
+  }
+
+  // looked up once, null on a runtime without java.util.zip.CRC32C
+  private static class Crc32c {
+    private static final Constructor<? extends Checksum> CONSTRUCTOR = lookup();
+
+    private static Constructor<? extends Checksum> lookup() {
+      try {
+        return Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+      } catch (ReflectiveOperationException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package kv;
+
+import java.io.IOException;
+
+/**
+ * Appends entries committed from any number of threads, one batch at a
+ * time, see {@link GroupCommitter} and {@link WriteSequencer}.
+ */
+public interface Committer {
+
+  /**
+   * Returns once the entry has been appended with at least the given
+   * durability.
+   */
+  void commit(EncodedEntry entry, Durability durability) throws IOException;
+
+  /**
+   * Forces everything committed so far to disk.
+   */
+  void sync() throws IOException;
+}
@@ -0,0 +1,45 @@
+package kv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * How the values of a segment are compressed: the codec, and the size from
+ * which values are worth compressing with it. Smaller values, tombstones and
+ * values too large to be encoded up front are written as they are.
+ */
+public class Compression {
+
+  private final CompressionCodec codec;
+  private final int threshold;
+
+  public Compression(CompressionCodec codec, int threshold) {
+    if (codec.getId() < 1 || codec.getId() > 15) {
+      throw new IllegalArgumentException("Compression codec id must be from 1 to 15: " + codec.getId());
+    }
+
+    this.codec = codec;
+    this.threshold = threshold;
+  }
+
+  public CompressionCodec getCodec() {
+    return codec;
+  }
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * The compressed value, or null if the value is to be written as it is.
+   */
+  public ByteBuffer compress(ByteBuffer value) throws IOException {
+    if (value == null || value.remaining() < threshold) {
+      return null;
+    }
+
+    byte[] compressed = codec.compress(value);
+
+    return compressed == null ? null : ByteBuffer.wrap(compressed);
+  }
+}
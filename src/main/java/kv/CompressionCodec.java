@@ -0,0 +1,51 @@
+package kv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the values of entries. The codec of a segment is named by the
+ * id in its {@link SegmentHeader}, and entries compressed with it carry
+ * {@link LogFormatter#COMPRESSED_FLAG}. Implementations must be safe to use
+ * from many threads at once.
+ */
+public interface CompressionCodec {
+
+  /**
+   * Id stored in the header of segments compressed with this codec, from 1
+   * to 15. Id 1 is taken by {@link DeflateCodec}.
+   */
+  int getId();
+
+  /**
+   * The remaining bytes of the value compressed, or null if compressing does
+   * not make them smaller. The value's position is left as it was.
+   */
+  byte[] compress(ByteBuffer value) throws IOException;
+
+  /**
+   * Writes the value compressed into the remaining bytes of the buffer to
+   * the stream.
+   */
+  void decompress(ByteBuffer compressed, OutputStream out) throws IOException;
+
+  /**
+   * The dictionary the codec was primed with, stored in the header of the
+   * segments it compresses, null if it has none.
+   */
+  default byte[] getDictionary() {
+    return null;
+  }
+
+  /**
+   * A codec like this one, primed with the given dictionary, see
+   * {@link DictionaryTrainer}.
+   *
+   * @throws UnsupportedOperationException if the codec has no use for a
+   *                                       dictionary
+   */
+  default CompressionCodec withDictionary(byte[] dictionary) {
+    throw new UnsupportedOperationException("Codec " + getId() + " does not support dictionaries");
+  }
+}
@@ -5,16 +5,36 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -22,23 +42,162 @@ public class Database {
 
   private static final Logger log = LoggerFactory.getLogger(Database.class);
 
-  private final AtomicInteger currentSegmentId = new AtomicInteger(0);
-  private final Map<Integer, Segment> segments = Collections.synchronizedMap(new HashMap<>());
-  private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+  // the segments reads are served from, replaced whole whenever they change
+  private final AtomicReference<SegmentSet> segmentSet = new AtomicReference<>(SegmentSet.EMPTY);
+  private final KeyDirectory keyDirectory;
+  // held exclusively while the key directory and segment set are changed
+  // together, reads validate against it rather than taking it, see #read
+  private final StampedLock publishLock = new StampedLock();
+  private final boolean lockFreeReads;
   private final String dbBasePath;
   private final long initialSegmentSize;
-
-  // ~100 mb, this should never really be hit
-  private static final int MAX_READ_LIMIT = 1000 * 1000 * 100;
+  private final ChannelCache channels;
+  private final int recoveryThreads;
+  private final boolean verifyChecksumsOnRecovery;
+  private final RecoveryStats recoveryStats = new RecoveryStats();
+  private final Durability durability;
+  private final long syncIntervalMillis;
+  private final long syncIntervalBytes;
+  private final SegmentHeader format;
+  // null if new segments are not compressed
+  private final Compression compression;
+  // compression of existing segments, by codec id
+  private final Map<Integer, Compression> compressions = new HashMap<>();
+  private final int compactionBlockSize;
+  private final int compactionDictionarySize;
+  private final int compactionIndexInterval;
+  private final int bloomFilterBitsPerKey;
+  private final FilterStats filterStats = new FilterStats();
+  // null unless writes are sequenced, see DatabaseOptions#setSequencedWrites
+  private final WriteSequencer sequencer;
+  private final Committer committer;
+  // created on first use unless given in the options, see asyncExecutor()
+  private volatile ExecutorService asyncExecutor;
+  // whether the async executor is created for the database, and is shut down with it
+  private final boolean ownsAsyncExecutor;
+  private final Object asyncExecutorLock = new Object();
+  // set once stop has shut the async executor down, or made sure none is created
+  private boolean asyncExecutorStopped;
+
+  // bytes appended to the current segment since it was last forced, and
+  // whether any of them were written with periodic durability. Only the
+  // thread flushing a batch writes these, the committer orders them.
+  private long unsyncedBytes;
+  private volatile boolean periodicSyncPending;
+
+  // compaction output is written under this suffix and renamed once complete
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
+  // holds streamed values until they are appended, on the same file system as the segments
+  private static final String SPOOL_DIRECTORY_NAME = "spool";
+
+  // values sampled to train a compaction dictionary, at most, and how many
+  // times the dictionary size their bytes add up to before sampling stops
+  private static final int DICTIONARY_SAMPLES = 4096;
+  private static final int DICTIONARY_SAMPLE_RATIO = 32;
+
+  // optimistic lookups a read attempts before waiting for the writer instead
+  private static final int MAX_OPTIMISTIC_READS = 4;
+
+  // how long stop waits for async operations already submitted
+  private static final long ASYNC_SHUTDOWN_SECONDS = 30;
 
   private Semaphore canCompact = new Semaphore(0);
   private boolean shutdown;
   private Thread compactorThread;
+  private Thread syncerThread;
 
 
   public Database(String dbBasePath, long initialSegmentSize) {
+    this(dbBasePath, initialSegmentSize, new DatabaseOptions());
+  }
+
+  public Database(String dbBasePath, long initialSegmentSize, DatabaseOptions options) {
+    this(dbBasePath, initialSegmentSize, options, null);
+  }
+
+  /**
+   * Uses the shared executor for asynchronous operations, unless the options
+   * name one, without shutting it down, see {@link ShardedDatabase}.
+   */
+  Database(String dbBasePath, long initialSegmentSize, DatabaseOptions options, ExecutorService sharedExecutor) {
     this.dbBasePath = dbBasePath;
     this.initialSegmentSize = initialSegmentSize;
+    this.asyncExecutor = options.getAsyncExecutor() != null ? options.getAsyncExecutor() : sharedExecutor;
+    this.ownsAsyncExecutor = this.asyncExecutor == null;
+    this.channels = new ChannelCache(options.getMaxOpenChannels(), this::asyncExecutor);
+    this.recoveryThreads = options.getRecoveryThreads();
+    this.verifyChecksumsOnRecovery = options.isVerifyChecksumsOnRecovery();
+    this.keyDirectory = options.isOffHeapKeyDirectory()
+        ? new OffHeapKeyDirectory()
+        : new HeapKeyDirectory();
+    this.durability = options.getDurability();
+    this.syncIntervalMillis = options.getSyncIntervalMillis();
+    this.syncIntervalBytes = options.getSyncIntervalBytes();
+    this.compression = options.getCompression() == null
+        ? null
+        : new Compression(options.getCompression(), options.getCompressionThreshold());
+    this.format = SegmentHeader.current(options.getChecksum(), this.compression);
+    this.compactionBlockSize = options.getCompactionBlockSize();
+    this.compactionDictionarySize = options.getCompactionDictionarySize();
+    this.compactionIndexInterval = options.getCompactionIndexInterval();
+    this.bloomFilterBitsPerKey = options.getBloomFilterBitsPerKey();
+    this.lockFreeReads = options.isLockFreeReads();
+    this.sequencer = options.isSequencedWrites()
+        ? new WriteSequencer(this::flushBatch, options.getWriteQueueCapacity())
+        : null;
+    this.committer = this.sequencer != null ? this.sequencer : new GroupCommitter(this::flushBatch);
+
+    if (this.compactionBlockSize > 0 && this.compactionIndexInterval > 0) {
+      throw new IllegalArgumentException("Block compaction and sorted compaction cannot be combined");
+    }
+
+    this.compressions.put(DeflateCodec.ID, new Compression(new DeflateCodec(), options.getCompressionThreshold()));
+
+    if (this.compression != null) {
+      this.compressions.put(this.compression.getCodec().getId(), this.compression);
+    }
+  }
+
+  /**
+   * The executor of the asynchronous operations. A database that was not
+   * given one creates its pool here, on the first asynchronous operation,
+   * so a database that never uses them holds no pool for them.
+   */
+  private ExecutorService asyncExecutor() {
+    ExecutorService executor = this.asyncExecutor;
+
+    if (executor != null) {
+      return executor;
+    }
+
+    synchronized (this.asyncExecutorLock) {
+      if (this.asyncExecutor == null) {
+        if (this.asyncExecutorStopped) {
+          throw new RejectedExecutionException("Database is stopped");
+        }
+
+        log.trace("Creating async executor");
+
+        this.asyncExecutor = newAsyncExecutor();
+      }
+
+      return this.asyncExecutor;
+    }
+  }
+
+  /**
+   * The pool asynchronous operations run on when no executor is given, with
+   * a thread per processor.
+   */
+  static ExecutorService newAsyncExecutor() {
+    return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), Database::asyncThread);
+  }
+
+  private static Thread asyncThread(Runnable runnable) {
+    Thread thread = new Thread(runnable, "kv-async");
+    thread.setDaemon(true);
+    return thread;
   }
 
   public void start() throws IOException {
@@ -56,10 +215,19 @@ public class Database {
       recover();
     }
 
+    clearSpoolDirectory();
+
     this.makeNewSegment();
 
+    if (this.sequencer != null) {
+      this.sequencer.start();
+    }
+
     compactorThread = new Thread(new Compactor());
     compactorThread.start();
+
+    syncerThread = new Thread(new Syncer());
+    syncerThread.start();
   }
 
   public void stop() throws InterruptedException {
@@ -67,10 +235,33 @@ public class Database {
 
     this.shutdown = true;
 
-    try {
-      this.segmentLock.writeLock().lock();
+    // async operations already submitted finish before the writes they queued are flushed
+    if (this.ownsAsyncExecutor) {
+      ExecutorService executor;
+
+      synchronized (this.asyncExecutorLock) {
+        this.asyncExecutorStopped = true;
+        executor = this.asyncExecutor;
+      }
+
+      if (executor != null) {
+        executor.shutdown();
+
+        if (!executor.awaitTermination(ASYNC_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+          log.warn("Async operations still running after {}s, stopping anyway", ASYNC_SHUTDOWN_SECONDS);
+        }
+      }
+    }
+
+    // writes already queued are flushed before the segments close
+    if (this.sequencer != null) {
+      this.sequencer.stop();
+    }
+
+    long stamp = this.publishLock.writeLock();
 
-      for (Segment seg : this.segments.values()) {
+    try {
+      for (Segment seg : this.segmentSet.get().segments.values()) {
         try {
           seg.close();
         } catch (IOException e) {
@@ -79,82 +270,449 @@ public class Database {
       }
 
     } finally {
-      this.segmentLock.writeLock().unlock();
+      this.publishLock.unlockWrite(stamp);
     }
 
+    this.channels.close();
+
     log.trace("All segments closed");
 
     if (this.compactorThread != null) {
       this.compactorThread.interrupt();
       this.compactorThread.join();
     }
+
+    if (this.syncerThread != null) {
+      this.syncerThread.interrupt();
+      this.syncerThread.join();
+    }
   }
 
+  /**
+   * Reads the value of the key. The key's location and the segment holding
+   * it are looked up optimistically: a write published in the meantime, see
+   * {@link #flushBatch}, sends the lookup round again, so a read sees all of
+   * a batch or none of it without ever blocking the writer. The segment is
+   * then retained while its value is read, so compaction can retire it at
+   * any point without deleting the file under the read. A segment retired
+   * before it could be retained has left the segment set, and the read
+   * starts over.
+   */
   public boolean read(ByteSlice key, OutputStream out) throws IOException {
 
     log.debug("read({})", key);
 
-    try {
-      this.segmentLock.readLock().lock();
+    if (!this.lockFreeReads) {
+      long stamp = this.publishLock.readLock();
 
-      int segmentId = this.currentSegmentId.get();
+      // segments are only retired once the swap that removed them is published
+      try {
+        Lookup lookup = lookup(key);
+        Segment seg = lookup.segment(key);
 
-      while (segmentId > 0) {
-        log.trace("Searching segment with id: {}", segmentId);
+        return seg != null && read(key, lookup, seg, out);
 
-        Segment seg = this.segments.get(segmentId);
+      } finally {
+        this.publishLock.unlockRead(stamp);
+      }
+    }
 
-        if (seg == null || !seg.contains(key)) {
-          log.trace("Not found in segment: {}", segmentId);
+    Lookup lookup = retain(key);
 
-          if (seg != null && seg.isCompacted()) {
-            break;
-          }
+    if (lookup == null) {
+      log.trace("read({}) - not found", key);
+      return false;
+    }
 
-          segmentId--;
-          continue;
+    Segment seg = lookup.retained;
+
+    try {
+      return read(key, lookup, seg, out);
+    } finally {
+      seg.release();
+    }
+  }
+
+  /**
+   * Looks the key up and retains the segment to read it from, which the
+   * caller releases once done with it. Null if no segment can hold the key.
+   */
+  private Lookup retain(ByteSlice key) throws IOException {
+    while (true) {
+      Lookup lookup = null;
+
+      for (int attempt = 0; attempt < MAX_OPTIMISTIC_READS && lookup == null; attempt++) {
+        long stamp = this.publishLock.tryOptimisticRead();
+        Lookup candidate = stamp == 0 ? null : lookup(key);
+
+        if (candidate != null && this.publishLock.validate(stamp)) {
+          lookup = candidate;
         }
+      }
+
+      if (lookup == null) {
+        long stamp = this.publishLock.readLock();
 
-        return seg.read(key, out);
+        try {
+          lookup = lookup(key);
+        } finally {
+          this.publishLock.unlockRead(stamp);
+        }
       }
 
-      log.trace("read({}) - not found", key);
+      Segment seg = lookup.segment(key);
 
-    } finally {
-      this.segmentLock.readLock().unlock();
+      if (seg == null) {
+        return null;
+      }
+
+      if (seg.retain()) {
+        lookup.retained = seg;
+        return lookup;
+      }
+
+      log.trace("Segment {} of {} was retired, retrying", seg, key);
+    }
+  }
+
+  /**
+   * Reads the value of the key without blocking the caller on the file
+   * system. The future completes with the value, or null if the key is not
+   * found. Entries at a known location of a segment that is not yet sealed
+   * are read with an asynchronous positional read, while sealed segments,
+   * which are read from their mapping, block compressed segments and the
+   * search of a sorted segment are read on the async executor, see
+   * {@link DatabaseOptions#setAsyncExecutor}. Reads are lock free whatever
+   * {@link DatabaseOptions#setLockFreeReads} says.
+   */
+  public CompletableFuture<byte[]> readAsync(ByteSlice key) {
+    log.debug("readAsync({})", key);
+
+    Lookup lookup;
+
+    try {
+      lookup = retain(key);
+    } catch (IOException e) {
+      return failed(e);
+    }
+
+    if (lookup == null) {
+      log.trace("readAsync({}) - not found", key);
+      return CompletableFuture.completedFuture(null);
     }
 
-    return false;
+    Segment seg = lookup.retained;
+    CompletableFuture<byte[]> read;
+
+    try {
+      if (lookup.location != null && !seg.getHeader().isBlocks() && !seg.isSealed()) {
+        read = seg.readAsync(lookup.location);
+      } else {
+        read = CompletableFuture.supplyAsync(unchecked(() -> {
+          ByteArrayOutputStream out = new ByteArrayOutputStream();
+          return read(key, lookup, seg, out) ? out.toByteArray() : null;
+        }), this.asyncExecutor());
+      }
+
+    } catch (RuntimeException e) {
+      seg.release();
+      return failed(e);
+    }
+
+    return read.whenComplete((value, error) -> seg.release());
+  }
+
+  private Lookup lookup(ByteSlice key) {
+    return new Lookup(this.segmentSet.get(), this.keyDirectory.get(key));
+  }
+
+  private boolean read(ByteSlice key, Lookup lookup, Segment seg, OutputStream out) throws IOException {
+    KeyDirectory.Location location = lookup.location;
+
+    if (location == null) {
+      BloomFilter filter = seg.getFilter();
+
+      if (filter != null && !filter.mightContain(key)) {
+        log.trace("read({}) - not found, ruled out by filter", key);
+        this.filterStats.addNegative();
+        return false;
+      }
+
+      log.trace("Reading {} from sorted {}", key, seg.getId());
+      boolean found = seg.read(key, out);
+
+      // sorted segments hold no tombstones, a miss is the filter's false positive
+      if (filter != null) {
+        this.filterStats.addPositive(found);
+      }
+
+      return found;
+    }
+
+    log.trace("Reading {} from {}", key, location);
+
+    return seg.read(location, out);
   }
 
   public void write(ByteSlice key, InputStream value) throws IOException {
+    write(key, value, this.durability);
+  }
+
+  /**
+   * Writes the value with the given durability instead of the database's.
+   * Values larger than {@link EncodedEntry#STREAMING_THRESHOLD} are not held
+   * in memory, they are read from the stream into a file in the database's
+   * spool directory by the calling thread and copied from there as they are
+   * appended, so a stream that fails only fails this write.
+   */
+  public void write(ByteSlice key, InputStream value, Durability durability) throws IOException {
     log.debug("write({})", key);
 
-    withCurrentSegmentForWriting(seg -> seg.write(key, value));
+    this.committer.commit(
+        EncodedEntry.encodeStreaming(
+            key, value, format.getVersion(), format.getChecksum(), compression, spoolDirectory()), durability);
   }
 
   public void delete(ByteSlice key) throws IOException {
+    delete(key, this.durability);
+  }
+
+  /**
+   * Deletes the key with the given durability instead of the database's.
+   */
+  public void delete(ByteSlice key, Durability durability) throws IOException {
     log.debug("delete({})", key);
 
-    withCurrentSegmentForWriting(seg -> seg.delete(key));
+    this.committer.commit(
+        EncodedEntry.encode(key, null, format.getVersion(), format.getChecksum(), compression), durability);
+  }
+
+  public void writeBatch(WriteBatch batch) throws IOException {
+    writeBatch(batch, this.durability);
+  }
+
+  /**
+   * Applies every put and delete of the batch with a single append. Readers
+   * see either none of the batch or all of it, and so does recovery after a
+   * crash.
+   */
+  public void writeBatch(WriteBatch batch, Durability durability) throws IOException {
+    log.debug("writeBatch({} entries)", batch.size());
+
+    if (batch.size() == 0) {
+      return;
+    }
+
+    this.committer.commit(batch.encode(format.getVersion(), format.getChecksum(), compression), durability);
+  }
+
+  public CompletableFuture<Void> writeAsync(ByteSlice key, InputStream value) {
+    return writeAsync(key, value, this.durability);
+  }
+
+  /**
+   * Writes the value without blocking the caller. The value is read and
+   * encoded on the async executor, since reading the stream may block, and
+   * the future completes once the write has the given durability. With
+   * sequenced writes, see {@link DatabaseOptions#setSequencedWrites}, no
+   * thread waits for the append, otherwise an executor thread does.
+   */
+  public CompletableFuture<Void> writeAsync(ByteSlice key, InputStream value, Durability durability) {
+    log.debug("writeAsync({})", key);
+
+    return commitAsync(() -> EncodedEntry.encodeStreaming(
+        key, value, format.getVersion(), format.getChecksum(), compression, spoolDirectory()), durability);
+  }
+
+  public CompletableFuture<Void> deleteAsync(ByteSlice key) {
+    return deleteAsync(key, this.durability);
+  }
+
+  /**
+   * Deletes the key without blocking the caller, see
+   * {@link #writeAsync(ByteSlice, InputStream, Durability)}.
+   */
+  public CompletableFuture<Void> deleteAsync(ByteSlice key, Durability durability) {
+    log.debug("deleteAsync({})", key);
+
+    return commitAsync(() -> EncodedEntry.encode(
+        key, null, format.getVersion(), format.getChecksum(), compression), durability);
+  }
+
+  private CompletableFuture<Void> commitAsync(IOSupplier<EncodedEntry> encode, Durability durability) {
+    ExecutorService executor;
+    CompletableFuture<EncodedEntry> encoded;
+
+    try {
+      executor = this.asyncExecutor();
+      encoded = CompletableFuture.supplyAsync(unchecked(encode), executor);
+    } catch (RuntimeException e) {
+      return failed(e);
+    }
+
+    if (this.sequencer != null) {
+      return encoded.thenCompose(unchecked(entry -> this.sequencer.submit(entry, durability)));
+    }
+
+    AtomicBoolean committing = new AtomicBoolean();
+
+    CompletableFuture<Void> committed = encoded.thenAcceptAsync(entry -> {
+      committing.set(true);
+
+      try {
+        this.committer.commit(entry, durability);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    }, executor);
+
+    // an executor that rejects the commit leaves the entry, and any value it spooled, to be closed here
+    return committed.whenComplete((ignored, error) -> {
+      if (error != null && !committing.get() && !encoded.isCompletedExceptionally()) {
+        closeQuietly(encoded.join());
+      }
+    });
+  }
+
+  private static <T> CompletableFuture<T> failed(Throwable error) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(error);
+    return future;
+  }
+
+  // IOExceptions complete the future with the exception itself as its cause
+  private static <T> Supplier<T> unchecked(IOSupplier<T> supplier) {
+    return () -> {
+      try {
+        return supplier.get();
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    };
+  }
+
+  private static <T, R> Function<T, R> unchecked(IOFunction<T, R> function) {
+    return value -> {
+      try {
+        return function.apply(value);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    };
+  }
+
+  private interface IOSupplier<T> {
+    T get() throws IOException;
+  }
+
+  private interface IOFunction<T, R> {
+    R apply(T value) throws IOException;
   }
 
   public void compact() {
     this.canCompact.release();
   }
 
-  private void withCurrentSegmentForWriting(SegmentConsumerWithIOException r) throws IOException {
+  public RecoveryStats getRecoveryStats() {
+    return this.recoveryStats;
+  }
+
+  /**
+   * How the bloom filter of the sorted segment has done for reads since
+   * start, see {@link DatabaseOptions#setBloomFilterBitsPerKey(int)}.
+   */
+  public FilterStats getFilterStats() {
+    return this.filterStats;
+  }
+
+  /**
+   * Appends a batch from the committer to the current segment and
+   * forces it to disk if the batch's durability asks for it. Only one batch
+   * is flushed at a time, so nothing else appends to the segment, and it can
+   * only be sealed by the capacity check that follows. The publish lock is
+   * only taken to publish the new locations, readers are not held up while
+   * the batch, possibly holding a streamed value, is written out. A segment
+   * holding unsynced periodic writes is forced before it is sealed, since
+   * the background sync only ever syncs the current segment.
+   */
+  private void flushBatch(List<EncodedEntry> entries, Durability durability) throws IOException {
+    Segment seg = this.currentSegment();
+    List<KeyDirectory.Location> locations;
+
     try {
-      this.segmentLock.writeLock().lock();
-      Segment seg = this.currentSegment();
-      r.accept(seg);
-      this.checkSegment();
+      locations = seg.write(entries);
+    } finally {
+      for (EncodedEntry entry : entries) {
+        closeQuietly(entry);
+      }
+    }
+
+    long stamp = this.publishLock.writeLock();
+
+    try {
+      boolean keepTombstones = keepsTombstones();
+      int index = 0;
+
+      for (EncodedEntry entry : entries) {
+        for (EncodedEntry record : entry.getRecords()) {
+          if (record.isTombstone() && !keepTombstones) {
+            this.keyDirectory.remove(record.getKey());
+          } else {
+            this.keyDirectory.put(record.getKey(), locations.get(index));
+          }
+
+          index++;
+        }
+      }
 
     } finally {
-      this.segmentLock.writeLock().unlock();
+      this.publishLock.unlockWrite(stamp);
+    }
+
+    for (KeyDirectory.Location location : locations) {
+      this.unsyncedBytes += location.getLength();
+    }
+
+    boolean atCapacity = seg.isAtCapacity();
+
+    if (durability == Durability.PERIODIC) {
+      this.periodicSyncPending = true;
+    }
+
+    if (durability == Durability.SYNC || (this.periodicSyncPending
+        && (atCapacity || this.unsyncedBytes >= this.syncIntervalBytes))) {
+
+      log.trace("Forcing {} unsynced bytes of {}", this.unsyncedBytes, seg);
+
+      seg.force();
+      this.unsyncedBytes = 0;
+      this.periodicSyncPending = false;
+    }
+
+    if (atCapacity) {
+      this.unsyncedBytes = 0;
+      this.checkSegment();
+    }
+  }
+
+  static void closeQuietly(EncodedEntry entry) {
+    try {
+      entry.close();
+    } catch (IOException e) {
+      log.warn("Could not delete spooled value of {}", entry.getKey(), e);
     }
   }
 
+  /**
+   * Whether deleted keys point at their tombstone rather than being removed
+   * from the key directory, which they must while a sorted segment that may
+   * hold them exists or may be written by a running compaction. The caller
+   * holds the publish lock.
+   */
+  private boolean keepsTombstones() {
+    return this.compactionIndexInterval > 0 || this.segmentSet.get().sorted != null;
+  }
+
   private void initialSetup() throws IOException {
 
     File file = new File(this.dbBasePath);
@@ -165,6 +723,30 @@ public class Database {
 
   }
 
+  private Path spoolDirectory() {
+    return Paths.get(this.dbBasePath, SPOOL_DIRECTORY_NAME);
+  }
+
+  /**
+   * Creates the spool directory, or empties it of the values a previous run
+   * stopped before appending.
+   */
+  private void clearSpoolDirectory() throws IOException {
+    Path spool = spoolDirectory();
+
+    if (!Files.exists(spool)) {
+      Files.createDirectory(spool);
+      return;
+    }
+
+    List<Path> leftovers = Files.list(spool).collect(Collectors.toList());
+
+    for (Path path : leftovers) {
+      log.debug("Deleting spooled value of a previous run: {}", path);
+      Files.delete(path);
+    }
+  }
+
   private List<Path> listSegments() throws IOException {
     return Files.list(Paths.get(this.dbBasePath))
         .filter(Database::isSegmentFileName)
@@ -173,19 +755,116 @@ public class Database {
   }
 
   private void recover() throws IOException {
-    List<Path> paths = listSegments();
+    List<Path> paths = discardSupersededSegments(listSegments());
 
     log.trace("Paths to recover: {}", paths);
 
-    for (Path path : paths) {
-      Segment seg = recoverPath(path);
-      this.currentSegmentId.set(Math.max(seg.getId(), this.currentSegmentId.get()));
-      this.segments.put(seg.getId(), seg);
+    // segments are read concurrently, but applied to the key directory
+    // strictly in id order so that the latest write still wins. The window
+    // bounds how many recovered segments wait in memory to be applied.
+    ExecutorService pool = Executors.newFixedThreadPool(this.recoveryThreads);
+    Deque<Future<RecoveredSegment>> window = new ArrayDeque<>();
+    int next = 0;
+
+    try {
+      while (next < paths.size() || !window.isEmpty()) {
+        while (next < paths.size() && window.size() < this.recoveryThreads * 2) {
+          Path path = paths.get(next++);
+          // only the segment that was being appended to can have a torn tail
+          boolean active = next == paths.size() && !isCompacted(path);
+          window.add(pool.submit(() -> recoverPath(path, active)));
+        }
+
+        RecoveredSegment recovered = awaitRecovery(window.poll());
+
+        Segment seg = recovered.segment;
+        this.segmentSet.updateAndGet(set -> set.withRecovered(seg));
+
+        recovered.applyTo(this.keyDirectory, keepsTombstones());
+
+        if (recovered.scanner == null) {
+          this.recoveryStats.addHintedSegment();
+        } else {
+          this.recoveryStats.addScannedSegment(recovered.scanner);
+        }
+      }
+
+    } finally {
+      for (Future<RecoveredSegment> pending : window) {
+        pending.cancel(true);
+      }
+
+      pool.shutdown();
+    }
+
+    if (this.recoveryStats.getSkippedBytes() > 0 || this.recoveryStats.getTruncatedBytes() > 0) {
+      log.warn("Recovered with data loss, {}", this.recoveryStats);
+    } else {
+      log.debug("Recovered {}", this.recoveryStats);
     }
 
     this.compact();
   }
 
+  /**
+   * A compacted segment replaces every segment with an id up to and including
+   * its own, but a crash between the compacted file appearing and the old
+   * files being deleted can leave both behind. Deletes the leftovers, along
+   * with any partially written compaction output and hints whose segment no
+   * longer exists.
+   */
+  private List<Path> discardSupersededSegments(List<Path> paths) throws IOException {
+    Path latestCompacted = null;
+
+    for (Path path : paths) {
+      if (isCompacted(path) && (latestCompacted == null
+          || extractSegmentId(path) > extractSegmentId(latestCompacted)
+          || (extractSegmentId(path) == extractSegmentId(latestCompacted)
+          && extractCompactionTimestamp(path) > extractCompactionTimestamp(latestCompacted)))) {
+
+        latestCompacted = path;
+      }
+    }
+
+    List<Path> live = new ArrayList<>();
+
+    for (Path path : paths) {
+      if (latestCompacted != null && !path.equals(latestCompacted)
+          && extractSegmentId(path) <= extractSegmentId(latestCompacted)) {
+
+        log.debug("Deleting segment superseded by {}: {}", latestCompacted, path);
+        Files.delete(path);
+        Files.deleteIfExists(HintFile.pathFor(path));
+        continue;
+      }
+
+      live.add(path);
+    }
+
+    List<Path> partial = Files.list(Paths.get(this.dbBasePath))
+        .filter(path -> path.getFileName().toString().endsWith(TEMPORARY_SUFFIX))
+        .collect(Collectors.toList());
+
+    for (Path path : partial) {
+      log.debug("Deleting partial compaction output: {}", path);
+      Files.delete(path);
+    }
+
+    Set<Path> liveHints = live.stream().map(HintFile::pathFor).collect(Collectors.toSet());
+
+    List<Path> orphanedHints = Files.list(Paths.get(this.dbBasePath))
+        .filter(HintFile::isHintFileName)
+        .filter(path -> !liveHints.contains(path))
+        .collect(Collectors.toList());
+
+    for (Path path : orphanedHints) {
+      log.debug("Deleting hint without a segment: {}", path);
+      Files.delete(path);
+    }
+
+    return live;
+  }
+
   private static boolean isSegmentFileName(Path path) {
     return Pattern.matches("(seg|compact)(\\d+)?-\\d+\\.bin", path.getFileName().toString());
   }
@@ -201,54 +880,95 @@ public class Database {
     return Integer.parseInt(fileName.substring(slashIndex + 1, dotIndex));
   }
 
+  private static long extractCompactionTimestamp(Path path) {
+    String fileName = path.getFileName().toString();
+    int slashIndex = fileName.indexOf('-');
+    String timestamp = fileName.substring("compact".length(), slashIndex);
+    return timestamp.isEmpty() ? 0 : Long.parseLong(timestamp);
+  }
+
   private static boolean isCompacted(Path path) {
     return path.getFileName().toFile().toString().contains("compact");
   }
 
-  private Segment recoverPath(Path path) throws IOException {
-    log.trace("Recovering path: {}", path);
+  private static RecoveredSegment awaitRecovery(Future<RecoveredSegment> future) throws IOException {
+    try {
+      return future.get();
 
-    String pathAsString = path.toString();
-    int segmentId = extractSegmentId(path);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while recovering segments");
 
-    Segment seg = new Segment(pathAsString, null, segmentId, isCompacted(path), 0);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
 
-    File file = path.toFile();
+      throw new IOException("Segment recovery failed", e.getCause());
+    }
+  }
+
+  private RecoveredSegment recoverPath(Path path, boolean active) throws IOException {
+    log.trace("Recovering path: {}", path);
 
-    try (FileInputStream in = new FileInputStream(file)) {
-      BufferedInputStream buffered = new BufferedInputStream(in);
+    int segmentId = extractSegmentId(path);
+    RecoveredSegment recovered = new RecoveredSegment(segmentId);
+    SegmentHeader header = SegmentHeader.read(path);
 
-      long currentOffset = 0;
+    if (header.isSorted()) {
+      Segment segment = new Segment(
+          path.toString(), null, segmentId, isCompacted(path), 0, channels, header, compressionOf(header));
+      segment.seal();
 
-      while (true) {
-        buffered.mark(MAX_READ_LIMIT);
+      // its keys stay in the segment, unless its index is lost and they have to be scanned
+      if (segment.isSorted()) {
+        log.trace("Recovered {} from its sorted index", path);
 
-        try {
-          log.trace("Reading entry from offset: {}", currentOffset);
+        recovered.segment = segment;
+        return recovered;
+      }
+    }
 
-          LogEntry entry = LogFormatter.readLogEntry(buffered);
-          seg.put(new ByteSlice(entry.getKey()), currentOffset);
-          currentOffset += entry.size();
+    if (HintFile.read(HintFile.pathFor(path), Files.size(path), recovered::add)) {
+      log.trace("Recovered {} from its hint file", path);
 
-        } catch (IOException e) {
-          log.trace("Got exception while trying to recover entry, advancing one byte and trying again", e);
+    } else {
+      HintFile.Writer hints = new HintFile.Writer();
 
-          buffered.reset();
+      try (SegmentScanner scanner = new SegmentScanner(path, this.verifyChecksumsOnRecovery, active)) {
+        Compression compression = compressionOf(scanner.getHeader());
 
-          int byteRead = buffered.read();
-          currentOffset++;
+        scanner.scan((key, offset, length, tombstone) -> {
+          recovered.add(key, offset, length, tombstone);
+          hints.append(key, offset, length - LogEntry.STATIC_HEADER_SIZE - key.length(), tombstone);
+        }, compression == null ? null : compression.getCodec());
 
-          if (byteRead < 0) {
-            break;
-          }
-        }
+        header = scanner.getHeader();
+        recovered.scanner = scanner;
       }
+
+      hints.write(path);
     }
 
-    return seg;
+    recovered.segment = new Segment(
+        path.toString(), null, segmentId, isCompacted(path), 0, channels, header, compressionOf(header));
+    recovered.segment.seal();
+
+    return recovered;
   }
 
   private Segment createOpenSegmentFromPath(Path path) throws IOException {
+    return createOpenSegmentFromPath(path, extractSegmentId(path), isCompacted(path));
+  }
+
+  private Segment createOpenSegmentFromPath(Path path, int id, boolean compacted) throws IOException {
+    return createOpenSegmentFromPath(path, id, compacted, format, compression);
+  }
+
+  private Segment createOpenSegmentFromPath(
+      Path path, int id, boolean compacted,
+      SegmentHeader header, Compression compression) throws IOException {
+
     String pathAsString = path.toString();
     log.trace("Creating new segment at path: {}", pathAsString);
 
@@ -258,59 +978,146 @@ public class Database {
       throw new IOException("Expected new segment to not exist");
     }
 
-    FileOutputStream fileOutputStream = new FileOutputStream(file, true);
+    // not opened for appending, large entries are streamed to the file and
+    // their header written last, at a position behind the end of the file
+    FileOutputStream fileOutputStream = new FileOutputStream(file);
+    header.write(fileOutputStream);
 
     return new Segment(pathAsString, fileOutputStream,
-        extractSegmentId(path), isCompacted(path), initialSegmentSize);
+        id, compacted, initialSegmentSize, channels, header, compression);
   }
 
-  private void makeNewSegment() throws IOException {
-    try {
-      segmentLock.writeLock().lock();
+  // blocks are compressed with the configured codec, deflate if there is none
+  private Compression blockCompression() {
+    return compression != null ? compression : compressions.get(DeflateCodec.ID);
+  }
+
+  /**
+   * Compression of the output of a compaction, primed with a dictionary
+   * trained on the values being compacted if dictionaries are enabled.
+   */
+  private Compression compactionCompression(Map<ByteSlice, KeyDirectory.Location> toRewrite) throws IOException {
+    Compression base = compactionBlockSize > 0 ? blockCompression() : compression;
 
-      int id = this.currentSegmentId.incrementAndGet();
-      Path path = Paths.get(this.dbBasePath, String.format("seg-%d.bin", id));
-      Segment segment = createOpenSegmentFromPath(path);
+    if (compactionDictionarySize == 0) {
+      return base;
+    }
 
-      this.segments.put(id, segment);
+    byte[] dictionary = DictionaryTrainer.train(sampleValues(toRewrite), compactionDictionarySize);
 
-    } finally {
-      segmentLock.writeLock().unlock();
+    if (dictionary == null) {
+      log.debug("Compacting without a dictionary, the sampled values share too little");
+      return base;
     }
-  }
 
-  private void checkSegment() throws IOException {
+    CompressionCodec codec = (base == null ? compressions.get(DeflateCodec.ID) : base).getCodec();
+
     try {
-      segmentLock.writeLock().lock();
+      // every value is worth compressing against a dictionary, however small
+      return new Compression(codec.withDictionary(dictionary), 0);
+
+    } catch (UnsupportedOperationException e) {
+      log.warn("Compacting without a dictionary: {}", e.getMessage());
+      return base;
+    }
+  }
 
-      Segment segment = currentSegment();
+  // values whose entries are no larger than the dictionary, spread evenly over the keys
+  private List<byte[]> sampleValues(Map<ByteSlice, KeyDirectory.Location> toRewrite) throws IOException {
+    List<byte[]> samples = new ArrayList<>();
+    int stride = Math.max(1, toRewrite.size() / DICTIONARY_SAMPLES);
+    long sampledBytes = 0;
+    int index = 0;
 
-      if (segment.isAtCapacity()) {
-        log.trace("Current segment is at capacity, new segment will be created");
-        segment.close();
-        this.makeNewSegment();
-        this.compact();
+    for (KeyDirectory.Location location : toRewrite.values()) {
+      if (index++ % stride != 0 || location.getLength() > compactionDictionarySize) {
+        continue;
       }
 
-    } finally {
-      segmentLock.writeLock().unlock();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+      if (segment(location.getSegmentId()).read(location, out)) {
+        samples.add(out.toByteArray());
+        sampledBytes += out.size();
+      }
+
+      if (sampledBytes >= (long) compactionDictionarySize * DICTIONARY_SAMPLE_RATIO) {
+        break;
+      }
     }
+
+    return samples;
   }
 
-  private Segment currentSegment() {
-    try {
-      segmentLock.readLock().lock();
+  private Compression compressionOf(SegmentHeader header) throws IOException {
+    if (header.getCompression() == 0) {
+      return null;
+    }
 
-      return this.segments.get(currentSegmentId.get());
+    Compression compression = compressions.get(header.getCompression());
 
-    } finally {
-      segmentLock.readLock().unlock();
+    if (compression == null) {
+      throw new IOException("Unknown compression codec: " + header.getCompression());
     }
+
+    if (header.getDictionary() != null) {
+      return new Compression(compression.getCodec().withDictionary(header.getDictionary()), 0);
+    }
+
+    return compression;
+  }
+
+  // only ever called by the thread flushing batches, or before it starts
+  private void makeNewSegment() throws IOException {
+    int id = this.segmentSet.get().lastId() + 1;
+    Path path = Paths.get(this.dbBasePath, String.format("seg-%d.bin", id));
+    Segment segment = createOpenSegmentFromPath(path);
+
+    this.segmentSet.updateAndGet(set -> set.withCurrent(segment));
+  }
+
+  private void checkSegment() throws IOException {
+    Segment segment = currentSegment();
+
+    if (segment.isAtCapacity()) {
+      log.trace("Current segment is at capacity, new segment will be created");
+      segment.seal();
+      this.makeNewSegment();
+      this.compact();
+    }
+  }
+
+  private Segment currentSegment() {
+    return this.segmentSet.get().current;
+  }
+
+  private Segment segment(int id) {
+    return this.segmentSet.get().segments.get(id);
   }
 
   @Override
   public String toString() {
-    return this.segments.toString();
+    List<String> entries = new ArrayList<>();
+
+    for (ByteSlice key : this.keyDirectory.keys()) {
+      entries.add(entryToString(key));
+    }
+
+    return entries.toString();
+  }
+
+  private String entryToString(ByteSlice key) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      boolean found = this.read(key, out);
+
+      return String.format("%s => %s",
+          new String(key.copyData(), StandardCharsets.UTF_8),
+          found ? new String(out.toByteArray(), StandardCharsets.UTF_8) : "<tombstone>");
+
+    } catch (IOException e) {
+      return "IOException";
+    }
   }
 
   private class Compactor implements Runnable {
@@ -332,80 +1139,363 @@ public class Database {
     }
 
     private void doCompaction() throws IOException {
-      Map<ByteSlice, Segment> mostRecentSegment = new HashMap<>();
-      int maxSegmentId = 0;
-
-      List<Path> segmentPaths = listSegments();
-
-      segmentPaths = segmentPaths.subList(0, segmentPaths.size() - 1);
+      // only this thread removes segments, so those in the snapshot that are
+      // older than the current segment stay until the swap below
+      SegmentSet snapshot = segmentSet.get();
+      List<Segment> originals = new ArrayList<>();
+      int maxSegmentId = snapshot.current.getId() - 1;
+      Segment previousSorted = snapshot.sorted;
+
+      for (Segment segment : snapshot.segments.values()) {
+        if (segment.getId() <= maxSegmentId) {
+          originals.add(segment);
+        }
+      }
 
-      if (segmentPaths.size() <= 1) {
-        log.debug("Not compacting, segments eligible for compaction are: {}", segmentPaths);
+      if (originals.size() <= 1) {
+        log.debug("Not compacting, segments eligible for compaction are: {}", originals);
         return;
       }
 
-      log.debug("Beginning compaction of: {}", segmentPaths);
+      log.debug("Beginning compaction of: {}", originals);
 
-      for (Path segmentPath : segmentPaths) {
-        Segment segment = recoverPath(segmentPath);
-        maxSegmentId = Math.max(maxSegmentId, segment.getId());
+      // writes only ever land in the active segment, so the locations of
+      // keys in older segments cannot change until the swap below
+      Map<ByteSlice, KeyDirectory.Location> toRewrite = new HashMap<>();
 
-        for (ByteSlice key : segment.keys()) {
-          mostRecentSegment.put(key, segment);
+      keyDirectory.forEach((key, location) -> {
+        if (location.getSegmentId() <= maxSegmentId) {
+          toRewrite.put(key, location);
         }
-      }
+      });
 
       long timestamp = System.currentTimeMillis();
-      Path path = Paths.get(dbBasePath, String.format("compact%d-%d.bin", timestamp, maxSegmentId));
-      Segment segment = createOpenSegmentFromPath(path);
-
-      for (Map.Entry<ByteSlice, Segment> entry : mostRecentSegment.entrySet()) {
-        ByteSlice key = entry.getKey();
-        Segment original = entry.getValue();
+      String fileName = String.format("compact%d-%d.bin", timestamp, maxSegmentId);
+      Path temporaryPath = Paths.get(dbBasePath, fileName + TEMPORARY_SUFFIX);
+      Path path = Paths.get(dbBasePath, fileName);
+      Compression compacted = compactionCompression(toRewrite);
+      SegmentWriter temporary;
+
+      if (compactionBlockSize > 0) {
+        temporary = new BlockSegmentWriter(temporaryPath, maxSegmentId, format, compacted, compactionBlockSize);
+      } else if (compactionIndexInterval > 0) {
+        temporary = new SortedSegmentWriter(
+            temporaryPath, maxSegmentId, format.withCompression(compacted), compacted,
+            compactionIndexInterval, bloomFilterBitsPerKey);
+      } else {
+        temporary = createOpenSegmentFromPath(
+            temporaryPath, maxSegmentId, true, format.withCompression(compacted), compacted);
+      }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        boolean found = original.read(key, out);
+      boolean sortedOutput = temporary.getHeader().isSorted();
 
-        if (found) {
-          ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
-          segment.write(key, in);
+      // new locations of keys that stay in the key directory, keyed by
+      // whether they came from it or from the previous sorted segment, and
+      // the keys that leave it, deleted or moved into a new sorted segment
+      Map<ByteSlice, KeyDirectory.Location> rewritten = new HashMap<>();
+      Map<ByteSlice, KeyDirectory.Location> carried = new HashMap<>();
+      List<ByteSlice> dropped = new ArrayList<>();
 
+      try {
+        if (sortedOutput) {
+          merge(new TreeMap<>(toRewrite), previousSorted, temporary, dropped);
         } else {
-          segment.delete(key);
+          rewrite(toRewrite, previousSorted, temporary, rewritten, carried, dropped);
         }
+
+        // the originals are deleted once the compacted segment replaces
+        // them, and may hold writes that were synced on their own
+        temporary.force();
+
+      } finally {
+        temporary.close();
+      }
+
+      Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE);
+      temporary.writeHints(path);
+
+      Segment segment = new Segment(
+          path.toString(), null, maxSegmentId, true, 0, channels, temporary.getHeader(), temporary.getCompression());
+      segment.seal();
+
+      // the keys leaving the key directory could not be found otherwise
+      if (sortedOutput && !segment.isSorted()) {
+        segment.deleteFile();
+        throw new IOException("Index of sorted compaction output does not read back: " + path);
       }
 
-      segment.close();
+      long stamp = publishLock.writeLock();
 
       try {
-        segmentLock.writeLock().lock();
-        segments.put(segment.getId(), segment);
+        segmentSet.updateAndGet(set -> set.withCompacted(originals, segment));
+
+        for (Map.Entry<ByteSlice, KeyDirectory.Location> entry : rewritten.entrySet()) {
+          keyDirectory.replace(entry.getKey(), toRewrite.get(entry.getKey()), entry.getValue());
+        }
+
+        // anything newer in the key directory, tombstones included, masks the carried entry
+        for (Map.Entry<ByteSlice, KeyDirectory.Location> entry : carried.entrySet()) {
+          if (!keyDirectory.contains(entry.getKey())) {
+            keyDirectory.put(entry.getKey(), entry.getValue());
+          }
+        }
+
+        for (ByteSlice key : dropped) {
+          keyDirectory.remove(key, toRewrite.get(key));
+        }
+
       } finally {
-        segmentLock.writeLock().unlock();
+        publishLock.unlockWrite(stamp);
+      }
+
+      // readers still holding an original keep its file until they are done
+      for (Segment original : originals) {
+        original.retire();
+      }
+
+      log.debug("Compaction of {} done", originals);
+    }
+
+    /**
+     * Rewrites the live entries of the key directory in no particular order,
+     * along with the entries of the previous sorted segment that nothing in
+     * the key directory masks.
+     */
+    private void rewrite(
+        Map<ByteSlice, KeyDirectory.Location> toRewrite, Segment previousSorted, SegmentWriter temporary,
+        Map<ByteSlice, KeyDirectory.Location> rewritten, Map<ByteSlice, KeyDirectory.Location> carried,
+        List<ByteSlice> dropped) throws IOException {
+
+      for (Map.Entry<ByteSlice, KeyDirectory.Location> entry : toRewrite.entrySet()) {
+        KeyDirectory.Location location = copy(entry.getKey(), entry.getValue(), temporary);
+
+        if (location == null) {
+          dropped.add(entry.getKey());
+        } else {
+          rewritten.put(entry.getKey(), location);
+        }
+      }
+
+      if (previousSorted == null) {
+        return;
+      }
+
+      Segment.Cursor cursor = previousSorted.cursor();
+
+      while (cursor.next()) {
+        if (!keyDirectory.contains(cursor.key())) {
+          KeyDirectory.Location location = copy(cursor.key(), cursor.location(), temporary);
+
+          if (location != null) {
+            carried.put(cursor.key(), location);
+          }
+        }
+      }
+    }
+
+    /**
+     * Merges the live entries of the key directory, in key order, with the
+     * entries of the previous sorted segment, which are already in key
+     * order, into a sorted segment. Every key taken from the key directory
+     * leaves it, the new segment holds it or it was deleted.
+     */
+    private void merge(
+        TreeMap<ByteSlice, KeyDirectory.Location> toRewrite, Segment previousSorted,
+        SegmentWriter temporary, List<ByteSlice> dropped) throws IOException {
+
+      Iterator<Map.Entry<ByteSlice, KeyDirectory.Location>> pending = toRewrite.entrySet().iterator();
+      Map.Entry<ByteSlice, KeyDirectory.Location> next = pending.hasNext() ? pending.next() : null;
+      Segment.Cursor cursor = previousSorted == null ? null : previousSorted.cursor();
+      boolean more = cursor != null && cursor.next();
+
+      while (next != null || more) {
+        int cmp = next == null ? 1 : !more ? -1 : next.getKey().compareTo(cursor.key());
+
+        if (cmp <= 0) {
+          copy(next.getKey(), next.getValue(), temporary);
+          dropped.add(next.getKey());
+          next = pending.hasNext() ? pending.next() : null;
+
+          // the key directory's entry is newer than the previous sorted segment's
+          if (cmp == 0) {
+            more = cursor.next();
+          }
+
+        } else {
+          // keys written since are left out, the key directory masks them anyway
+          if (!keyDirectory.contains(cursor.key())) {
+            copy(cursor.key(), cursor.location(), temporary);
+          }
+
+          more = cursor.next();
+        }
       }
+    }
 
-      int toRemove = segment.getId() - 1;
+    /**
+     * Copies the entry at the location into the compaction output, returning
+     * where it was written, or null if it is a tombstone.
+     */
+    private KeyDirectory.Location copy(
+        ByteSlice key, KeyDirectory.Location location, SegmentWriter temporary) throws IOException {
 
-      while (toRemove > 0) {
-        Segment original = segments.get(toRemove);
-        segments.remove(toRemove);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-        if (original != null) {
-          original.deleteFile();
+      if (!segment(location.getSegmentId()).read(location, out)) {
+        return null;
+      }
+
+      return temporary.write(key, new ByteArrayInputStream(out.toByteArray()));
+    }
+  }
+
+  /**
+   * Forces periodic writes to disk once the sync interval has passed, when
+   * the byte interval has not already caused a sync.
+   */
+  private class Syncer implements Runnable {
+    @Override
+    public void run() {
+      while (!shutdown) {
+        try {
+          Thread.sleep(syncIntervalMillis);
+
+          if (periodicSyncPending) {
+            committer.sync();
+          }
+
+        } catch (InterruptedException e) {
+          log.trace("Syncer interrupted", e);
+
+        } catch (IOException e) {
+          if (!shutdown) {
+            log.error("Error in periodic sync", e);
+          }
         }
+      }
+    }
+  }
+
+  /**
+   * Entries read back from one segment, held until every older segment has
+   * been applied to the key directory.
+   */
+  private static class RecoveredSegment {
+    private final int segmentId;
+    private final List<ByteSlice> keys = new ArrayList<>();
+    private final List<KeyDirectory.Location> locations = new ArrayList<>();
+    private final BitSet tombstones = new BitSet();
+
+    private Segment segment;
+    // null when the segment was recovered from its hint file
+    private SegmentScanner scanner;
+
+    private RecoveredSegment(int segmentId) {
+      this.segmentId = segmentId;
+    }
+
+    private void add(ByteSlice key, long offset, int length, boolean tombstone) {
+      this.tombstones.set(this.keys.size(), tombstone);
+      this.keys.add(key);
+      this.locations.add(new KeyDirectory.Location(segmentId, offset, length));
+    }
 
-        toRemove--;
+    private void applyTo(KeyDirectory keyDirectory, boolean keepTombstones) {
+      for (int i = 0; i < keys.size(); i++) {
+        if (tombstones.get(i) && !keepTombstones) {
+          keyDirectory.remove(keys.get(i));
+        } else {
+          keyDirectory.put(keys.get(i), locations.get(i));
+        }
       }
+    }
+  }
+
+  /**
+   * The segments of the database at one point in time: every segment by
+   * id, the sorted segment, if any, and the segment being appended to. Never
+   * changed once published, a change publishes a new set.
+   */
+  private static class SegmentSet {
+    private static final SegmentSet EMPTY = new SegmentSet(Collections.emptyMap(), null, null);
+
+    private final Map<Integer, Segment> segments;
+    // the sorted compacted segment, whose keys are looked up in the segment
+    // itself rather than the key directory, null if there is none
+    private final Segment sorted;
+    // null until recovery is done and the first segment is created
+    private final Segment current;
+
+    private SegmentSet(Map<Integer, Segment> segments, Segment sorted, Segment current) {
+      this.segments = segments;
+      this.sorted = sorted;
+      this.current = current;
+    }
+
+    private int lastId() {
+      return segments.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+    }
+
+    private SegmentSet withRecovered(Segment segment) {
+      Map<Integer, Segment> segments = new HashMap<>(this.segments);
+      segments.put(segment.getId(), segment);
+
+      return new SegmentSet(
+          Collections.unmodifiableMap(segments), segment.isSorted() ? segment : sorted, current);
+    }
+
+    private SegmentSet withCurrent(Segment segment) {
+      Map<Integer, Segment> segments = new HashMap<>(this.segments);
+      segments.put(segment.getId(), segment);
 
-      for (Path segmentPath : segmentPaths) {
-        segmentPath.toFile().delete();
+      return new SegmentSet(Collections.unmodifiableMap(segments), sorted, segment);
+    }
+
+    private SegmentSet withCompacted(List<Segment> originals, Segment compacted) {
+      Map<Integer, Segment> segments = new HashMap<>(this.segments);
+
+      for (Segment original : originals) {
+        segments.remove(original.getId());
       }
 
-      log.debug("Compaction of {} done", segmentPaths);
+      segments.put(compacted.getId(), compacted);
+
+      return new SegmentSet(
+          Collections.unmodifiableMap(segments), compacted.isSorted() ? compacted : null, current);
     }
   }
 
-  private static interface SegmentConsumerWithIOException {
-    void accept(Segment segment) throws IOException;
+  /**
+   * Where a read found its key, along with the segments it found it in.
+   */
+  private static class Lookup {
+    private final SegmentSet snapshot;
+    // null if the key is not in the key directory
+    private final KeyDirectory.Location location;
+    // the segment the key is read from once it is retained, see #retain
+    private Segment retained;
+
+    private Lookup(SegmentSet snapshot, KeyDirectory.Location location) {
+      this.snapshot = snapshot;
+      this.location = location;
+    }
+
+    /**
+     * The segment to read the key from, the sorted segment if the key
+     * directory does not hold it, or null if no segment can.
+     */
+    private Segment segment(ByteSlice key) throws IOException {
+      if (location == null) {
+        return snapshot.sorted;
+      }
+
+      Segment seg = snapshot.segments.get(location.getSegmentId());
+
+      if (seg == null) {
+        throw new IOException("Segment " + location.getSegmentId() + " of " + key + " does not exist");
+      }
+
+      return seg;
+    }
   }
 }
@@ -0,0 +1,324 @@
+package kv;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Tuning knobs for a {@link Database}. Every option has a default, so
+ * {@code new DatabaseOptions()} gives the same behavior as the two argument
+ * {@link Database} constructor.
+ */
+public class DatabaseOptions {
+
+  private int maxOpenChannels = 256;
+  private boolean offHeapKeyDirectory = false;
+  private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+  private boolean verifyChecksumsOnRecovery = true;
+  private Durability durability = Durability.NONE;
+  private long syncIntervalMillis = 1000;
+  private long syncIntervalBytes = 1024 * 1024;
+  private ChecksumType checksum = ChecksumType.CRC32;
+  private CompressionCodec compression;
+  private int compressionThreshold = 256;
+  private int compactionBlockSize;
+  private int compactionDictionarySize;
+  private int compactionIndexInterval;
+  private int bloomFilterBitsPerKey = 10;
+  private boolean lockFreeReads = true;
+  private boolean sequencedWrites;
+  private int writeQueueCapacity = 4096;
+  private ExecutorService asyncExecutor;
+
+  public int getMaxOpenChannels() {
+    return maxOpenChannels;
+  }
+
+  /**
+   * Upper bound on the number of segment files kept open for reading at
+   * once, by both plain and asynchronous reads. Sealed segments are read
+   * through memory mappings and do not count towards this limit unless they
+   * are too large to map.
+   */
+  public DatabaseOptions setMaxOpenChannels(int maxOpenChannels) {
+    this.maxOpenChannels = maxOpenChannels;
+    return this;
+  }
+
+  public boolean isOffHeapKeyDirectory() {
+    return offHeapKeyDirectory;
+  }
+
+  /**
+   * Keeps the key directory in direct memory instead of on the heap, see
+   * {@link OffHeapKeyDirectory}. Worth enabling once the number of keys is
+   * large enough for the index to dominate the heap.
+   */
+  public DatabaseOptions setOffHeapKeyDirectory(boolean offHeapKeyDirectory) {
+    this.offHeapKeyDirectory = offHeapKeyDirectory;
+    return this;
+  }
+
+  public int getRecoveryThreads() {
+    return recoveryThreads;
+  }
+
+  /**
+   * Number of segments read concurrently on startup. Results are still
+   * applied in segment order, so this only changes how fast recovery runs.
+   */
+  public DatabaseOptions setRecoveryThreads(int recoveryThreads) {
+    if (recoveryThreads < 1) {
+      throw new IllegalArgumentException("Recovery needs at least one thread");
+    }
+
+    this.recoveryThreads = recoveryThreads;
+    return this;
+  }
+
+  public boolean isVerifyChecksumsOnRecovery() {
+    return verifyChecksumsOnRecovery;
+  }
+
+  /**
+   * Whether recovery without a hint file checks the crc of every entry it
+   * scans. Turning this off lets recovery skip over values entirely, entries
+   * are still checked when they are read.
+   */
+  public DatabaseOptions setVerifyChecksumsOnRecovery(boolean verifyChecksumsOnRecovery) {
+    this.verifyChecksumsOnRecovery = verifyChecksumsOnRecovery;
+    return this;
+  }
+
+  public Durability getDurability() {
+    return durability;
+  }
+
+  /**
+   * Durability of writes and deletes that do not ask for one of their own.
+   * Concurrent writes are appended as one batch and share a single sync of
+   * the segment file, see {@link GroupCommitter}.
+   */
+  public DatabaseOptions setDurability(Durability durability) {
+    this.durability = durability;
+    return this;
+  }
+
+  public long getSyncIntervalMillis() {
+    return syncIntervalMillis;
+  }
+
+  /**
+   * Longest time a {@link Durability#PERIODIC} write stays unsynced.
+   */
+  public DatabaseOptions setSyncIntervalMillis(long syncIntervalMillis) {
+    if (syncIntervalMillis < 1) {
+      throw new IllegalArgumentException("Sync interval must be at least one millisecond");
+    }
+
+    this.syncIntervalMillis = syncIntervalMillis;
+    return this;
+  }
+
+  public long getSyncIntervalBytes() {
+    return syncIntervalBytes;
+  }
+
+  /**
+   * Number of bytes appended after a {@link Durability#PERIODIC} write at
+   * which the segment is synced without waiting for the interval to pass.
+   */
+  public DatabaseOptions setSyncIntervalBytes(long syncIntervalBytes) {
+    this.syncIntervalBytes = syncIntervalBytes;
+    return this;
+  }
+
+  public ChecksumType getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * Checksum protecting the entries of new segments. Existing segments keep
+   * the checksum they were written with, so it can be changed between runs.
+   * Fails if the running JDK does not provide the algorithm.
+   */
+  public DatabaseOptions setChecksum(ChecksumType checksum) {
+    if (!checksum.isSupported()) {
+      throw new IllegalArgumentException(checksum.unsupportedMessage());
+    }
+
+    this.checksum = checksum;
+    return this;
+  }
+
+  public CompressionCodec getCompression() {
+    return compression;
+  }
+
+  /**
+   * Codec compressing the values of new segments, such as a
+   * {@link DeflateCodec}, or null to write values as they are. Segments
+   * compressed with a codec other than {@link DeflateCodec} can only be read
+   * while the same codec is configured.
+   */
+  public DatabaseOptions setCompression(CompressionCodec compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  public int getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  /**
+   * Size in bytes from which values are compressed, smaller values gain
+   * too little to pay for decompressing them on every read.
+   */
+  public DatabaseOptions setCompressionThreshold(int compressionThreshold) {
+    this.compressionThreshold = compressionThreshold;
+    return this;
+  }
+
+  public int getCompactionBlockSize() {
+    return compactionBlockSize;
+  }
+
+  /**
+   * Size of the blocks compaction packs entries into before compressing
+   * them, see {@link BlockSegmentWriter}, or zero to write compacted
+   * segments like any other. Blocks are compressed with the configured
+   * compression codec, or with a {@link DeflateCodec} if there is none.
+   */
+  public DatabaseOptions setCompactionBlockSize(int compactionBlockSize) {
+    if (compactionBlockSize < 0) {
+      throw new IllegalArgumentException("Compaction block size cannot be negative");
+    }
+
+    this.compactionBlockSize = compactionBlockSize;
+    return this;
+  }
+
+  public int getCompactionDictionarySize() {
+    return compactionDictionarySize;
+  }
+
+  /**
+   * Size of the dictionary compaction trains on a sample of the values it
+   * rewrites, for values too small to compress well on their own, or zero
+   * to compact without one. The dictionary is stored in the header of the
+   * compacted segment and primes the configured compression codec, or a
+   * {@link DeflateCodec} if there is none, which uses at most 32 KB of it.
+   */
+  public DatabaseOptions setCompactionDictionarySize(int compactionDictionarySize) {
+    if (compactionDictionarySize < 0) {
+      throw new IllegalArgumentException("Compaction dictionary size cannot be negative");
+    }
+
+    this.compactionDictionarySize = compactionDictionarySize;
+    return this;
+  }
+
+  public int getCompactionIndexInterval() {
+    return compactionIndexInterval;
+  }
+
+  /**
+   * Bytes of entries between the records of the sparse index of a sorted
+   * compacted segment, see {@link SortedIndex}, or zero to write compacted
+   * segments unsorted. The keys of a sorted segment are not held in the key
+   * directory, so its memory grows with the keys written since the last
+   * compaction rather than with every key, and reads of older keys search
+   * the index and scan up to this many bytes. Deleted keys are then kept in
+   * the key directory until the next compaction. Cannot be combined with
+   * block compaction.
+   */
+  public DatabaseOptions setCompactionIndexInterval(int compactionIndexInterval) {
+    if (compactionIndexInterval < 0) {
+      throw new IllegalArgumentException("Compaction index interval cannot be negative");
+    }
+
+    this.compactionIndexInterval = compactionIndexInterval;
+    return this;
+  }
+
+  public int getBloomFilterBitsPerKey() {
+    return bloomFilterBitsPerKey;
+  }
+
+  /**
+   * Bits per key of the {@link BloomFilter} written with a sorted compacted
+   * segment, which lets reads of keys it does not hold skip it, or zero to
+   * write none. Ten bits per key let about one in a hundred such reads
+   * through, see {@link Database#getFilterStats()}.
+   */
+  public DatabaseOptions setBloomFilterBitsPerKey(int bloomFilterBitsPerKey) {
+    if (bloomFilterBitsPerKey < 0) {
+      throw new IllegalArgumentException("Bloom filter bits per key cannot be negative");
+    }
+
+    this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+    return this;
+  }
+
+  public boolean isLockFreeReads() {
+    return lockFreeReads;
+  }
+
+  /**
+   * Reads find their segment through a snapshot of the segment set and only
+   * retry if a write was published while they looked the key up, so they
+   * never wait on writers or on each other. Turned off, reads hold the
+   * segment lock until their value is read, as they used to, which is only
+   * worth doing to compare the two.
+   */
+  public DatabaseOptions setLockFreeReads(boolean lockFreeReads) {
+    this.lockFreeReads = lockFreeReads;
+    return this;
+  }
+
+  public boolean isSequencedWrites() {
+    return sequencedWrites;
+  }
+
+  /**
+   * Appends every write from a dedicated thread that drains them from a
+   * bounded queue, see {@link WriteSequencer}, instead of from whichever
+   * writing thread leads the next group commit, see {@link GroupCommitter}.
+   */
+  public DatabaseOptions setSequencedWrites(boolean sequencedWrites) {
+    this.sequencedWrites = sequencedWrites;
+    return this;
+  }
+
+  public int getWriteQueueCapacity() {
+    return writeQueueCapacity;
+  }
+
+  /**
+   * Writes waiting for the writer thread at most when writes are sequenced,
+   * writers wait for room beyond that.
+   */
+  public DatabaseOptions setWriteQueueCapacity(int writeQueueCapacity) {
+    if (writeQueueCapacity < 1) {
+      throw new IllegalArgumentException("Write queue capacity must be positive");
+    }
+
+    this.writeQueueCapacity = writeQueueCapacity;
+    return this;
+  }
+
+  public ExecutorService getAsyncExecutor() {
+    return asyncExecutor;
+  }
+
+  /**
+   * Runs the work of {@link Database#readAsync} and the other asynchronous
+   * operations that cannot be done without blocking, and completes their
+   * asynchronous file reads. The database does not shut it down. Null, the
+   * default, gives the database a pool of its own with a thread per
+   * processor, created on its first asynchronous operation. The shards of a
+   * {@link ShardedDatabase} share a single such pool.
+   */
+  public DatabaseOptions setAsyncExecutor(ExecutorService asyncExecutor) {
+    this.asyncExecutor = asyncExecutor;
+    return this;
+  }
+}
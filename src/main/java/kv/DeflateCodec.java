@@ -0,0 +1,201 @@
+package kv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values with {@link Deflater}, as raw deflate data without the
+ * zlib header and trailer, since values are already protected by the crc of
+ * their entry. Each thread keeps its own deflater, inflater and buffers.
+ * <p>
+ * A codec with a dictionary primes both sides with it, so that values
+ * sharing its contents compress well even when each is small.
+ */
+public class DeflateCodec implements CompressionCodec {
+
+  public static final int ID = 1;
+
+  // decompressed values are written to the output stream in chunks of this size
+  private static final int CHUNK_SIZE = 8 * 1024;
+
+  // buffers larger than this are not kept for reuse
+  private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+  // deflate only ever refers back this far
+  public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+  private final int level;
+  // null without a dictionary
+  private final byte[] dictionary;
+  private final ThreadLocal<State> states = ThreadLocal.withInitial(State::new);
+
+  public DeflateCodec() {
+    this(Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param level compression level, from {@link Deflater#BEST_SPEED} to
+   *              {@link Deflater#BEST_COMPRESSION}
+   */
+  public DeflateCodec(int level) {
+    this(level, null);
+  }
+
+  private DeflateCodec(int level, byte[] dictionary) {
+    if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+      throw new IllegalArgumentException("Invalid deflate level: " + level);
+    }
+
+    if (dictionary != null && (dictionary.length == 0 || dictionary.length > MAX_DICTIONARY_SIZE)) {
+      throw new IllegalArgumentException("Invalid deflate dictionary size: " + dictionary.length);
+    }
+
+    this.level = level;
+    this.dictionary = dictionary;
+  }
+
+  @Override
+  public int getId() {
+    return ID;
+  }
+
+  @Override
+  public byte[] getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * A codec primed with the given dictionary, or with its last
+   * {@link #MAX_DICTIONARY_SIZE} bytes if it is larger, the only ones
+   * deflate can refer back to.
+   */
+  @Override
+  public CompressionCodec withDictionary(byte[] dictionary) {
+    if (dictionary.length > MAX_DICTIONARY_SIZE) {
+      dictionary = Arrays.copyOfRange(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, dictionary.length);
+    }
+
+    return new DeflateCodec(level, dictionary);
+  }
+
+  @Override
+  public byte[] compress(ByteBuffer value) {
+    State state = states.get();
+    Deflater deflater = state.deflater();
+    int length = value.remaining();
+
+    if (value.hasArray()) {
+      deflater.setInput(value.array(), value.arrayOffset() + value.position(), length);
+    } else {
+      byte[] input = state.input(length);
+      value.duplicate().get(input, 0, length);
+      deflater.setInput(input, 0, length);
+    }
+
+    deflater.finish();
+
+    // anything that does not fit in less than the value itself is not worth keeping
+    byte[] output = state.output(length);
+    int compressed = 0;
+
+    while (!deflater.finished() && compressed < length - 1) {
+      compressed += deflater.deflate(output, compressed, length - 1 - compressed);
+    }
+
+    return deflater.finished() ? Arrays.copyOf(output, compressed) : null;
+  }
+
+  @Override
+  public void decompress(ByteBuffer compressed, OutputStream out) throws IOException {
+    State state = states.get();
+    Inflater inflater = state.inflater();
+    int length = compressed.remaining();
+
+    // raw inflate may need a dummy byte after the data
+    byte[] input = state.input(length + 1);
+    compressed.duplicate().get(input, 0, length);
+    input[length] = 0;
+    inflater.setInput(input, 0, length + 1);
+
+    byte[] chunk = state.output(CHUNK_SIZE);
+
+    try {
+      while (!inflater.finished()) {
+        int n = inflater.inflate(chunk);
+
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Compressed value is truncated");
+        }
+
+        out.write(chunk, 0, n);
+      }
+
+    } catch (DataFormatException e) {
+      throw new IOException("Compressed value is corrupt", e);
+    }
+  }
+
+  private class State {
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+
+    private Deflater deflater() {
+      if (deflater == null) {
+        deflater = new Deflater(level, true);
+      }
+
+      deflater.reset();
+
+      if (dictionary != null) {
+        deflater.setDictionary(dictionary);
+      }
+
+      return deflater;
+    }
+
+    private Inflater inflater() {
+      if (inflater == null) {
+        inflater = new Inflater(true);
+      }
+
+      inflater.reset();
+
+      if (dictionary != null) {
+        inflater.setDictionary(dictionary);
+      }
+
+      return inflater;
+    }
+
+    private byte[] input(int size) {
+      if (size > MAX_BUFFER_SIZE) {
+        return new byte[size];
+      }
+
+      if (input.length < size) {
+        input = new byte[size];
+      }
+
+      return input;
+    }
+
+    private byte[] output(int size) {
+      if (size > MAX_BUFFER_SIZE) {
+        return new byte[size];
+      }
+
+      if (output.length < size) {
+        output = new byte[size];
+      }
+
+      return output;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package kv;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a compression dictionary out of sample values, for values too
+ * small to compress well on their own but sharing much of their structure,
+ * such as documents with the same field names.
+ * <p>
+ * Every run of {@link #GRAM_SIZE} bytes is counted once per sample holding
+ * it, and each sample is scored by how common its runs are. The dictionary
+ * is made of the best scoring samples that still add runs it does not
+ * already hold, with the best last, since deflate reaches the end of its
+ * dictionary with the shortest distances.
+ */
+public class DictionaryTrainer {
+
+  static final int GRAM_SIZE = 8;
+
+  // a sample adding less than this share of new runs is left out
+  private static final double MIN_NEW_GRAMS = 0.25;
+
+  private DictionaryTrainer() {
+  }
+
+  /**
+   * A dictionary of at most the given size, or null if the samples share
+   * too little for one to help.
+   */
+  public static byte[] train(List<byte[]> samples, int size) {
+    Map<Long, Integer> counts = new HashMap<>();
+    List<Set<Long>> sampleGrams = new ArrayList<>(samples.size());
+
+    for (byte[] sample : samples) {
+      Set<Long> grams = grams(sample);
+      sampleGrams.add(grams);
+
+      for (Long gram : grams) {
+        counts.merge(gram, 1, Integer::sum);
+      }
+    }
+
+    List<Integer> order = new ArrayList<>(samples.size());
+    double[] scores = new double[samples.size()];
+
+    for (int i = 0; i < samples.size(); i++) {
+      long shared = 0;
+
+      for (Long gram : sampleGrams.get(i)) {
+        shared += counts.get(gram) - 1;
+      }
+
+      if (shared > 0) {
+        scores[i] = shared;
+        order.add(i);
+      }
+    }
+
+    if (order.isEmpty()) {
+      return null;
+    }
+
+    order.sort((a, b) -> Double.compare(scores[b], scores[a]));
+
+    List<byte[]> chosen = new ArrayList<>();
+    Set<Long> covered = new HashSet<>();
+    int length = 0;
+
+    for (int i : order) {
+      byte[] sample = samples.get(i);
+      Set<Long> grams = sampleGrams.get(i);
+
+      if (length + sample.length > size) {
+        continue;
+      }
+
+      int added = 0;
+
+      for (Long gram : grams) {
+        if (!covered.contains(gram)) {
+          added++;
+        }
+      }
+
+      if (added < grams.size() * MIN_NEW_GRAMS) {
+        continue;
+      }
+
+      covered.addAll(grams);
+      chosen.add(sample);
+      length += sample.length;
+    }
+
+    if (chosen.isEmpty()) {
+      return null;
+    }
+
+    ByteArrayOutputStream dictionary = new ByteArrayOutputStream(length);
+
+    for (int i = chosen.size() - 1; i >= 0; i--) {
+      dictionary.write(chosen.get(i), 0, chosen.get(i).length);
+    }
+
+    return dictionary.toByteArray();
+  }
+
+  private static Set<Long> grams(byte[] sample) {
+    Set<Long> grams = new HashSet<>();
+    long gram = 0;
+
+    for (int i = 0; i < sample.length; i++) {
+      gram = (gram << 8) | (sample[i] & 0xff);
+
+      if (i >= GRAM_SIZE - 1) {
+        grams.add(gram);
+      }
+    }
+
+    return grams;
+  }
+}
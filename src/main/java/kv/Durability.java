@@ -0,0 +1,25 @@
+package kv;
+
+/**
+ * When a write is forced to disk before it is acknowledged, from the
+ * weakest guarantee to the strongest.
+ */
+public enum Durability {
+
+  /**
+   * Acknowledged once handed to the operating system, the write survives the
+   * process crashing but not the machine.
+   */
+  NONE,
+
+  /**
+   * Acknowledged like {@link #NONE}, but forced to disk by a background sync
+   * within the configured interval of time or bytes written.
+   */
+  PERIODIC,
+
+  /**
+   * Acknowledged only once forced to disk.
+   */
+  SYNC
+}
@@ -0,0 +1,319 @@
+package kv;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An entry already serialized in the format of a segment version, ready to
+ * be appended as is. Encoding reads the value and computes the checksum, so it is
+ * done by the calling thread before any segment lock is taken. The entry is
+ * held as its header, key and value in separate buffers, which the segment
+ * appends with a single gathering write, so the value is never copied into
+ * a buffer holding the whole entry.
+ * <p>
+ * A batch is a single entry holding other entries, see
+ * {@link LogFormatter#writeBatch}. Its records are the entries it holds,
+ * while a plain entry is its own only record.
+ * <p>
+ * Values too large to be worth holding in memory are not encoded up front,
+ * they are spooled to a file in a directory of the database by the encoding
+ * thread and the segment streams them from there when appending, see
+ * {@link LogFormatter#write(java.nio.channels.FileChannel, byte[], InputStream, int, ChecksumType)}.
+ * The caller's stream is never read while the entry is appended along with
+ * the entries of other callers, so a stream that fails only fails its own
+ * write. The file is deleted by {@link #close()}.
+ * <p>
+ * Entries are encoded for a segment format: version, checksum and
+ * compression. Values are compressed as they are encoded, except for
+ * streamed values, which are written as they are.
+ */
+public class EncodedEntry {
+
+  // values of up to this many bytes are encoded up front
+  static final int STREAMING_THRESHOLD = 64 * 1024;
+
+  private final ByteSlice key;
+  // null for a streamed entry
+  private final ByteBuffer[] buffers;
+  private final int length;
+  // only present for a streamed entry
+  private final InputStream stream;
+  private final boolean tombstone;
+  private final int version;
+  private final ChecksumType checksum;
+  // id of the compression codec of the format, zero for none
+  private final int compression;
+  private final List<EncodedEntry> records;
+
+  private EncodedEntry(
+      ByteSlice key, ByteBuffer[] buffers, InputStream stream,
+      boolean tombstone, int version, ChecksumType checksum,
+      Compression compression, List<EncodedEntry> records) {
+
+    this.key = key;
+    this.buffers = buffers;
+    this.length = buffers == null ? -1 : remaining(buffers);
+    this.stream = stream;
+    this.tombstone = tombstone;
+    this.version = version;
+    this.checksum = checksum;
+    this.compression = compression == null ? 0 : compression.getCodec().getId();
+    this.records = records == null ? Collections.singletonList(this) : records;
+  }
+
+  /**
+   * Encodes the key and value, or a tombstone for the key if the value is
+   * null. The compression may be null for a format without compression.
+   */
+  public static EncodedEntry encode(
+      ByteSlice key, InputStream value, int version,
+      ChecksumType checksum, Compression compression) throws IOException {
+
+    if (value == null) {
+      return plain(key, null, version, checksum, compression);
+    }
+
+    return plain(key, ByteBuffer.wrap(IOUtils.toByteArray(value)), version, checksum, compression);
+  }
+
+  private static EncodedEntry plain(
+      ByteSlice key, ByteBuffer value, int version,
+      ChecksumType checksum, Compression compression) throws IOException {
+
+    ByteBuffer compressed = compression == null ? null : compression.compress(value);
+
+    if (compressed != null) {
+      value = compressed;
+    }
+
+    ByteBuffer header = RecordCodec.get().encodeHeader(key, value, compressed != null, version, checksum);
+    ByteBuffer[] buffers = value == null
+        ? new ByteBuffer[]{header, key.asBuffer()}
+        : new ByteBuffer[]{header, key.asBuffer(), value};
+
+    return new EncodedEntry(key, buffers, null, value == null, version, checksum, compression, null);
+  }
+
+  /**
+   * Encodes the entry like {@link #encode}, unless the value turns out to be
+   * larger than {@link #STREAMING_THRESHOLD}, in which case the whole value
+   * is spooled to a file in the given directory to be streamed when the
+   * entry is appended.
+   */
+  public static EncodedEntry encodeStreaming(
+      ByteSlice key, InputStream value, int version,
+      ChecksumType checksum, Compression compression, Path spoolDirectory) throws IOException {
+
+    if (value == null) {
+      return encode(key, null, version, checksum, compression);
+    }
+
+    // small values are read through the thread's transfer array and copied
+    // out at their exact length, larger ones into an array that grows up to
+    // one byte past the threshold, which tells whether there is more
+    byte[] transfer = RecordCodec.get().transfer();
+    int read = IOUtils.read(value, transfer);
+
+    if (read < transfer.length) {
+      return plain(key, ByteBuffer.wrap(Arrays.copyOf(transfer, read)), version, checksum, compression);
+    }
+
+    byte[] head = transfer;
+
+    while (read == head.length && head.length <= STREAMING_THRESHOLD) {
+      head = Arrays.copyOf(head, Math.min(head.length * 2, STREAMING_THRESHOLD + 1));
+      read += IOUtils.read(value, head, read, head.length - read);
+    }
+
+    if (read <= STREAMING_THRESHOLD) {
+      return plain(key, ByteBuffer.wrap(head, 0, read), version, checksum, compression);
+    }
+
+    Path spool = Files.createTempFile(spoolDirectory, "value-", ".tmp");
+
+    try {
+      long length;
+
+      try (OutputStream out = Files.newOutputStream(spool)) {
+        out.write(head, 0, read);
+        length = read + IOUtils.copyLarge(value, out);
+      }
+
+      if (key.length() + length > Integer.MAX_VALUE - LogEntry.STATIC_HEADER_SIZE) {
+        throw new IOException("Value is too large for a single entry");
+      }
+
+      return new EncodedEntry(key, null, new SpooledValue(spool), false, version, checksum, compression, null);
+
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(spool);
+      throw e;
+    }
+  }
+
+  /**
+   * Deletes the spooled value of a streamed entry, once it has been appended
+   * or will not be. Does nothing for other entries.
+   */
+  public void close() throws IOException {
+    if (stream != null) {
+      stream.close();
+    }
+  }
+
+  /**
+   * Encodes the entries as one batch, which is recovered either in full or
+   * not at all. The entries must all be in the same format.
+   */
+  public static EncodedEntry encodeBatch(
+      List<EncodedEntry> entries, int version,
+      ChecksumType checksum, Compression compression) throws IOException {
+
+    List<ByteBuffer[]> encoded = new ArrayList<>(entries.size());
+
+    for (EncodedEntry entry : entries) {
+      if (version == LogFormatter.LEGACY_VERSION || entry.isBatch() || entry.isStreamed()) {
+        throw new IOException("Only plain, encoded entries of a versioned format can be batched");
+      }
+
+      if (entry.getVersion() != version || entry.getChecksum() != checksum
+          || entry.getCompression() != (compression == null ? 0 : compression.getCodec().getId())) {
+        throw new IOException("Batched entries must be in the format of the batch");
+      }
+
+      encoded.add(entry.getBuffers());
+    }
+
+    return new EncodedEntry(null, LogFormatter.encodeBatch(encoded, checksum), null, false, version, checksum,
+        compression, Collections.unmodifiableList(new ArrayList<>(entries)));
+  }
+
+  /**
+   * Key of a plain entry, null for a batch.
+   */
+  public ByteSlice getKey() {
+    return key;
+  }
+
+  /**
+   * Buffers holding the encoded entry, one after the other, null for a
+   * streamed entry. Each call returns fresh views of the same bytes.
+   */
+  public ByteBuffer[] getBuffers() {
+    if (buffers == null) {
+      return null;
+    }
+
+    ByteBuffer[] views = new ByteBuffer[buffers.length];
+
+    for (int i = 0; i < buffers.length; i++) {
+      views[i] = buffers[i].duplicate();
+    }
+
+    return views;
+  }
+
+  /**
+   * Length of the encoded entry, -1 for a streamed entry.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * The value of a streamed entry, null otherwise.
+   */
+  public InputStream getStream() {
+    return stream;
+  }
+
+  public boolean isStreamed() {
+    return stream != null;
+  }
+
+  public boolean isTombstone() {
+    return tombstone;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public ChecksumType getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * Id of the compression codec of the format the entry was encoded for,
+   * zero for a format without compression.
+   */
+  public int getCompression() {
+    return compression;
+  }
+
+  /**
+   * Length of the value as it is stored, after compression.
+   */
+  public int getValueLength() {
+    return length - LogEntry.STATIC_HEADER_SIZE - key.length();
+  }
+
+  public boolean isBatch() {
+    return key == null;
+  }
+
+  /**
+   * The plain entries written by appending this entry, in order.
+   */
+  public List<EncodedEntry> getRecords() {
+    return records;
+  }
+
+  /**
+   * Offset of the first record from the start of this entry, the records
+   * follow each other without gaps.
+   */
+  public int getRecordsOffset() {
+    return isBatch() ? LogEntry.STATIC_HEADER_SIZE : 0;
+  }
+
+  // a value spooled to a temporary file, deleted once the stream is closed
+  private static class SpooledValue extends FilterInputStream {
+    private final Path path;
+
+    private SpooledValue(Path path) throws IOException {
+      super(Files.newInputStream(path));
+      this.path = path;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+
+  private static int remaining(ByteBuffer[] buffers) {
+    int remaining = 0;
+
+    for (ByteBuffer buffer : buffers) {
+      remaining += buffer.remaining();
+    }
+
+    return remaining;
+  }
+}
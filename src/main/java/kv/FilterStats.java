@@ -0,0 +1,59 @@
+package kv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How the Bloom filter of the sorted segment, see {@link BloomFilter}, has
+ * done for the reads that missed the key directory since the database
+ * started.
+ */
+public class FilterStats {
+
+  private final LongAdder negatives = new LongAdder();
+  private final LongAdder truePositives = new LongAdder();
+  private final LongAdder falsePositives = new LongAdder();
+
+  void addNegative() {
+    negatives.increment();
+  }
+
+  void addPositive(boolean found) {
+    (found ? truePositives : falsePositives).increment();
+  }
+
+  /**
+   * Reads the filter turned away without touching the segment.
+   */
+  public long getNegatives() {
+    return negatives.sum();
+  }
+
+  public long getTruePositives() {
+    return truePositives.sum();
+  }
+
+  /**
+   * Reads the filter let through for keys the segment turned out not to
+   * hold.
+   */
+  public long getFalsePositives() {
+    return falsePositives.sum();
+  }
+
+  /**
+   * Share of the reads of keys the segment does not hold that the filter
+   * let through, zero before any such read.
+   */
+  public double getFalsePositiveRate() {
+    long falsePositives = getFalsePositives();
+    long absent = getNegatives() + falsePositives;
+
+    return absent == 0 ? 0 : (double) falsePositives / absent;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("negatives: %d, true positives: %d, false positives: %d (rate %.4f)",
+        getNegatives(), getTruePositives(), getFalsePositives(), getFalsePositiveRate());
+  }
+}
@@ -0,0 +1,179 @@
+package kv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects entries committed concurrently into batches that are appended and
+ * synced together, so that only one thread ever appends to the database at
+ * a time. The first caller to arrive while no batch is being
+ * flushed becomes the leader and flushes everything queued so far, callers
+ * arriving in the meantime queue up behind it and are flushed as the next
+ * batch. Every caller returns only once the batch holding its entry has been
+ * flushed, or throws the exception the flush failed with.
+ * <p>
+ * A batch is flushed with the strongest {@link Durability} asked for by any
+ * entry in it, so a write that does not need a sync still waits for one if
+ * it shares a batch with a write that does.
+ */
+public class GroupCommitter implements Committer {
+
+  private static final Logger log = LoggerFactory.getLogger(GroupCommitter.class);
+
+  public interface Flusher {
+    /**
+     * Appends the entries, in order, with the given durability.
+     */
+    void flush(List<EncodedEntry> entries, Durability durability) throws IOException;
+  }
+
+  private final Flusher flusher;
+  private final Object lock = new Object();
+
+  private List<Pending> queue = new ArrayList<>();
+  private boolean flushing;
+  private long batches;
+  private long entries;
+
+  public GroupCommitter(Flusher flusher) {
+    this.flusher = flusher;
+  }
+
+  @Override
+  public void commit(EncodedEntry entry, Durability durability) throws IOException {
+    commit(new Pending(entry, durability));
+  }
+
+  @Override
+  public void sync() throws IOException {
+    commit(new Pending(null, Durability.SYNC));
+  }
+
+  private void commit(Pending pending) throws IOException {
+    List<Pending> batch;
+    boolean interrupted = false;
+
+    synchronized (lock) {
+      queue.add(pending);
+
+      // once queued the entry may be written by another leader at any time,
+      // so the caller waits for the outcome even if interrupted
+      while (flushing && !pending.done) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+
+      if (pending.done) {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+
+        pending.check();
+        return;
+      }
+
+      flushing = true;
+      batch = queue;
+      queue = new ArrayList<>();
+    }
+
+    flush(batch);
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    pending.check();
+  }
+
+  private void flush(List<Pending> batch) {
+    List<EncodedEntry> entries = new ArrayList<>(batch.size());
+    Durability durability = Durability.NONE;
+
+    for (Pending pending : batch) {
+      if (pending.entry != null) {
+        entries.add(pending.entry);
+      }
+
+      if (pending.durability.compareTo(durability) > 0) {
+        durability = pending.durability;
+      }
+    }
+
+    log.trace("Flushing batch of {} entries, durability: {}", entries.size(), durability);
+
+    IOException error = null;
+
+    // an interrupted thread would close the segment's channel on its first
+    // write, failing this batch and every write after it
+    boolean interrupted = Thread.interrupted();
+
+    try {
+      flusher.flush(entries, durability);
+
+    } catch (IOException e) {
+      error = e;
+
+    } catch (RuntimeException e) {
+      error = new IOException("Group commit failed", e);
+
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    synchronized (lock) {
+      for (Pending pending : batch) {
+        pending.error = error;
+        pending.done = true;
+      }
+
+      this.batches++;
+      this.entries += entries.size();
+
+      flushing = false;
+      lock.notifyAll();
+    }
+  }
+
+  public long getBatches() {
+    synchronized (lock) {
+      return batches;
+    }
+  }
+
+  public long getEntries() {
+    synchronized (lock) {
+      return entries;
+    }
+  }
+
+  private static class Pending {
+    // null for a sync without an entry
+    private final EncodedEntry entry;
+    private final Durability durability;
+
+    // guarded by the committer's lock
+    private boolean done;
+    private IOException error;
+
+    private Pending(EncodedEntry entry, Durability durability) {
+      this.entry = entry;
+      this.durability = durability;
+    }
+
+    private void check() throws IOException {
+      if (error != null) {
+        throw new IOException("Batch was not committed", error);
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package kv;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link KeyDirectory} backed by a {@link ConcurrentHashMap}. Every key costs
+ * a map node, a {@link ByteSlice}, its array and a {@link Location} on the
+ * heap, see {@link OffHeapKeyDirectory} for large key counts.
+ */
+public class HeapKeyDirectory implements KeyDirectory {
+
+  private final Map<ByteSlice, Location> locations = new ConcurrentHashMap<>();
+
+  @Override
+  public Location get(ByteSlice key) {
+    return this.locations.get(key);
+  }
+
+  @Override
+  public void put(ByteSlice key, Location location) {
+    this.locations.put(key, location);
+  }
+
+  @Override
+  public void remove(ByteSlice key) {
+    this.locations.remove(key);
+  }
+
+  @Override
+  public boolean replace(ByteSlice key, Location expected, Location updated) {
+    return this.locations.replace(key, expected, updated);
+  }
+
+  @Override
+  public boolean remove(ByteSlice key, Location expected) {
+    return this.locations.remove(key, expected);
+  }
+
+  @Override
+  public boolean contains(ByteSlice key) {
+    return this.locations.containsKey(key);
+  }
+
+  @Override
+  public Iterable<ByteSlice> keys() {
+    return this.locations.keySet();
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteSlice, Location> action) {
+    this.locations.forEach(action);
+  }
+
+  @Override
+  public int size() {
+    return this.locations.size();
+  }
+}
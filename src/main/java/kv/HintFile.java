@@ -0,0 +1,156 @@
+package kv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Hint files sit next to sealed segments and list, in write order, the key,
+ * offset, value length and tombstone flag of every entry in the segment.
+ * Recovery rebuilds the key directory from them without reading any value
+ * bytes.
+ * <p>
+ * Each record is key length (4), value length (4), offset (8), tombstone
+ * (1) and the key. The file ends with the size of the segment it describes
+ * (8) and a crc (8) of everything before the crc. A hint whose crc does not
+ * match, or whose segment has a different size, is ignored.
+ */
+public class HintFile {
+
+  private static final Logger log = LoggerFactory.getLogger(HintFile.class);
+
+  private static final String SEGMENT_SUFFIX = ".bin";
+  private static final String HINT_SUFFIX = ".hint";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+
+  private static final int TRAILER_SIZE = 16;
+
+  public static Path pathFor(Path segmentPath) {
+    String fileName = segmentPath.getFileName().toString();
+
+    if (fileName.endsWith(SEGMENT_SUFFIX)) {
+      fileName = fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length());
+    }
+
+    return segmentPath.resolveSibling(fileName + HINT_SUFFIX);
+  }
+
+  public static boolean isHintFileName(Path path) {
+    return path.getFileName().toString().endsWith(HINT_SUFFIX);
+  }
+
+  /**
+   * Applies every record of the hint file to the consumer, returning false
+   * without applying anything if the hint is missing or not valid for a
+   * segment of the given size.
+   */
+  public static boolean read(Path hintPath, long segmentSize, HintConsumer consumer) throws IOException {
+    if (!Files.exists(hintPath)) {
+      log.trace("No hint file at {}", hintPath);
+      return false;
+    }
+
+    ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(hintPath));
+
+    if (data.limit() < TRAILER_SIZE) {
+      log.debug("Hint file {} is truncated, ignoring", hintPath);
+      return false;
+    }
+
+    int trailer = data.limit() - TRAILER_SIZE;
+    long hintedSegmentSize = data.getLong(trailer);
+    long crc = data.getLong(trailer + 8);
+
+    ByteBuffer checked = data.duplicate();
+    checked.limit(trailer + 8);
+
+    if (LogFormatter.crc(checked) != crc) {
+      log.debug("Hint file {} failed its crc check, ignoring", hintPath);
+      return false;
+    }
+
+    if (hintedSegmentSize != segmentSize) {
+      log.debug("Hint file {} describes {} bytes but the segment has {}, ignoring",
+          hintPath, hintedSegmentSize, segmentSize);
+      return false;
+    }
+
+    data.limit(trailer);
+
+    while (data.hasRemaining()) {
+      int keyLength = data.getInt();
+      int valueLength = data.getInt();
+      long offset = data.getLong();
+      boolean tombstone = data.get() != 0;
+
+      byte[] key = new byte[keyLength];
+      data.get(key);
+
+      consumer.accept(new ByteSlice(key), offset,
+          LogEntry.STATIC_HEADER_SIZE + keyLength + valueLength, tombstone);
+    }
+
+    return true;
+  }
+
+  public interface HintConsumer {
+    void accept(ByteSlice key, long offset, int entryLength, boolean tombstone) throws IOException;
+  }
+
+  /**
+   * Buffers hint records in memory until the segment they describe is
+   * sealed.
+   */
+  public static class Writer {
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+
+    public synchronized void append(ByteSlice key, long offset, int valueLength, boolean tombstone) {
+      try {
+        out.writeInt(key.length());
+        out.writeInt(valueLength);
+        out.writeLong(offset);
+        out.writeBoolean(tombstone);
+
+        for (int i = 0; i < key.length(); i++) {
+          out.writeByte(key.byteAt(i));
+        }
+
+      } catch (IOException e) {
+        throw new IllegalStateException("Writing to an in memory buffer failed", e);
+      }
+    }
+
+    /**
+     * Writes the hint file for the segment at the given path, going through a
+     * temporary file so that a crash never leaves a partial hint behind.
+     */
+    public synchronized void write(Path segmentPath) throws IOException {
+      Path hintPath = pathFor(segmentPath);
+      Path temporaryPath = hintPath.resolveSibling(hintPath.getFileName() + TEMPORARY_SUFFIX);
+
+      byte[] records = buffer.toByteArray();
+
+      ByteBuffer file = ByteBuffer.allocate(records.length + TRAILER_SIZE);
+      file.put(records);
+      file.putLong(Files.size(segmentPath));
+
+      ByteBuffer checked = file.duplicate();
+      checked.flip();
+      file.putLong(LogFormatter.crc(checked));
+
+      Files.write(temporaryPath, file.array());
+      Files.move(temporaryPath, hintPath, StandardCopyOption.ATOMIC_MOVE);
+
+      log.trace("Wrote hint file {}", hintPath);
+    }
+  }
+}
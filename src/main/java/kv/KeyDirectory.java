@@ -0,0 +1,89 @@
+package kv;
+
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * The single index of a database. Maps every live key to the location of
+ * its most recent entry, so a read is one probe here plus one read from the
+ * segment the location points at, regardless of how many segments exist.
+ * <p>
+ * Deleted keys are removed rather than recorded, compaction always rewrites
+ * every segment older than the active one, so a tombstone never has to mask
+ * an older entry that survives compaction. The exception is a database with
+ * a sorted compacted segment, whose keys are not held here: a deleted key
+ * then points at its tombstone until the next compaction.
+ * <p>
+ * Implementations must be safe for concurrent use.
+ */
+public interface KeyDirectory {
+
+  Location get(ByteSlice key);
+
+  void put(ByteSlice key, Location location);
+
+  void remove(ByteSlice key);
+
+  /**
+   * Points the key at a new location only if it still points at the
+   * expected one, used by compaction to avoid clobbering newer writes.
+   */
+  boolean replace(ByteSlice key, Location expected, Location updated);
+
+  /**
+   * Removes the key only if it still points at the expected location.
+   */
+  boolean remove(ByteSlice key, Location expected);
+
+  boolean contains(ByteSlice key);
+
+  Iterable<ByteSlice> keys();
+
+  void forEach(BiConsumer<ByteSlice, Location> action);
+
+  int size();
+
+  class Location {
+    private final int segmentId;
+    private final long offset;
+    private final int length;
+
+    public Location(int segmentId, long offset, int length) {
+      this.segmentId = segmentId;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public int getSegmentId() {
+      return segmentId;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Location location = (Location) o;
+      return segmentId == location.segmentId &&
+          offset == location.offset &&
+          length == location.length;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(segmentId, offset, length);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d@%d+%d", segmentId, offset, length);
+    }
+  }
+}
@@ -3,7 +3,7 @@ package kv;
 public class LogEntry {
   // 8 crc, 1 for tombstone, 4 for key length, and 4 for value length
   // total = 9 + 8 = 17
-  private static final int STATIC_HEADER_SIZE = 17;
+  static final int STATIC_HEADER_SIZE = 17;
 
   private final long crc;
   private final boolean tombstone;
@@ -5,12 +5,92 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 public class LogFormatter {
 
   private static final Logger log = LoggerFactory.getLogger(LogFormatter.class);
 
+  /**
+   * Entries start with an 8 byte crc, and segment files have no header.
+   */
+  public static final int LEGACY_VERSION = 0;
+
+  /**
+   * Entries start with a 4 byte sync marker followed by a 4 byte crc, and
+   * segment files start with a {@link SegmentHeader}. The sync marker lets
+   * recovery find the next entry after a corrupt region without trying to
+   * decode an entry at every byte.
+   */
+  public static final int MARKED_VERSION = 1;
+
+  /**
+   * Entries are laid out as in {@link #MARKED_VERSION}, and the
+   * {@link SegmentHeader} names the {@link ChecksumType} they are protected
+   * with instead of it always being {@link ChecksumType#CRC32}.
+   */
+  public static final int CHECKSUM_VERSION = 2;
+
+  /**
+   * Values may be compressed, see {@link #COMPRESSED_FLAG}, with the codec
+   * named by the {@link SegmentHeader}.
+   */
+  public static final int COMPRESSION_VERSION = 3;
+
+  /**
+   * Segments may hold their entries in compressed blocks, see
+   * {@link BlockIndex}, which the {@link SegmentHeader} flags say.
+   */
+  public static final int BLOCK_VERSION = 4;
+
+  /**
+   * The {@link SegmentHeader} may hold a dictionary the compression codec is
+   * primed with.
+   */
+  public static final int DICTIONARY_VERSION = 5;
+
+  /**
+   * Segments may hold their entries sorted by key, followed by a sparse
+   * index of them, see {@link SortedIndex}.
+   */
+  public static final int SORTED_VERSION = 6;
+
+  /**
+   * The {@link SortedIndex} of a sorted segment may be followed by a
+   * {@link BloomFilter} of its keys.
+   */
+  public static final int FILTER_VERSION = 7;
+
+  /**
+   * Version new segments are written in.
+   */
+  public static final int CURRENT_VERSION = FILTER_VERSION;
+
+  public static final int SYNC_MARKER = 0xC5A3E91D;
+
+  /**
+   * Takes the place of the sync marker on entries inside a batch, so that
+   * recovery never resynchronizes into the middle of a batch and applies
+   * only part of it.
+   */
+  public static final int BATCHED_MARKER = 0xC5A3E91B;
+
+  // bits of the byte after the value length, legacy entries only ever set the tombstone bit
+  public static final int TOMBSTONE_FLAG = 0x01;
+  // the entry has no key, and its value is a sequence of batched entries
+  public static final int BATCH_FLAG = 0x02;
+  // the value is compressed with the codec of the segment
+  public static final int COMPRESSED_FLAG = 0x04;
+  public static final int KNOWN_FLAGS = TOMBSTONE_FLAG | BATCH_FLAG | COMPRESSED_FLAG;
+
+  // values are streamed to a channel through a buffer of this size
+  private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
   public static class CrcMismatchException extends IOException {
     public CrcMismatchException() {
       super("Crc mismatch");
@@ -23,6 +103,12 @@ public class LogFormatter {
     return crc32.getValue();
   }
 
+  public static long crc(ByteBuffer buffer) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(buffer);
+    return crc32.getValue();
+  }
+
   public static LogEntry readLogEntry(InputStream in) throws IOException {
 
     log.trace("readLogEntry()");
@@ -82,6 +168,69 @@ public class LogFormatter {
     return true;
   }
 
+  public static boolean read(ByteBuffer in, OutputStream out) throws IOException {
+    return read(in, out, LEGACY_VERSION);
+  }
+
+  /**
+   * Decodes the entry starting at the buffer's position without copying the
+   * entry out of the buffer first, see {@link RecordCodec}. The value is
+   * only copied if the entry is not a tombstone.
+   */
+  public static boolean read(ByteBuffer in, OutputStream out, int version) throws IOException {
+    return read(in, out, version, ChecksumType.CRC32);
+  }
+
+  public static boolean read(
+      ByteBuffer in, OutputStream out,
+      int version, ChecksumType checksum) throws IOException {
+
+    return read(in, out, version, checksum, null);
+  }
+
+  /**
+   * Decodes the entry like {@link #read(ByteBuffer, OutputStream, int)},
+   * decompressing its value with the given codec if it is compressed.
+   */
+  public static boolean read(
+      ByteBuffer in, OutputStream out, int version,
+      ChecksumType checksum, CompressionCodec compression) throws IOException {
+
+    log.trace("read(ByteBuffer)");
+
+    return writeValue(RecordCodec.get().decode(in, version, checksum), compression, out);
+  }
+
+  /**
+   * Writes the value of a decoded entry to the stream, if there is a stream,
+   * decompressing it with the given codec if it is compressed. Returns false
+   * if the entry is a tombstone.
+   */
+  public static boolean writeValue(
+      RecordCodec.Record record, CompressionCodec compression,
+      OutputStream out) throws IOException {
+
+    if (record.isTombstone()) {
+      return false;
+    }
+
+    if (out != null) {
+      if (!record.isCompressed()) {
+        RecordCodec.get().writeValue(record, out);
+
+      } else if (compression != null) {
+        compression.decompress(record.value(), out);
+
+      } else {
+        throw new IOException("Entry is compressed, but its segment has no compression codec");
+      }
+
+      out.flush();
+    }
+
+    return true;
+  }
+
   private static void writeLogEntry(
       DataOutputStream out, boolean tombstone,
       byte[] keyBytes, byte[] valueBytes) throws IOException {
@@ -105,29 +254,186 @@ public class LogFormatter {
       final InputStream key,
       final InputStream value) throws IOException {
 
+    write(out, key, value, LEGACY_VERSION);
+  }
+
+  public static void write(
+      final OutputStream out,
+      final InputStream key,
+      final InputStream value,
+      final int version) throws IOException {
+
+    write(out, key, value, version, ChecksumType.CRC32);
+  }
+
+  public static void write(
+      final OutputStream out,
+      final InputStream key,
+      final InputStream value,
+      final int version,
+      final ChecksumType checksum) throws IOException {
+
     log.trace("write()");
 
-    final ByteArrayOutputStream keyBuffer = new ByteArrayOutputStream();
-    final ByteArrayOutputStream valueBuffer = new ByteArrayOutputStream();
-    final ByteArrayOutputStream joinedBuffer = new ByteArrayOutputStream();
+    final ByteSlice keyBytes = new ByteSlice(IOUtils.toByteArray(key));
+    final byte[] valueBytes = value == null ? null : IOUtils.toByteArray(value);
+
+    out.write(encode(keyBytes, valueBytes, valueBytes == null ? 0 : valueBytes.length, version, checksum));
+    out.flush();
+  }
+
+  /**
+   * Encodes an entry into a single array sized to hold exactly the entry,
+   * taking the value from the first bytes of the given array, or encoding a
+   * tombstone if the value is null.
+   */
+  public static byte[] encode(ByteSlice key, byte[] value, int valueLength, int version, ChecksumType checksum) {
+    final int length = value == null ? 0 : valueLength;
+    final byte[] entry = new byte[RecordCodec.encodedLength(key, length)];
+
+    RecordCodec.get().encode(ByteBuffer.wrap(entry), key,
+        value == null ? null : ByteBuffer.wrap(value, 0, length), version, checksum);
+
+    return entry;
+  }
+
+  /**
+   * Streams the entry to the channel at its position, reading the value
+   * through a fixed size buffer so that memory use does not grow with the
+   * size of the value. The checksum of the key and value is computed as they
+   * are written, and the header goes in last, once the value length is
+   * known, by combining it with the checksum of the header fields.
+   *
+   * @return the length of the entry
+   */
+  public static long write(
+      final FileChannel channel,
+      final byte[] key,
+      final InputStream value,
+      final int version,
+      final ChecksumType checksum) throws IOException {
+
+    log.trace("write(FileChannel)");
+
+    final long start = channel.position();
+    final byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+    final Checksum bodyCrc = checksum.create();
+
+    long position = start + LogEntry.STATIC_HEADER_SIZE;
+
+    writeFully(channel, ByteBuffer.wrap(key), position);
+    bodyCrc.update(key, 0, key.length);
+    position += key.length;
+
+    long valueLength = 0;
+    int read;
+
+    while ((read = value.read(chunk)) >= 0) {
+      valueLength += read;
+
+      if (key.length + valueLength > Integer.MAX_VALUE - LogEntry.STATIC_HEADER_SIZE) {
+        throw new IOException("Value is too large for a single entry");
+      }
+
+      bodyCrc.update(chunk, 0, read);
+      writeFully(channel, ByteBuffer.wrap(chunk, 0, read), position);
+      position += read;
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(LogEntry.STATIC_HEADER_SIZE);
+    header.position(8);
+    header.putInt(key.length);
+    header.putInt((int) valueLength);
+    header.put((byte) 0);
+    header.position(8);
 
-    final DataOutputStream joinedBufferDataOutputStream = new DataOutputStream(joinedBuffer);
-    final DataOutputStream totalBufferDataOutputStream = new DataOutputStream(out);
+    Checksum headerCrc = checksum.create();
+    ChecksumType.update(headerCrc, header);
 
-    IOUtils.copy(key, keyBuffer);
+    long crc = checksum.combine(headerCrc.getValue(), bodyCrc.getValue(), key.length + valueLength);
+    RecordCodec.putCrc(header, 0, crc, version);
+    header.clear();
 
-    if (value != null) {
-      IOUtils.copy(value, valueBuffer);
+    writeFully(channel, header, start);
+    channel.position(position);
+
+    return position - start;
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
     }
+  }
+
+  /**
+   * Writes already encoded entries as a single batch entry, see
+   * {@link #encodeBatch}.
+   */
+  public static void writeBatch(final OutputStream out, final List<byte[]> entries) throws IOException {
 
-    writeLogEntry(joinedBufferDataOutputStream,
-        value == null, keyBuffer.toByteArray(), valueBuffer.toByteArray());
+    log.trace("writeBatch()");
 
-    final byte[] allBytes = joinedBuffer.toByteArray();
+    List<ByteBuffer[]> encoded = new ArrayList<>(entries.size());
+
+    for (byte[] entry : entries) {
+      encoded.add(new ByteBuffer[]{ByteBuffer.wrap(entry)});
+    }
+
+    for (ByteBuffer buffer : encodeBatch(encoded, ChecksumType.CRC32)) {
+      out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    }
+
+    out.flush();
+  }
+
+  /**
+   * Frames already encoded entries as a single batch entry, whose checksum
+   * covers every entry in it, so that either all of them are recovered or
+   * none. The entries keep their own checksum and can still be read one at a
+   * time.
+   * <p>
+   * Each entry is given as the buffers holding it, the first of which must
+   * hold at least its header. Returns the buffers of the batch: the batch
+   * header followed by the buffers of every entry, with the first buffer of
+   * each replaced by a copy carrying the batched marker.
+   */
+  public static ByteBuffer[] encodeBatch(final List<ByteBuffer[]> entries, final ChecksumType checksum) {
+    List<ByteBuffer> buffers = new ArrayList<>();
+    ByteBuffer header = ByteBuffer.allocate(LogEntry.STATIC_HEADER_SIZE);
+    buffers.add(header);
+
+    Checksum crc = checksum.create();
+    int payloadLength = 0;
+
+    for (ByteBuffer[] entry : entries) {
+      for (int i = 0; i < entry.length; i++) {
+        ByteBuffer buffer = entry[i].duplicate();
+
+        if (i == 0) {
+          ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+          copy.put(buffer);
+          copy.flip();
+          copy.putInt(0, BATCHED_MARKER);
+          buffer = copy;
+        }
+
+        payloadLength += buffer.remaining();
+        buffers.add(buffer);
+      }
+    }
+
+    header.putInt(8, 0);
+    header.putInt(12, payloadLength);
+    header.put(16, (byte) BATCH_FLAG);
+    crc.update(header.array(), 8, LogEntry.STATIC_HEADER_SIZE - 8);
+
+    for (int i = 1; i < buffers.size(); i++) {
+      ChecksumType.update(crc, buffers.get(i).duplicate());
+    }
 
-    totalBufferDataOutputStream.writeLong(crc(allBytes));
-    joinedBuffer.writeTo(totalBufferDataOutputStream);
-    totalBufferDataOutputStream.flush();
+    RecordCodec.putCrc(header, 0, crc.getValue(), CURRENT_VERSION);
 
+    return buffers.toArray(new ByteBuffer[0]);
   }
 }
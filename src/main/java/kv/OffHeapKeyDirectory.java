@@ -0,0 +1,427 @@
+package kv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link KeyDirectory} that keeps keys and locations in direct buffers, so
+ * the heap cost of an index does not grow with the number of keys.
+ * <p>
+ * The table is open addressed with linear probing. Each slot holds a
+ * reference to the key bytes, the key's hash, the entry length and the
+ * segment id and offset packed into a single long. Key bytes are appended
+ * to an arena of direct chunks, and space left behind by removed keys is
+ * reclaimed whenever the table is rebuilt, which it is once that space
+ * makes up half the arena, even if the table itself has room left.
+ */
+public class OffHeapKeyDirectory implements KeyDirectory {
+
+  // slot layout: key reference (8), hash (4), entry length (4), packed location (8)
+  private static final int SLOT_SIZE = 24;
+  private static final int KEY_REF = 0;
+  private static final int HASH = 8;
+  private static final int LENGTH = 12;
+  private static final int PACKED_LOCATION = 16;
+
+  private static final long EMPTY = 0;
+  private static final long DELETED = -1;
+
+  private static final int OFFSET_BITS = 40;
+  private static final long MAX_OFFSET = (1L << OFFSET_BITS) - 1;
+  private static final int MAX_SEGMENT_ID = (1 << (63 - OFFSET_BITS)) - 1;
+
+  private static final int MAX_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / SLOT_SIZE);
+  private static final float MAX_LOAD = 0.7f;
+
+  private static final int MIN_CHUNK_SIZE = 64 * 1024;
+  private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private ByteBuffer table;
+  private int capacity;
+  private int size;
+  // live and deleted slots, deleted slots still lengthen probe sequences
+  private int used;
+
+  private List<ByteBuffer> chunks;
+  private long chunkBytes;
+  // arena bytes of keys that were removed, only reclaimed by a rebuild
+  private long deadBytes;
+
+  public OffHeapKeyDirectory() {
+    this(1024);
+  }
+
+  public OffHeapKeyDirectory(int initialCapacity) {
+    int capacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1)) << 1;
+    allocate(Math.min(capacity, MAX_CAPACITY));
+  }
+
+  @Override
+  public Location get(ByteSlice key) {
+    try {
+      lock.readLock().lock();
+
+      int slot = find(key, hash(key));
+
+      if (slot < 0) {
+        return null;
+      }
+
+      return location(slot);
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void put(ByteSlice key, Location location) {
+    long packed = pack(location);
+
+    try {
+      lock.writeLock().lock();
+
+      int hash = hash(key);
+      int slot = find(key, hash);
+
+      if (slot < 0) {
+        ensureCapacity();
+        slot = insertionSlot(hash);
+
+        if (table.getLong(slot * SLOT_SIZE + KEY_REF) == EMPTY) {
+          used++;
+        }
+
+        size++;
+
+        table.putLong(slot * SLOT_SIZE + KEY_REF, storeKey(key));
+        table.putInt(slot * SLOT_SIZE + HASH, hash);
+      }
+
+      table.putInt(slot * SLOT_SIZE + LENGTH, location.getLength());
+      table.putLong(slot * SLOT_SIZE + PACKED_LOCATION, packed);
+
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void remove(ByteSlice key) {
+    try {
+      lock.writeLock().lock();
+
+      int slot = find(key, hash(key));
+
+      if (slot >= 0) {
+        markDeleted(slot, key);
+      }
+
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean replace(ByteSlice key, Location expected, Location updated) {
+    long packed = pack(updated);
+
+    try {
+      lock.writeLock().lock();
+
+      int slot = find(key, hash(key));
+
+      if (slot < 0 || !location(slot).equals(expected)) {
+        return false;
+      }
+
+      table.putInt(slot * SLOT_SIZE + LENGTH, updated.getLength());
+      table.putLong(slot * SLOT_SIZE + PACKED_LOCATION, packed);
+
+      return true;
+
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(ByteSlice key, Location expected) {
+    try {
+      lock.writeLock().lock();
+
+      int slot = find(key, hash(key));
+
+      if (slot < 0 || !location(slot).equals(expected)) {
+        return false;
+      }
+
+      markDeleted(slot, key);
+
+      return true;
+
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean contains(ByteSlice key) {
+    try {
+      lock.readLock().lock();
+
+      return find(key, hash(key)) >= 0;
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Copies the keys onto the heap, intended for debugging and small
+   * directories only.
+   */
+  @Override
+  public Iterable<ByteSlice> keys() {
+    List<ByteSlice> keys = new ArrayList<>();
+    forEach((key, location) -> keys.add(key));
+    return keys;
+  }
+
+  @Override
+  public void forEach(BiConsumer<ByteSlice, Location> action) {
+    try {
+      lock.readLock().lock();
+
+      for (int slot = 0; slot < capacity; slot++) {
+        long keyRef = table.getLong(slot * SLOT_SIZE + KEY_REF);
+
+        if (keyRef != EMPTY && keyRef != DELETED) {
+          action.accept(loadKey(keyRef), location(slot));
+        }
+      }
+
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    try {
+      lock.readLock().lock();
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Direct memory currently held by the table and the key arena.
+   */
+  public long offHeapBytes() {
+    try {
+      lock.readLock().lock();
+      return (long) table.capacity() + chunkBytes;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void markDeleted(int slot, ByteSlice key) {
+    table.putLong(slot * SLOT_SIZE + KEY_REF, DELETED);
+    size--;
+    deadBytes += 4 + key.length();
+  }
+
+  private void allocate(int capacity) {
+    this.capacity = capacity;
+    this.table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+    this.chunks = new ArrayList<>();
+    this.chunkBytes = 0;
+    this.deadBytes = 0;
+    this.size = 0;
+    this.used = 0;
+  }
+
+  private void ensureCapacity() {
+    boolean tableFull = used + 1 > capacity * MAX_LOAD;
+    // a key removed and put again reuses its deleted slot, but never its arena space
+    boolean arenaWasted = deadBytes > MIN_CHUNK_SIZE && deadBytes > chunkBytes / 2;
+
+    if (!tableFull && !arenaWasted) {
+      return;
+    }
+
+    // grow when mostly live, otherwise rebuilding at the same size is enough to drop deleted slots
+    int newCapacity = tableFull && size + 1 > capacity * MAX_LOAD / 2 ? capacity << 1 : capacity;
+
+    if (newCapacity > MAX_CAPACITY) {
+      throw new IllegalStateException("Off heap key directory is full");
+    }
+
+    rebuild(newCapacity);
+  }
+
+  private void rebuild(int newCapacity) {
+    ByteBuffer oldTable = this.table;
+    List<ByteBuffer> oldChunks = this.chunks;
+    int oldCapacity = this.capacity;
+
+    allocate(newCapacity);
+
+    for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+      long keyRef = oldTable.getLong(oldSlot * SLOT_SIZE + KEY_REF);
+
+      if (keyRef == EMPTY || keyRef == DELETED) {
+        continue;
+      }
+
+      int hash = oldTable.getInt(oldSlot * SLOT_SIZE + HASH);
+      int slot = insertionSlot(hash);
+
+      table.putLong(slot * SLOT_SIZE + KEY_REF, copyKey(oldChunks, keyRef));
+      table.putInt(slot * SLOT_SIZE + HASH, hash);
+      table.putInt(slot * SLOT_SIZE + LENGTH, oldTable.getInt(oldSlot * SLOT_SIZE + LENGTH));
+      table.putLong(slot * SLOT_SIZE + PACKED_LOCATION, oldTable.getLong(oldSlot * SLOT_SIZE + PACKED_LOCATION));
+
+      size++;
+      used++;
+    }
+  }
+
+  private int find(ByteSlice key, int hash) {
+    int mask = capacity - 1;
+    int slot = hash & mask;
+
+    while (true) {
+      long keyRef = table.getLong(slot * SLOT_SIZE + KEY_REF);
+
+      if (keyRef == EMPTY) {
+        return -1;
+      }
+
+      if (keyRef != DELETED
+          && table.getInt(slot * SLOT_SIZE + HASH) == hash
+          && keyEquals(keyRef, key)) {
+
+        return slot;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private int insertionSlot(int hash) {
+    int mask = capacity - 1;
+    int slot = hash & mask;
+
+    while (true) {
+      long keyRef = table.getLong(slot * SLOT_SIZE + KEY_REF);
+
+      if (keyRef == EMPTY || keyRef == DELETED) {
+        return slot;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private Location location(int slot) {
+    long packed = table.getLong(slot * SLOT_SIZE + PACKED_LOCATION);
+    int length = table.getInt(slot * SLOT_SIZE + LENGTH);
+
+    return new Location((int) (packed >>> OFFSET_BITS), packed & MAX_OFFSET, length);
+  }
+
+  private static long pack(Location location) {
+    if (location.getSegmentId() < 0 || location.getSegmentId() > MAX_SEGMENT_ID) {
+      throw new IllegalArgumentException("Segment id out of range: " + location.getSegmentId());
+    }
+
+    if (location.getOffset() < 0 || location.getOffset() > MAX_OFFSET) {
+      throw new IllegalArgumentException("Offset out of range: " + location.getOffset());
+    }
+
+    return ((long) location.getSegmentId() << OFFSET_BITS) | location.getOffset();
+  }
+
+  private static int hash(ByteSlice key) {
+    // murmur3 finalizer, spreads the array hash over the low bits used for probing
+    int h = key.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  // key references are (chunk index << 32 | offset in chunk) + 1, so that zero stays free for EMPTY
+
+  private long storeKey(ByteSlice key) {
+    int required = 4 + key.length();
+    ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+
+    if (chunk == null || chunk.remaining() < required) {
+      int chunkSize = chunk == null ? MIN_CHUNK_SIZE : Math.min(chunk.capacity() << 1, MAX_CHUNK_SIZE);
+      chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, required));
+      chunks.add(chunk);
+      chunkBytes += chunk.capacity();
+    }
+
+    long keyRef = (((long) (chunks.size() - 1) << 32) | chunk.position()) + 1;
+
+    chunk.putInt(key.length());
+
+    for (int i = 0; i < key.length(); i++) {
+      chunk.put(key.byteAt(i));
+    }
+
+    return keyRef;
+  }
+
+  private long copyKey(List<ByteBuffer> fromChunks, long keyRef) {
+    return storeKey(loadKey(fromChunks, keyRef));
+  }
+
+  private ByteSlice loadKey(long keyRef) {
+    return loadKey(this.chunks, keyRef);
+  }
+
+  private static ByteSlice loadKey(List<ByteBuffer> chunks, long keyRef) {
+    ByteBuffer chunk = chunks.get((int) ((keyRef - 1) >>> 32));
+    int offset = (int) (keyRef - 1);
+    int length = chunk.getInt(offset);
+
+    byte[] data = new byte[length];
+
+    for (int i = 0; i < length; i++) {
+      data[i] = chunk.get(offset + 4 + i);
+    }
+
+    return new ByteSlice(data);
+  }
+
+  private boolean keyEquals(long keyRef, ByteSlice key) {
+    ByteBuffer chunk = chunks.get((int) ((keyRef - 1) >>> 32));
+    int offset = (int) (keyRef - 1);
+
+    if (chunk.getInt(offset) != key.length()) {
+      return false;
+    }
+
+    for (int i = 0; i < key.length(); i++) {
+      if (chunk.get(offset + 4 + i) != key.byteAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
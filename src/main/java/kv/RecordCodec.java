@@ -0,0 +1,334 @@
+package kv;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Encodes and decodes entries in place in {@link ByteBuffer}s. The checksum
+ * is computed directly over the buffer, and decoding hands back a view of the
+ * entry in the buffer it was decoded from rather than copies of its key and
+ * value. Each thread has its own codec, see {@link #get()}, holding the
+ * checksums, the decoded record and scratch buffers it reuses, so encoding and decoding
+ * do not allocate once a thread has warmed up.
+ */
+public class RecordCodec {
+
+  private static final ThreadLocal<RecordCodec> CODECS = ThreadLocal.withInitial(RecordCodec::new);
+
+  // values are copied to output streams through an array of this size
+  private static final int TRANSFER_SIZE = 8 * 1024;
+
+  // scratch buffers larger than this are not kept for reuse
+  private static final int MAX_SCRATCH_SIZE = 1024 * 1024;
+
+  private final Checksum[] checksums = new Checksum[ChecksumType.values().length];
+  private final Record record = new Record();
+  private final byte[] transfer = new byte[TRANSFER_SIZE];
+
+  private ByteBuffer scratch = ByteBuffer.allocateDirect(4 * 1024);
+
+  private RecordCodec() {
+  }
+
+  /**
+   * The codec of the calling thread.
+   */
+  public static RecordCodec get() {
+    return CODECS.get();
+  }
+
+  private Checksum checksum(ChecksumType type) {
+    Checksum checksum = checksums[type.ordinal()];
+
+    if (checksum == null) {
+      checksum = type.create();
+      checksums[type.ordinal()] = checksum;
+    }
+
+    checksum.reset();
+    return checksum;
+  }
+
+  public static int encodedLength(ByteSlice key, int valueLength) {
+    return LogEntry.STATIC_HEADER_SIZE + key.length() + valueLength;
+  }
+
+  /**
+   * Encodes the entry at the buffer's position and moves the position past
+   * it. A null value encodes a tombstone, otherwise the remaining bytes of
+   * the value are the value, and its position is left as it was.
+   */
+  public void encode(ByteBuffer out, ByteSlice key, ByteBuffer value, int version, ChecksumType checksumType) {
+    final int start = out.position();
+    final int valueLength = value == null ? 0 : value.remaining();
+
+    out.position(start + 8);
+    out.putInt(key.length());
+    out.putInt(valueLength);
+    out.put((byte) (value == null ? LogFormatter.TOMBSTONE_FLAG : 0));
+    key.writeTo(out);
+
+    if (value != null) {
+      int valuePosition = value.position();
+      out.put(value);
+      value.position(valuePosition);
+    }
+
+    final int end = out.position();
+    final int limit = out.limit();
+
+    out.limit(end);
+    out.position(start + 8);
+    Checksum checksum = checksum(checksumType);
+    ChecksumType.update(checksum, out);
+    out.limit(limit);
+    out.position(end);
+
+    putCrc(out, start, checksum.getValue(), version);
+  }
+
+  /**
+   * Encodes only the header of the entry, for the key and value to be
+   * written from their own buffers after it. A null value encodes a
+   * tombstone. The header is a new buffer, since it is held until the entry
+   * is appended.
+   */
+  public ByteBuffer encodeHeader(ByteSlice key, ByteBuffer value, int version, ChecksumType checksumType) {
+    return encodeHeader(key, value, false, version, checksumType);
+  }
+
+  /**
+   * Encodes only the header of the entry, marking the value as compressed
+   * if asked to.
+   */
+  public ByteBuffer encodeHeader(
+      ByteSlice key, ByteBuffer value, boolean compressed,
+      int version, ChecksumType checksumType) {
+
+    int flags = value == null ? LogFormatter.TOMBSTONE_FLAG : 0;
+
+    if (compressed) {
+      flags |= LogFormatter.COMPRESSED_FLAG;
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(LogEntry.STATIC_HEADER_SIZE);
+    header.putInt(8, key.length());
+    header.putInt(12, value == null ? 0 : value.remaining());
+    header.put(16, (byte) flags);
+
+    Checksum checksum = checksum(checksumType);
+    checksum.update(header.array(), 8, LogEntry.STATIC_HEADER_SIZE - 8);
+    ChecksumType.update(checksum, key.asBuffer());
+
+    if (value != null) {
+      int valuePosition = value.position();
+      ChecksumType.update(checksum, value);
+      value.position(valuePosition);
+    }
+
+    putCrc(header, 0, checksum.getValue(), version);
+    return header;
+  }
+
+  static void putCrc(ByteBuffer entry, int start, long crc, int version) {
+    if (version == LogFormatter.LEGACY_VERSION) {
+      entry.putLong(start, crc);
+    } else {
+      entry.putInt(start, LogFormatter.SYNC_MARKER);
+      entry.putInt(start + 4, (int) crc);
+    }
+  }
+
+  /**
+   * Decodes the entry at the buffer's position and moves the position past
+   * it.
+   *
+   * @see #decode(ByteBuffer, int, int, int, ChecksumType)
+   */
+  public Record decode(ByteBuffer in, int version, ChecksumType checksumType) throws IOException {
+    Record decoded = decode(in, in.position(), in.limit(), version, checksumType);
+    in.position(decoded.end);
+    return decoded;
+  }
+
+  /**
+   * Decodes the entry starting at the given index of the buffer, which must
+   * end before the limit, without changing the buffer's position or limit,
+   * so buffers shared between threads can be decoded from directly. The
+   * returned record belongs to the calling thread and is only valid until
+   * its next decode.
+   */
+  public Record decode(
+      ByteBuffer in, int start, int limit,
+      int version, ChecksumType checksumType) throws IOException {
+
+    if (limit - start < LogEntry.STATIC_HEADER_SIZE) {
+      throw new EOFException("Unexpected EOF when reading header");
+    }
+
+    final long crc;
+
+    if (version == LogFormatter.LEGACY_VERSION) {
+      crc = in.getLong(start);
+
+    } else {
+      int marker = in.getInt(start);
+
+      if (marker != LogFormatter.SYNC_MARKER && marker != LogFormatter.BATCHED_MARKER) {
+        throw new IOException("Missing sync marker");
+      }
+
+      crc = in.getInt(start + 4) & 0xffffffffL;
+    }
+
+    final int keyBytesLength = in.getInt(start + 8);
+    final int valueBytesLength = in.getInt(start + 12);
+    final byte flags = in.get(start + 16);
+
+    if (keyBytesLength < 0 || valueBytesLength < 0) {
+      throw new IOException("Array length is negative");
+    }
+
+    final int keyStart = start + LogEntry.STATIC_HEADER_SIZE;
+    final long end = (long) keyStart + keyBytesLength + valueBytesLength;
+
+    if (end > limit) {
+      throw new EOFException("Unexpected EOF when reading entry");
+    }
+
+    record.set(in, keyStart, keyBytesLength, keyStart + keyBytesLength, valueBytesLength, flags, (int) end);
+
+    ByteBuffer checked = record.view(start + 8, (int) end);
+    Checksum checksum = checksum(checksumType);
+    ChecksumType.update(checksum, checked);
+
+    if (checksum.getValue() != crc) {
+      throw new LogFormatter.CrcMismatchException();
+    }
+
+    return record;
+  }
+
+  /**
+   * Copies the value of the record to the stream, straight from the backing
+   * array of heap buffers and through a reused array otherwise.
+   */
+  public void writeValue(Record record, OutputStream out) throws IOException {
+    if (record.source.hasArray()) {
+      out.write(record.source.array(), record.source.arrayOffset() + record.valueOffset, record.valueLength);
+      return;
+    }
+
+    ByteBuffer value = record.value();
+
+    while (value.hasRemaining()) {
+      int chunk = Math.min(value.remaining(), transfer.length);
+      value.get(transfer, 0, chunk);
+      out.write(transfer, 0, chunk);
+    }
+  }
+
+  /**
+   * The array values are copied through, reused by the calling thread until
+   * its next call into the codec.
+   */
+  public byte[] transfer() {
+    return transfer;
+  }
+
+  /**
+   * A cleared buffer of exactly the given size, reused by the calling thread
+   * until its next call. Sizes too large to be worth keeping around get a
+   * buffer of their own.
+   */
+  public ByteBuffer scratch(int size) {
+    if (size > MAX_SCRATCH_SIZE) {
+      return ByteBuffer.allocate(size);
+    }
+
+    if (scratch.capacity() < size) {
+      scratch = ByteBuffer.allocateDirect(Integer.highestOneBit(size - 1) << 1);
+    }
+
+    scratch.clear();
+    scratch.limit(size);
+    return scratch;
+  }
+
+  /**
+   * An entry decoded in place. Its key and value are views into the buffer
+   * it was decoded from, which are reused for every record decoded from the
+   * same buffer.
+   */
+  public static class Record {
+
+    // the last buffer decoded from, referenced until the thread decodes from another
+    private ByteBuffer source;
+    private ByteBuffer keyView;
+    private ByteBuffer valueView;
+
+    private int keyOffset;
+    private int keyLength;
+    private int valueOffset;
+    private int valueLength;
+    private byte flags;
+    private int end;
+
+    private void set(
+        ByteBuffer source, int keyOffset, int keyLength,
+        int valueOffset, int valueLength, byte flags, int end) {
+
+      if (source != this.source) {
+        this.source = source;
+        this.keyView = source.duplicate();
+        this.valueView = source.duplicate();
+      }
+
+      this.keyOffset = keyOffset;
+      this.keyLength = keyLength;
+      this.valueOffset = valueOffset;
+      this.valueLength = valueLength;
+      this.flags = flags;
+      this.end = end;
+    }
+
+    private ByteBuffer view(int from, int to) {
+      valueView.limit(to);
+      valueView.position(from);
+      return valueView;
+    }
+
+    public boolean isTombstone() {
+      return (flags & LogFormatter.TOMBSTONE_FLAG) != 0;
+    }
+
+    /**
+     * Whether the value is compressed with the codec of its segment, in which
+     * case {@link #value()} is the compressed value.
+     */
+    public boolean isCompressed() {
+      return (flags & LogFormatter.COMPRESSED_FLAG) != 0;
+    }
+
+    public int getKeyLength() {
+      return keyLength;
+    }
+
+    public int getValueLength() {
+      return valueLength;
+    }
+
+    public ByteBuffer key() {
+      keyView.limit(keyOffset + keyLength);
+      keyView.position(keyOffset);
+      return keyView;
+    }
+
+    public ByteBuffer value() {
+      return view(valueOffset, valueOffset + valueLength);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package kv;
+
+/**
+ * What the last startup found while recovering segments, including how much
+ * of the data had to be skipped or truncated because it did not decode.
+ */
+public class RecoveryStats {
+
+  private long segments;
+  private long segmentsFromHints;
+  private long entries;
+  private long skippedRegions;
+  private long skippedBytes;
+  private long truncatedBytes;
+
+  void addHintedSegment() {
+    segments++;
+    segmentsFromHints++;
+  }
+
+  void addScannedSegment(SegmentScanner scanner) {
+    segments++;
+    entries += scanner.getEntries();
+    skippedRegions += scanner.getSkippedRegions();
+    skippedBytes += scanner.getSkippedBytes();
+    truncatedBytes += scanner.getTruncatedBytes();
+  }
+
+  public long getSegments() {
+    return segments;
+  }
+
+  public long getSegmentsFromHints() {
+    return segmentsFromHints;
+  }
+
+  /**
+   * Entries decoded from segments without a usable hint file.
+   */
+  public long getEntries() {
+    return entries;
+  }
+
+  public long getSkippedRegions() {
+    return skippedRegions;
+  }
+
+  public long getSkippedBytes() {
+    return skippedBytes;
+  }
+
+  public long getTruncatedBytes() {
+    return truncatedBytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "segments: %d (%d from hints), entries scanned: %d, skipped: %d bytes in %d regions, truncated: %d bytes",
+        segments, segmentsFromHints, entries, skippedBytes, skippedRegions, truncatedBytes);
+  }
+}
@@ -4,98 +4,598 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.nio.channels.Channels;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
-public class Segment {
+public class Segment implements SegmentWriter {
 
   private static final Logger log = LoggerFactory.getLogger(Segment.class);
 
-  private final Map<ByteSlice, Long> offsets = Collections.synchronizedMap(new HashMap<>());
+  // attempts to reopen a channel that was evicted from the cache while reading
+  private static final int MAX_READ_ATTEMPTS = 8;
+
+  // decompressed blocks larger than this are not kept for reuse
+  private static final int MAX_CACHED_BLOCK_SIZE = 1024 * 1024;
+
+  // the block each thread decompressed last, reads near each other often share a block
+  private static final ThreadLocal<DecompressedBlock> BLOCKS = ThreadLocal.withInitial(DecompressedBlock::new);
+
   private final String filePath;
   private final FileOutputStream fileOutputStream;
   private final int id;
   private final boolean compacted;
   private final long resizeAtBytes;
+  private final ChannelCache channels;
+  private final SegmentHeader header;
+  // null if the segment's values are not compressed
+  private final Compression compression;
+  // only present while the segment can be written to
+  private final HintFile.Writer hints;
   private final ReentrantLock writeLock = new ReentrantLock();
 
+  // bytes in the file, tracked here rather than asked of the channel on every write
+  private volatile long size;
+
+  // set once the segment is sealed, reads of sealed segments never touch the file system
+  private volatile MappedByteBuffer mapped;
+
+  // index of a block compressed segment, set when it is sealed
+  private volatile BlockIndex blocks;
+
+  // index of a sorted segment, set when it is sealed if it reads back
+  private volatile SortedIndex sorted;
+
+  // one reference per reader plus the one the database holds until it
+  // retires the segment, the file is deleted once none are left
+  private final AtomicInteger references = new AtomicInteger(1);
+
   public Segment(
       String filePath, FileOutputStream fileOutputStream,
-      int id, boolean compacted, long resizeAtBytes) {
+      int id, boolean compacted, long resizeAtBytes,
+      ChannelCache channels, SegmentHeader header, Compression compression) {
+
+    if (header.getCompression() != (compression == null ? 0 : compression.getCodec().getId())) {
+      throw new IllegalArgumentException("Compression does not match segment " + header);
+    }
 
     this.filePath = filePath;
     this.fileOutputStream = fileOutputStream;
     this.id = id;
     this.compacted = compacted;
     this.resizeAtBytes = resizeAtBytes;
+    this.channels = channels;
+    this.header = header;
+    this.compression = compression;
+    this.hints = fileOutputStream == null ? null : new HintFile.Writer();
+    // segments are only ever opened for writing right after their header is written
+    this.size = fileOutputStream == null ? 0 : header.getLength();
   }
 
-  public Iterable<ByteSlice> keys() {
-    return this.offsets.keySet();
-  }
+  /**
+   * Appends the entry and returns where it was written, for the caller to
+   * record in the {@link KeyDirectory}.
+   */
+  public KeyDirectory.Location write(ByteSlice key, InputStream value) throws IOException {
 
-  public void put(ByteSlice key, long offset) {
-    offsets.put(key, offset);
-    log.trace("Updating offset of {} to {}", key, offset);
+    checkWrite();
+
+    EncodedEntry entry = EncodedEntry.encode(key, value, header.getVersion(), header.getChecksum(), compression);
+
+    return write(Collections.singletonList(entry)).get(0);
   }
 
-  public void write(ByteSlice key, InputStream value) throws IOException {
+  /**
+   * Appends the entries with a single gathering write of their buffers and
+   * returns where each of their records was written, in the same order.
+   * Streamed entries are written on their own, between the writes of the
+   * entries around them.
+   * <p>
+   * If any write fails, the file is truncated back to where it ended before
+   * the call and none of the entries are added to the hints, so later
+   * appends land where the segment expects them.
+   */
+  public List<KeyDirectory.Location> write(List<EncodedEntry> entries) throws IOException {
 
     checkWrite();
 
+    for (EncodedEntry entry : entries) {
+      if (entry.getVersion() != header.getVersion() || entry.getChecksum() != header.getChecksum()
+          || entry.getCompression() != header.getCompression()) {
+        throw new IOException("Entry format v" + entry.getVersion() + "/" + entry.getChecksum()
+            + "/compression " + entry.getCompression() + " does not match segment " + header);
+      }
+    }
+
     try {
       writeLock.lock();
 
-      long currentOffset = fileOutputStream.getChannel().position();
-      LogFormatter.write(fileOutputStream, key.toStream(), value);
-      put(key, currentOffset);
+      FileChannel channel = fileOutputStream.getChannel();
+      List<KeyDirectory.Location> locations = new ArrayList<>(entries.size());
+      // the record written at each location, hinted once all of them are written
+      List<EncodedEntry> records = new ArrayList<>(entries.size());
+      long start = this.size;
+
+      try {
+        append(channel, entries, locations, records);
+
+      } catch (IOException | RuntimeException e) {
+        this.size = start;
+        truncate(channel, start, e);
+        throw e;
+      }
+
+      for (int i = 0; i < records.size(); i++) {
+        EncodedEntry record = records.get(i);
+        KeyDirectory.Location location = locations.get(i);
+        int valueLength = location.getLength() - LogEntry.STATIC_HEADER_SIZE - record.getKey().length();
+
+        hints.append(record.getKey(), location.getOffset(), valueLength, record.isTombstone());
+      }
+
+      return locations;
 
     } finally {
       writeLock.unlock();
     }
   }
 
-  public boolean read(ByteSlice key, OutputStream out) throws IOException {
-    long position = this.offsets.get(key);
+  private void append(
+      FileChannel channel, List<EncodedEntry> entries,
+      List<KeyDirectory.Location> locations, List<EncodedEntry> records) throws IOException {
+
+    int next = 0;
+
+    while (next < entries.size()) {
+      EncodedEntry entry = entries.get(next);
+
+      if (entry.isStreamed()) {
+        long offset = this.size;
+        long length = LogFormatter.write(
+            channel, entry.getKey().copyData(), entry.getStream(), header.getVersion(), header.getChecksum());
+
+        this.size += length;
+        addRecord(locations, records, entry, offset, (int) length);
+        next++;
+        continue;
+      }
+
+      int end = next;
+      List<ByteBuffer> buffers = new ArrayList<>();
+
+      while (end < entries.size() && !entries.get(end).isStreamed()) {
+        Collections.addAll(buffers, entries.get(end).getBuffers());
+        end++;
+      }
+
+      long currentOffset = this.size;
+      this.size += writeFully(channel, buffers.toArray(new ByteBuffer[0]));
+
+      for (int i = next; i < end; i++) {
+        entry = entries.get(i);
+        long recordOffset = currentOffset + entry.getRecordsOffset();
+
+        for (EncodedEntry record : entry.getRecords()) {
+          addRecord(locations, records, record, recordOffset, record.getLength());
+          recordOffset += record.getLength();
+        }
+
+        currentOffset += entry.getLength();
+      }
+
+      next = end;
+    }
+}
+
+  // drops whatever a failed append left past the end of the segment
+  private void truncate(FileChannel channel, long size, Exception cause) {
+    try {
+      channel.truncate(size);
+      channel.position(size);
+
+    } catch (IOException | RuntimeException e) {
+      cause.addSuppressed(e);
+    }
+  }
+
+  /**
+   * Writes every buffer at the channel's position, which a gathering write
+   * may take more than one call to do.
+   */
+  static long writeFully(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+    long written = 0;
+    int first = 0;
+
+    while (first < buffers.length) {
+      written += channel.write(buffers, first, buffers.length - first);
+
+      while (first < buffers.length && !buffers[first].hasRemaining()) {
+        first++;
+      }
+    }
+
+    return written;
+  }
+
+  private void addRecord(
+      List<KeyDirectory.Location> locations, List<EncodedEntry> records,
+      EncodedEntry record, long offset, int length) {
+
+    locations.add(new KeyDirectory.Location(this.id, offset, length));
+    records.add(record);
+
+    log.trace("Wrote {} at offset {}", record.getKey(), offset);
+  }
+
+  /**
+   * Forces everything written to the segment so far to disk.
+   */
+  public void force() throws IOException {
+    checkWrite();
 
-    try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.filePath, "r")) {
+    this.fileOutputStream.getChannel().force(false);
+  }
+
+  public boolean read(KeyDirectory.Location location, OutputStream out) throws IOException {
+    long position = location.getOffset();
+    int length = location.getLength();
+
+    BlockIndex blocks = this.blocks;
+
+    if (blocks != null) {
+      return readFromBlock(blocks, position, length, out);
+    }
+
+    MappedByteBuffer mapped = this.mapped;
+
+    if (mapped != null) {
+      return readMapped(mapped, position, length, out);
+    }
+
+    for (int attempt = 1; ; attempt++) {
+      FileChannel channel = this.channels.get(this.filePath);
+
+      try {
+        return readPositional(channel, position, length, out);
+
+      } catch (ClosedByInterruptException e) {
+        throw e;
+
+      } catch (ClosedChannelException e) {
+        if (attempt >= MAX_READ_ATTEMPTS) {
+          throw e;
+        }
+
+        log.trace("Channel for {} was closed while reading, reopening", this.filePath);
+      }
+    }
+  }
+
+  /**
+   * Reads the entry at the location with an asynchronous positional read,
+   * so neither the caller nor any other thread waits on the file while the
+   * read is in flight. The future completes with the value, or null if the
+   * entry is a tombstone, on the executor of the channel cache. Meant for
+   * segments that are not sealed yet, a sealed one is cheaper to read from
+   * its mapping. Entries of block compressed segments are not where their
+   * location says in the file, they can only be read by
+   * {@link #read(KeyDirectory.Location, OutputStream)}.
+   */
+  public CompletableFuture<byte[]> readAsync(KeyDirectory.Location location) {
+    CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+    if (header.isBlocks()) {
+      result.completeExceptionally(new IOException("Block compressed segment cannot be read asynchronously"));
+      return result;
+    }
+
+    new AsyncRead(location, result).start();
+    return result;
+  }
+
+  private boolean readPositional(
+      FileChannel channel, long position,
+      int length, OutputStream out) throws IOException {
 
-      log.trace("Seeking to offset of {} for {}", key, position);
+    log.trace("Reading {} bytes at offset {}", length, position);
 
-      randomAccessFile.seek(position);
+    ByteBuffer data = RecordCodec.get().scratch(length);
+    readFully(channel, data, position, length);
+    data.flip();
+
+    return LogFormatter.read(data, out, header.getVersion(), header.getChecksum(), codec());
+  }
 
-      try (InputStream data = Channels.newInputStream(randomAccessFile.getChannel())) {
+  private static void readFully(
+      FileChannel channel, ByteBuffer buffer,
+      long position, int length) throws IOException {
 
-        log.trace("Reading data at offset");
+    int read = 0;
 
-        return LogFormatter.read(data, out);
+    while (read < length) {
+      int n = channel.read(buffer, position + read);
+
+      if (n < 0) {
+        throw new EOFException("Unexpected EOF when reading entry");
       }
+
+      read += n;
     }
   }
 
-  public void delete(ByteSlice key) throws IOException {
-    write(key, null);
+  private boolean readMapped(
+      MappedByteBuffer mapped, long position,
+      int length, OutputStream out) throws IOException {
+
+    if (position < 0 || length < 0 || position + length > mapped.limit()) {
+      throw new IOException("Entry at offset " + position + " is outside of segment: " + filePath);
+    }
+
+    log.trace("Reading {} mapped bytes at offset {}", length, position);
+
+    // decoded in place, the mapping is shared by every reader
+    RecordCodec.Record record = RecordCodec.get().decode(
+        mapped, (int) position, (int) (position + length), header.getVersion(), header.getChecksum());
+
+    return LogFormatter.writeValue(record, codec(), out);
+  }
+
+  private boolean readFromBlock(
+      BlockIndex blocks, long position,
+      int length, OutputStream out) throws IOException {
+
+    int block = blocks.find(position);
+
+    if (block < 0 || length < 0
+        || position + length > blocks.getLogicalStart(block) + blocks.getRawLength(block)) {
+      throw new IOException("Entry at offset " + position + " is outside of segment: " + filePath);
+    }
+
+    log.trace("Reading {} bytes at offset {} from block {}", length, position, block);
+
+    ByteBuffer raw = decompressBlock(blocks, block);
+    int start = (int) (position - blocks.getLogicalStart(block));
+
+    RecordCodec.Record record = RecordCodec.get().decode(
+        raw, start, start + length, header.getVersion(), header.getChecksum());
+
+    return LogFormatter.writeValue(record, codec(), out);
+  }
+
+  private ByteBuffer decompressBlock(BlockIndex blocks, int block) throws IOException {
+    DecompressedBlock cached = BLOCKS.get();
+
+    if (cached.blocks == blocks && cached.block == block) {
+      return cached.buffer;
+    }
+
+    int storedLength = blocks.getStoredLength(block);
+    int rawLength = blocks.getRawLength(block);
+    ByteBuffer stored;
+    MappedByteBuffer mapped = this.mapped;
+
+    if (mapped != null) {
+      stored = mapped.duplicate();
+      stored.position((int) blocks.getPosition(block));
+      stored.limit(stored.position() + storedLength);
+    } else {
+      stored = readStored(blocks.getPosition(block), storedLength);
+    }
+
+    if (rawLength > MAX_CACHED_BLOCK_SIZE) {
+      byte[] data = new byte[rawLength];
+      BlockIndex.decompress(stored, rawLength, codec(), data);
+      return ByteBuffer.wrap(data);
+    }
+
+    if (cached.data.length < rawLength) {
+      cached.data = new byte[Math.max(rawLength, cached.data.length * 2)];
+      cached.buffer = ByteBuffer.wrap(cached.data);
+    }
+
+    // forgotten first, so a failed decompression is never mistaken for the block
+    cached.blocks = null;
+    BlockIndex.decompress(stored, rawLength, codec(), cached.data);
+    cached.blocks = blocks;
+    cached.block = block;
+
+    return cached.buffer;
+  }
+
+  private ByteBuffer readStored(long position, int length) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      FileChannel channel = this.channels.get(this.filePath);
+
+      try {
+        ByteBuffer data = RecordCodec.get().scratch(length);
+        readFully(channel, data, position, length);
+        data.flip();
+        return data;
+
+      } catch (ClosedByInterruptException e) {
+        throw e;
+
+      } catch (ClosedChannelException e) {
+        if (attempt >= MAX_READ_ATTEMPTS) {
+          throw e;
+        }
+
+        log.trace("Channel for {} was closed while reading, reopening", this.filePath);
+      }
+    }
+  }
+
+  /**
+   * Reads the value of the key from a sorted segment, see
+   * {@link SortedIndex}, returning false if the segment does not hold the
+   * key or holds a tombstone for it.
+   */
+  public boolean read(ByteSlice key, OutputStream out) throws IOException {
+    SortedIndex sorted = sortedIndex();
+    int record = sorted.floor(key);
+
+    if (record < 0) {
+      return false;
+    }
+
+    long position = sorted.getOffset(record);
+    long end = sorted.getEnd(record);
+
+    while (position < end) {
+      int length = entryLength(sorted, position);
+      int keyLength = readRange(position + 8, 4).getInt();
+      ByteBuffer entryKey = readRange(position + LogEntry.STATIC_HEADER_SIZE, keyLength);
+      int cmp = key.compareTo(entryKey);
+
+      if (cmp == 0) {
+        return read(new KeyDirectory.Location(id, position, length), out);
+      }
+
+      if (cmp < 0) {
+        return false;
+      }
+
+      position += length;
+    }
+
+    return false;
+  }
+
+  /**
+   * Bloom filter of the keys of a sorted segment, null if it has none.
+   */
+  public BloomFilter getFilter() throws IOException {
+    return sortedIndex().getFilter();
+  }
+
+  /**
+   * A cursor over the entries of a sorted segment, in key order.
+   */
+  public Cursor cursor() throws IOException {
+    return new Cursor(sortedIndex());
+  }
+
+  private SortedIndex sortedIndex() throws IOException {
+    SortedIndex sorted = this.sorted;
+
+    if (sorted == null) {
+      throw new IOException("Segment is not sorted: " + filePath);
+    }
+
+    return sorted;
+  }
+
+  // length of the entry at the position, from its header
+  private int entryLength(SortedIndex sorted, long position) throws IOException {
+    ByteBuffer header = readRange(position + 8, 8);
+    int keyLength = header.getInt();
+    int valueLength = header.getInt();
+    long length = (long) LogEntry.STATIC_HEADER_SIZE + keyLength + valueLength;
+
+    if (keyLength < 0 || valueLength < 0 || position + length > sorted.getEntriesEnd()) {
+      throw new IOException("Invalid entry at offset " + position + " of sorted segment: " + filePath);
+    }
+
+    return (int) length;
+  }
+
+  /**
+   * The bytes of the file at the position, a view of the mapping or, for
+   * files too large to map, read into a buffer the calling thread reuses.
+   */
+  private ByteBuffer readRange(long position, int length) throws IOException {
+    MappedByteBuffer mapped = this.mapped;
+
+    if (mapped == null) {
+      return readStored(position, length);
+    }
+
+    ByteBuffer range = mapped.duplicate();
+    range.position((int) position);
+    range.limit((int) position + length);
+    return range;
+  }
+
+  private CompressionCodec codec() {
+    return compression == null ? null : compression.getCodec();
+  }
+
+  public KeyDirectory.Location delete(ByteSlice key) throws IOException {
+    return write(key, null);
   }
 
   public void deleteFile() throws IOException {
     log.trace("deleteFile()");
 
     this.close();
+    this.channels.evict(filePath);
 
     File file = new File(filePath);
 
     if (!file.delete()) {
       throw new IOException("Could not delete segment: " + filePath);
     }
+
+    Files.deleteIfExists(HintFile.pathFor(file.toPath()));
   }
 
-  public boolean contains(ByteSlice key) {
-    return offsets.containsKey(key);
+  /**
+   * Takes a reference to the segment, which keeps its file from being
+   * deleted until {@link #release()}. False if the segment was retired and
+   * its last reference is already gone, its file may no longer exist.
+   */
+  public boolean retain() {
+    while (true) {
+      int count = this.references.get();
+
+      if (count == 0) {
+        return false;
+      }
+
+      if (this.references.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Releases a reference taken by {@link #retain()}, deleting the file if
+   * the segment was retired and this was its last reference.
+   */
+  public void release() {
+    if (this.references.decrementAndGet() != 0) {
+      return;
+    }
+
+    try {
+      this.deleteFile();
+    } catch (IOException e) {
+      log.error("Could not delete retired segment " + this.filePath, e);
+    }
+  }
+
+  /**
+   * Drops the reference held since the segment was created, once it has
+   * been replaced and no new reader can find it. The file is deleted now if
+   * nobody is reading it, or else by the last reader to release it.
+   */
+  public void retire() {
+    log.trace("Retiring {}", this.filePath);
+
+    this.release();
   }
 
   public boolean isAtCapacity() throws IOException {
@@ -103,7 +603,15 @@ public class Segment {
 
     checkWrite();
 
-    return this.fileOutputStream.getChannel().size() >= this.resizeAtBytes;
+    return this.size >= this.resizeAtBytes;
+  }
+
+  public SegmentHeader getHeader() {
+    return this.header;
+  }
+
+  public Compression getCompression() {
+    return this.compression;
   }
 
   public int getId() {
@@ -114,6 +622,72 @@ public class Segment {
     return compacted;
   }
 
+  public boolean isSealed() {
+    return this.mapped != null;
+  }
+
+  /**
+   * Whether the segment is sorted and its index read back, its keys are
+   * then looked up with {@link #read(ByteSlice, OutputStream)}.
+   */
+  public boolean isSorted() {
+    return this.sorted != null;
+  }
+
+  /**
+   * Closes the segment for writing, writes its hint file and maps its file
+   * into memory. Sealed segments are immutable, so the mapping stays valid
+   * for the life of the segment. Files too large for a single mapping keep
+   * reading from disk.
+   */
+  public void seal() throws IOException {
+
+    log.trace("Sealing segment");
+
+    this.close();
+
+    if (this.hints != null) {
+      this.hints.write(Paths.get(this.filePath));
+    }
+
+    try (FileChannel channel = new RandomAccessFile(this.filePath, "r").getChannel()) {
+      long size = channel.size();
+
+      if (header.isBlocks()) {
+        this.blocks = BlockIndex.read(channel, header);
+      }
+
+      if (header.isSorted()) {
+        try {
+          this.sorted = SortedIndex.read(channel, header);
+
+        } catch (IOException e) {
+          log.warn("Index of sorted segment {} is invalid, it can only be read by location: {}",
+              this.filePath, e.getMessage());
+        }
+      }
+
+      if (size > Integer.MAX_VALUE) {
+        log.debug("Segment {} is too large to map, size: {}", this.filePath, size);
+        return;
+      }
+
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      this.mapped = mapped;
+    }
+  }
+
+  /**
+   * Writes the hint file describing everything written to this segment as
+   * the hint of the segment file at the given path, used when the segment is
+   * renamed into place after being written.
+   */
+  public void writeHints(Path segmentPath) throws IOException {
+    checkWrite();
+
+    this.hints.write(segmentPath);
+  }
+
   public void close() throws IOException {
 
     log.trace("Closing segment");
@@ -129,25 +703,126 @@ public class Segment {
     }
   }
 
+  public String getFilePath() {
+    return this.filePath;
+  }
+
   @Override
   public String toString() {
-    return this.offsets.entrySet()
-        .stream().map(this::entryToString)
-        .collect(Collectors.toList()).toString();
+    return this.filePath;
   }
 
-  private String entryToString(Map.Entry<ByteSlice, Long> entry) {
-    try {
-      ByteSlice key = entry.getKey();
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-      boolean found = this.read(key, out);
+  // reads an entry into a buffer of its own, reopening the channel if it is evicted meanwhile
+  private class AsyncRead implements CompletionHandler<Integer, Void> {
+    private final long position;
+    private final ByteBuffer data;
+    private final CompletableFuture<byte[]> result;
 
-      return String.format("%s => %s",
-          new String(key.copyData(), StandardCharsets.UTF_8),
-          found ? new String(out.toByteArray(), StandardCharsets.UTF_8) : "<tombstone>");
+    private AsynchronousFileChannel channel;
+    private int attempt;
 
-    } catch (IOException e) {
-      return "IOException";
+    private AsyncRead(KeyDirectory.Location location, CompletableFuture<byte[]> result) {
+      this.position = location.getOffset();
+      this.data = ByteBuffer.allocate(location.getLength());
+      this.result = result;
+    }
+
+    private void start() {
+      attempt++;
+      data.clear();
+
+      try {
+        channel = channels.getAsync(filePath);
+        channel.read(data, position, null, this);
+
+      } catch (IOException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    }
+
+    @Override
+    public void completed(Integer read, Void ignored) {
+      if (read < 0) {
+        result.completeExceptionally(new EOFException("Unexpected EOF when reading entry"));
+        return;
+      }
+
+      if (data.hasRemaining()) {
+        channel.read(data, position + data.position(), null, this);
+        return;
+      }
+
+      data.flip();
+
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean found = LogFormatter.read(data, out, header.getVersion(), header.getChecksum(), codec());
+        result.complete(found ? out.toByteArray() : null);
+
+      } catch (IOException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    }
+
+    @Override
+    public void failed(Throwable error, Void ignored) {
+      if (error instanceof ClosedChannelException && attempt < MAX_READ_ATTEMPTS) {
+        log.trace("Channel for {} was closed while reading, reopening", filePath);
+        start();
+        return;
+      }
+
+      result.completeExceptionally(error);
+    }
+  }
+
+  private static class DecompressedBlock {
+    private BlockIndex blocks;
+    private int block;
+    private byte[] data = new byte[0];
+    private ByteBuffer buffer = ByteBuffer.wrap(data);
+  }
+
+  /**
+   * Walks the entries of a sorted segment in key order, reading only their
+   * headers and keys.
+   */
+  public class Cursor {
+    private final SortedIndex sorted;
+    private long position;
+    private ByteSlice key;
+    private KeyDirectory.Location location;
+
+    private Cursor(SortedIndex sorted) {
+      this.sorted = sorted;
+      this.position = header.getLength();
+    }
+
+    /**
+     * Moves to the next entry, returning false once there is none.
+     */
+    public boolean next() throws IOException {
+      if (position >= sorted.getEntriesEnd()) {
+        return false;
+      }
+
+      int length = entryLength(sorted, position);
+      int keyLength = readRange(position + 8, 4).getInt();
+      byte[] keyBytes = new byte[keyLength];
+      readRange(position + LogEntry.STATIC_HEADER_SIZE, keyLength).get(keyBytes);
+
+      key = new ByteSlice(keyBytes);
+      location = new KeyDirectory.Location(id, position, length);
+      position += length;
+      return true;
+    }
+
+    public ByteSlice key() {
+      return key;
+    }
+
+    public KeyDirectory.Location location() {
+      return location;
     }
   }
 }
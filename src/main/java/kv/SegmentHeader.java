@@ -0,0 +1,321 @@
+package kv;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Checksum;
+
+/**
+ * Header at the start of every segment file written in a versioned format:
+ * magic (4), format version (2), flags (2) and the length of the header (4).
+ * Readers skip the whole header length, so later versions can append fields
+ * without moving where entries start.
+ * <p>
+ * Segment files from before the header existed start directly with an
+ * entry, whose first four bytes are always zero, so they are recognized as
+ * {@link LogFormatter#LEGACY_VERSION} with an empty header.
+ * <p>
+ * From version 2 on, the low bits of the flags name the {@link ChecksumType}
+ * of the segment's entries, earlier versions always use
+ * {@link ChecksumType#CRC32}. From version 3 on, the next four bits name
+ * the {@link CompressionCodec} of the segment's compressed entries, zero if
+ * it has none. From version 4 on, {@link #BLOCKS_FLAG} marks a segment whose
+ * entries are packed into blocks compressed with that codec. From version 5
+ * on, {@link #DICTIONARY_FLAG} marks a segment whose codec is primed with a
+ * dictionary, which follows the fixed fields: its length (4), its checksum
+ * (4) and its bytes. From version 6 on, {@link #SORTED_FLAG} marks a segment
+ * whose entries are sorted by key and followed by a {@link SortedIndex}.
+ * From version 7 on, {@link #FILTER_FLAG} marks a sorted segment whose
+ * index holds a {@link BloomFilter} of its keys.
+ */
+public class SegmentHeader {
+
+  // "KVDB"
+  public static final int MAGIC = 0x4B564442;
+  public static final int SIZE = 12;
+
+  // flag bits naming the checksum algorithm
+  public static final int CHECKSUM_MASK = 0x0F;
+
+  // flag bits naming the compression codec
+  public static final int COMPRESSION_MASK = 0xF0;
+  private static final int COMPRESSION_SHIFT = 4;
+
+  // entries are held in compressed blocks, see BlockIndex
+  public static final int BLOCKS_FLAG = 0x100;
+
+  // the codec is primed with the dictionary stored in the header
+  public static final int DICTIONARY_FLAG = 0x200;
+
+  // entries are sorted by key, see SortedIndex
+  public static final int SORTED_FLAG = 0x400;
+
+  // the sorted index is followed by a bloom filter, see BloomFilter
+  public static final int FILTER_FLAG = 0x800;
+
+  private static final int DICTIONARY_HEADER_SIZE = 8;
+
+  public static final SegmentHeader LEGACY = new SegmentHeader(LogFormatter.LEGACY_VERSION, 0, 0);
+  public static final SegmentHeader CURRENT = current(ChecksumType.CRC32, null);
+
+  private final int version;
+  private final int flags;
+  private final int length;
+  // null unless the codec has a dictionary
+  private final byte[] dictionary;
+
+  public SegmentHeader(int version, int flags, int length) {
+    this(version, flags, length, null);
+  }
+
+  private SegmentHeader(int version, int flags, int length, byte[] dictionary) {
+    this.version = version;
+    this.flags = flags;
+    this.length = length;
+    this.dictionary = dictionary;
+  }
+
+  /**
+   * Header of a segment in the current format whose entries are protected
+   * with the given checksum, and compressed with the given compression if
+   * it is not null.
+   */
+  public static SegmentHeader current(ChecksumType checksum, Compression compression) {
+    return current(checksum.getId(), compression);
+  }
+
+  private static SegmentHeader current(int flags, Compression compression) {
+    if (compression == null) {
+      return new SegmentHeader(LogFormatter.CURRENT_VERSION, flags, SIZE);
+    }
+
+    flags |= compression.getCodec().getId() << COMPRESSION_SHIFT;
+    byte[] dictionary = compression.getCodec().getDictionary();
+
+    if (dictionary == null) {
+      return new SegmentHeader(LogFormatter.CURRENT_VERSION, flags, SIZE);
+    }
+
+    return new SegmentHeader(LogFormatter.CURRENT_VERSION, flags | DICTIONARY_FLAG,
+        SIZE + DICTIONARY_HEADER_SIZE + dictionary.length, dictionary);
+  }
+
+  /**
+   * Header of a segment like this one, except with the given compression.
+   */
+  public SegmentHeader withCompression(Compression compression) {
+    return current(flags & CHECKSUM_MASK, compression);
+  }
+
+  /**
+   * Header of a segment like this one whose entries are packed into blocks
+   * compressed with the given compression.
+   */
+  public SegmentHeader withBlocks(Compression compression) {
+    return current((flags & CHECKSUM_MASK) | BLOCKS_FLAG, compression);
+  }
+
+  /**
+   * Header of a segment like this one whose entries are sorted by key.
+   */
+  public SegmentHeader withSorted() {
+    return new SegmentHeader(version, flags | SORTED_FLAG, length, dictionary);
+  }
+
+  /**
+   * Header of a sorted segment like this one whose index holds a bloom
+   * filter of its keys.
+   */
+  public SegmentHeader withFilter() {
+    return new SegmentHeader(version, flags | FILTER_FLAG, length, dictionary);
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public int getFlags() {
+    return flags;
+  }
+
+  public ChecksumType getChecksum() {
+    if (version < LogFormatter.CHECKSUM_VERSION) {
+      return ChecksumType.CRC32;
+    }
+
+    try {
+      return ChecksumType.fromId(flags & CHECKSUM_MASK);
+    } catch (IOException e) {
+      // checked when the header is read
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Id of the {@link CompressionCodec} of the segment, zero if its entries
+   * are never compressed.
+   */
+  public int getCompression() {
+    return version < LogFormatter.COMPRESSION_VERSION ? 0 : (flags & COMPRESSION_MASK) >>> COMPRESSION_SHIFT;
+  }
+
+  public boolean isBlocks() {
+    return version >= LogFormatter.BLOCK_VERSION && (flags & BLOCKS_FLAG) != 0;
+  }
+
+  public boolean isSorted() {
+    return version >= LogFormatter.SORTED_VERSION && (flags & SORTED_FLAG) != 0;
+  }
+
+  public boolean isFiltered() {
+    return version >= LogFormatter.FILTER_VERSION && (flags & FILTER_FLAG) != 0;
+  }
+
+  /**
+   * Dictionary the codec of the segment is primed with, null if there is
+   * none.
+   */
+  public byte[] getDictionary() {
+    return dictionary;
+  }
+
+  /**
+   * Offset of the first entry in the segment file.
+   */
+  public int getLength() {
+    return length;
+  }
+
+  public void write(OutputStream out) throws IOException {
+    DataOutputStream dataOutputStream = new DataOutputStream(out);
+    dataOutputStream.writeInt(MAGIC);
+    dataOutputStream.writeShort(version);
+    dataOutputStream.writeShort(flags);
+    dataOutputStream.writeInt(length);
+
+    if (dictionary != null) {
+      Checksum checksum = getChecksum().create();
+      checksum.update(dictionary, 0, dictionary.length);
+
+      dataOutputStream.writeInt(dictionary.length);
+      dataOutputStream.writeInt((int) checksum.getValue());
+      dataOutputStream.write(dictionary);
+    }
+
+    dataOutputStream.flush();
+  }
+
+  public static SegmentHeader read(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return read(channel);
+    }
+  }
+
+  public static SegmentHeader read(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(SIZE);
+
+    while (header.hasRemaining()) {
+      if (channel.read(header, header.position()) < 0) {
+        break;
+      }
+    }
+
+    if (header.position() < SIZE || header.getInt(0) != MAGIC) {
+      return LEGACY;
+    }
+
+    int version = header.getShort(4) & 0xffff;
+    int flags = header.getShort(6) & 0xffff;
+    int length = header.getInt(8);
+
+    if (version > LogFormatter.CURRENT_VERSION) {
+      throw new IOException("Unsupported segment format version: " + version);
+    }
+
+    if (length < SIZE || length > channel.size()) {
+      throw new IOException("Invalid segment header length: " + length);
+    }
+
+    if (version >= LogFormatter.CHECKSUM_VERSION) {
+      ChecksumType.fromId(flags & CHECKSUM_MASK);
+    }
+
+    byte[] dictionary = null;
+
+    if (version >= LogFormatter.DICTIONARY_VERSION && (flags & DICTIONARY_FLAG) != 0) {
+      dictionary = readDictionary(channel, length, ChecksumType.fromId(flags & CHECKSUM_MASK));
+    }
+
+    SegmentHeader read = new SegmentHeader(version, flags, length, dictionary);
+
+    if ((read.isBlocks() || dictionary != null) && read.getCompression() == 0) {
+      throw new IOException("Segment needs a compression codec but names none");
+    }
+
+    if (read.isBlocks() && read.isSorted()) {
+      throw new IOException("Segment cannot be both block compressed and sorted");
+    }
+
+    if (read.isFiltered() && !read.isSorted()) {
+      throw new IOException("Only sorted segments can have a bloom filter");
+    }
+
+    return read;
+  }
+
+  private static byte[] readDictionary(FileChannel channel, int length, ChecksumType checksumType) throws IOException {
+    if (length < SIZE + DICTIONARY_HEADER_SIZE) {
+      throw new IOException("Invalid segment header length: " + length);
+    }
+
+    ByteBuffer fields = ByteBuffer.allocate(length - SIZE);
+
+    while (fields.hasRemaining()) {
+      if (channel.read(fields, SIZE + fields.position()) < 0) {
+        throw new IOException("Unexpected EOF when reading segment dictionary");
+      }
+    }
+
+    int dictionaryLength = fields.getInt(0);
+
+    if (dictionaryLength != length - SIZE - DICTIONARY_HEADER_SIZE) {
+      throw new IOException("Invalid segment dictionary length: " + dictionaryLength);
+    }
+
+    byte[] dictionary = new byte[dictionaryLength];
+    fields.position(DICTIONARY_HEADER_SIZE);
+    fields.get(dictionary);
+
+    Checksum checksum = checksumType.create();
+    checksum.update(dictionary, 0, dictionary.length);
+
+    if ((int) checksum.getValue() != fields.getInt(4)) {
+      throw new IOException("Segment dictionary failed its checksum");
+    }
+
+    return dictionary;
+  }
+
+  @Override
+  public String toString() {
+    String format = String.format("v%d/%s", version, getChecksum());
+
+    if (getCompression() != 0) {
+      format += (isBlocks() ? "/blocks " : "/compression ") + getCompression();
+    }
+
+    if (dictionary != null) {
+      format += "/dictionary " + dictionary.length;
+    }
+
+    if (isSorted()) {
+      format += isFiltered() ? "/sorted/filtered" : "/sorted";
+    }
+
+    return format;
+  }
+}
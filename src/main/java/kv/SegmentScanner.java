@@ -0,0 +1,451 @@
+package kv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Checksum;
+
+/**
+ * Recovers the index of a segment file by reading entry headers and keys
+ * only. Values are skipped by their length, or streamed through the crc
+ * when checksums are verified, so neither the bytes read nor the memory
+ * allocated grow with the size of the values.
+ * <p>
+ * What happens at an invalid entry depends on the segment. The segment that
+ * was being appended to when the database stopped is truncated there, since
+ * anything after it is a torn write. Other segments are resynchronized at
+ * the next sync marker, or for legacy segments without markers, by trying
+ * every following byte.
+ * <p>
+ * The entries of a batch are handed to the consumer only once the whole
+ * batch has been read and, when checksums are verified, its crc matched.
+ * <p>
+ * Block compressed segments are scanned block by block through their
+ * {@link BlockIndex}, always verifying checksums, since every entry is
+ * decompressed anyway. A block that does not decode is skipped from the
+ * first invalid entry on, and a segment whose index does not decode is
+ * skipped whole.
+ */
+public class SegmentScanner implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(SegmentScanner.class);
+
+  private static final int WINDOW_SIZE = 64 * 1024;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final SegmentHeader header;
+  private final boolean verifyChecksums;
+  private final boolean truncateInvalidTail;
+  private final ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+  private final Checksum checksum;
+
+  private long size;
+
+  // file offsets of the bytes currently held in the window
+  private long windowStart;
+  private long windowEnd;
+
+  private long entries;
+  private long skippedRegions;
+  private long skippedBytes;
+  private long truncatedBytes;
+
+  public SegmentScanner(Path path, boolean verifyChecksums, boolean truncateInvalidTail) throws IOException {
+    this.path = path;
+    this.channel = truncateInvalidTail
+        ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+        : FileChannel.open(path, StandardOpenOption.READ);
+    this.size = channel.size();
+    this.header = SegmentHeader.read(channel);
+    this.checksum = header.getChecksum().create();
+    this.verifyChecksums = verifyChecksums;
+    this.truncateInvalidTail = truncateInvalidTail;
+  }
+
+  public SegmentHeader getHeader() {
+    return header;
+  }
+
+  public long getEntries() {
+    return entries;
+  }
+
+  public long getSkippedRegions() {
+    return skippedRegions;
+  }
+
+  public long getSkippedBytes() {
+    return skippedBytes;
+  }
+
+  public long getTruncatedBytes() {
+    return truncatedBytes;
+  }
+
+  public void scan(HintFile.HintConsumer consumer) throws IOException {
+    scan(consumer, null);
+  }
+
+  /**
+   * Scans the segment, decompressing the blocks of a block compressed
+   * segment with the given codec.
+   */
+  public void scan(HintFile.HintConsumer consumer, CompressionCodec blockCodec) throws IOException {
+    if (header.isBlocks()) {
+      if (blockCodec == null) {
+        throw new IOException("Scanning a block compressed segment needs its codec: " + path);
+      }
+
+      scanBlocks(consumer, blockCodec);
+      return;
+    }
+
+    long offset = header.getLength();
+
+    while (offset < size) {
+      int entrySize = scanEntry(offset, consumer);
+
+      if (entrySize >= 0) {
+        entries++;
+        offset += entrySize;
+        continue;
+      }
+
+      if (truncateInvalidTail) {
+        log.warn("Truncating {} at invalid entry at offset {}, dropping {} bytes", path, offset, size - offset);
+
+        truncatedBytes = size - offset;
+        channel.truncate(offset);
+        size = offset;
+        break;
+      }
+
+      long next = nextCandidate(offset);
+
+      log.warn("Skipping {} bytes of {} at invalid entry at offset {}", next - offset, path, offset);
+
+      skippedRegions++;
+      skippedBytes += next - offset;
+      offset = next;
+    }
+  }
+
+  private void scanBlocks(HintFile.HintConsumer consumer, CompressionCodec codec) throws IOException {
+    BlockIndex blocks;
+
+    try {
+      blocks = BlockIndex.read(channel, header);
+
+    } catch (IOException e) {
+      log.warn("Skipping all of {}, its block index is invalid: {}", path, e.getMessage());
+
+      skippedRegions++;
+      skippedBytes += size - header.getLength();
+      return;
+    }
+
+    RecordCodec recordCodec = RecordCodec.get();
+    byte[] data = new byte[0];
+
+    for (int block = 0; block < blocks.getBlockCount(); block++) {
+      int rawLength = blocks.getRawLength(block);
+      ByteBuffer stored = ByteBuffer.allocate(blocks.getStoredLength(block));
+
+      while (stored.hasRemaining()) {
+        if (channel.read(stored, blocks.getPosition(block) + stored.position()) < 0) {
+          throw new IOException("Unexpected EOF when scanning segment");
+        }
+      }
+
+      stored.flip();
+
+      if (data.length < rawLength) {
+        data = new byte[rawLength];
+      }
+
+      try {
+        BlockIndex.decompress(stored, rawLength, codec, data);
+
+      } catch (IOException e) {
+        log.warn("Skipping block {} of {}, it does not decompress: {}", block, path, e.getMessage());
+
+        skippedRegions++;
+        skippedBytes += rawLength;
+        continue;
+      }
+
+      ByteBuffer raw = ByteBuffer.wrap(data);
+      int offset = 0;
+
+      while (offset < rawLength) {
+        RecordCodec.Record record;
+
+        try {
+          record = recordCodec.decode(raw, offset, rawLength, header.getVersion(), header.getChecksum());
+
+        } catch (IOException e) {
+          log.warn("Skipping {} bytes of block {} of {} at invalid entry at offset {}",
+              rawLength - offset, block, path, offset);
+
+          skippedRegions++;
+          skippedBytes += rawLength - offset;
+          break;
+        }
+
+        byte[] key = new byte[record.getKeyLength()];
+        record.key().get(key);
+
+        int entrySize = LogEntry.STATIC_HEADER_SIZE + record.getKeyLength() + record.getValueLength();
+        consumer.accept(new ByteSlice(key), blocks.getLogicalStart(block) + offset, entrySize, record.isTombstone());
+
+        entries++;
+        offset += entrySize;
+      }
+    }
+  }
+
+  /**
+   * Finds the next offset after an invalid entry at which a valid entry
+   * starts, or the end of the file.
+   */
+  private long nextCandidate(long offset) throws IOException {
+    HintFile.HintConsumer ignore = (key, entryOffset, length, tombstone) -> { };
+
+    for (long candidate = offset + 1; candidate < size; candidate++) {
+      if (header.getVersion() != LogFormatter.LEGACY_VERSION) {
+        candidate = nextSyncMarker(candidate);
+
+        if (candidate >= size) {
+          break;
+        }
+      }
+
+      if (scanEntry(candidate, ignore) >= 0) {
+        return candidate;
+      }
+    }
+
+    return size;
+  }
+
+  private long nextSyncMarker(long offset) throws IOException {
+    byte first = (byte) (LogFormatter.SYNC_MARKER >>> 24);
+
+    for (; offset <= size - 4; offset++) {
+      ensure(offset, 4);
+
+      int index = (int) (offset - windowStart);
+
+      if (window.get(index) == first && window.getInt(index) == LogFormatter.SYNC_MARKER) {
+        return offset;
+      }
+    }
+
+    return size;
+  }
+
+  /**
+   * Hands the entry at the offset to the consumer and returns its size, or
+   * returns -1 if no valid entry starts there.
+   */
+  private int scanEntry(long offset, HintFile.HintConsumer consumer) throws IOException {
+    if (size - offset < LogEntry.STATIC_HEADER_SIZE) {
+      return -1;
+    }
+
+    ensure(offset, LogEntry.STATIC_HEADER_SIZE);
+
+    int start = (int) (offset - windowStart);
+    long crc;
+
+    if (header.getVersion() == LogFormatter.LEGACY_VERSION) {
+      crc = window.getLong(start);
+
+    } else {
+      if (window.getInt(start) != LogFormatter.SYNC_MARKER) {
+        return -1;
+      }
+
+      crc = window.getInt(start + 4) & 0xffffffffL;
+    }
+
+    int keyBytesLength = window.getInt(start + 8);
+    int valueBytesLength = window.getInt(start + 12);
+    byte flags = window.get(start + 16);
+
+    if (keyBytesLength < 0 || valueBytesLength < 0 || (flags & ~LogFormatter.KNOWN_FLAGS) != 0
+        || !validCompression(flags)) {
+      return -1;
+    }
+
+    boolean batch = (flags & LogFormatter.BATCH_FLAG) != 0;
+
+    if (batch && (header.getVersion() == LogFormatter.LEGACY_VERSION
+        || (flags & (LogFormatter.TOMBSTONE_FLAG | LogFormatter.COMPRESSED_FLAG)) != 0 || keyBytesLength != 0)) {
+      return -1;
+    }
+
+    long entrySize = (long) LogEntry.STATIC_HEADER_SIZE + keyBytesLength + valueBytesLength;
+
+    if (entrySize > size - offset || entrySize > Integer.MAX_VALUE) {
+      return -1;
+    }
+
+    checksum.reset();
+
+    if (verifyChecksums) {
+      update(offset + 8, LogEntry.STATIC_HEADER_SIZE - 8);
+    }
+
+    byte[] key = readKey(offset + LogEntry.STATIC_HEADER_SIZE, keyBytesLength);
+
+    if (verifyChecksums) {
+      checksum.update(key, 0, key.length);
+      update(offset + LogEntry.STATIC_HEADER_SIZE + keyBytesLength, valueBytesLength);
+
+      if (checksum.getValue() != crc) {
+        return -1;
+      }
+    }
+
+    if (batch) {
+      return scanBatch(offset, (int) entrySize, consumer) ? (int) entrySize : -1;
+    }
+
+    consumer.accept(new ByteSlice(key), offset, (int) entrySize,
+        (flags & LogFormatter.TOMBSTONE_FLAG) != 0);
+
+    return (int) entrySize;
+  }
+
+  /**
+   * Reads every entry held by the batch at the offset, and hands them to the
+   * consumer only if all of them are well formed.
+   */
+  private boolean scanBatch(long offset, int batchSize, HintFile.HintConsumer consumer) throws IOException {
+    List<ByteSlice> keys = new ArrayList<>();
+    List<Long> offsets = new ArrayList<>();
+    List<Integer> lengths = new ArrayList<>();
+    List<Boolean> tombstones = new ArrayList<>();
+
+    long end = offset + batchSize;
+    long record = offset + LogEntry.STATIC_HEADER_SIZE;
+
+    while (record < end) {
+      if (end - record < LogEntry.STATIC_HEADER_SIZE) {
+        return false;
+      }
+
+      ensure(record, LogEntry.STATIC_HEADER_SIZE);
+
+      int start = (int) (record - windowStart);
+      int keyBytesLength = window.getInt(start + 8);
+      int valueBytesLength = window.getInt(start + 12);
+      byte flags = window.get(start + 16);
+
+      if (window.getInt(start) != LogFormatter.BATCHED_MARKER
+          || keyBytesLength < 0 || valueBytesLength < 0
+          || (flags & ~(LogFormatter.TOMBSTONE_FLAG | LogFormatter.COMPRESSED_FLAG)) != 0
+          || !validCompression(flags)) {
+        return false;
+      }
+
+      long recordSize = (long) LogEntry.STATIC_HEADER_SIZE + keyBytesLength + valueBytesLength;
+
+      if (recordSize > end - record) {
+        return false;
+      }
+
+      keys.add(new ByteSlice(readKey(record + LogEntry.STATIC_HEADER_SIZE, keyBytesLength)));
+      offsets.add(record);
+      lengths.add((int) recordSize);
+      tombstones.add((flags & LogFormatter.TOMBSTONE_FLAG) != 0);
+
+      record += recordSize;
+    }
+
+    for (int i = 0; i < keys.size(); i++) {
+      consumer.accept(keys.get(i), offsets.get(i), lengths.get(i), tombstones.get(i));
+    }
+
+    return true;
+  }
+
+  private byte[] readKey(long offset, int length) throws IOException {
+    byte[] key = new byte[length];
+
+    if (length <= WINDOW_SIZE) {
+      ensure(offset, length);
+
+      ByteBuffer view = window.duplicate();
+      view.position((int) (offset - windowStart));
+      view.get(key);
+
+    } else {
+      ByteBuffer direct = ByteBuffer.wrap(key);
+
+      while (direct.hasRemaining()) {
+        if (channel.read(direct, offset + direct.position()) < 0) {
+          throw new IOException("Unexpected EOF when reading key");
+        }
+      }
+    }
+
+    return key;
+  }
+
+  // only values of segments with a compression codec can be compressed
+  private boolean validCompression(byte flags) {
+    return (flags & LogFormatter.COMPRESSED_FLAG) == 0
+        || (header.getCompression() != 0 && (flags & LogFormatter.TOMBSTONE_FLAG) == 0);
+  }
+
+  private void update(long offset, long length) throws IOException {
+    while (length > 0) {
+      int chunk = (int) Math.min(length, WINDOW_SIZE);
+      ensure(offset, chunk);
+
+      ByteBuffer view = window.duplicate();
+      view.position((int) (offset - windowStart));
+      view.limit(view.position() + chunk);
+      ChecksumType.update(checksum, view);
+
+      offset += chunk;
+      length -= chunk;
+    }
+  }
+
+  /**
+   * Makes the given range of the file available in the window, the range
+   * must lie within the file and be no larger than the window.
+   */
+  private void ensure(long offset, int length) throws IOException {
+    if (offset >= windowStart && offset + length <= windowEnd) {
+      return;
+    }
+
+    window.clear();
+
+    while (window.position() < length) {
+      if (channel.read(window, offset + window.position()) < 0) {
+        throw new IOException("Unexpected EOF when scanning segment");
+      }
+    }
+
+    windowStart = offset;
+    windowEnd = offset + window.position();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
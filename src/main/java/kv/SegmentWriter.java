@@ -0,0 +1,33 @@
+package kv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * Writes the output of a compaction: an ordinary {@link Segment}, a
+ * {@link BlockSegmentWriter} or a {@link SortedSegmentWriter}.
+ */
+public interface SegmentWriter extends Closeable {
+
+  /**
+   * Appends the entry and returns where it was written.
+   */
+  KeyDirectory.Location write(ByteSlice key, InputStream value) throws IOException;
+
+  /**
+   * Forces everything written so far to disk.
+   */
+  void force() throws IOException;
+
+  /**
+   * Writes the hint file of everything written as the hint of the segment
+   * file at the given path.
+   */
+  void writeHints(Path segmentPath) throws IOException;
+
+  SegmentHeader getHeader();
+
+  Compression getCompression();
+}
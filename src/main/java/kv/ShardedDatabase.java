@@ -0,0 +1,238 @@
+package kv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the keys by hash between independent {@link Database}s, each in a
+ * directory of its own under the base path, with its own segments, key
+ * directory, writer and compactor. A single database appends every write
+ * to one segment from one thread, so writes scale with the number of shards
+ * rather than being bound by that thread.
+ * <p>
+ * The shard count is recorded in the base directory on first start, since
+ * keys could not be found again under a different count. Batches are only
+ * atomic within a shard, so every key of a batch must belong to the same
+ * one, see {@link #shardOf(ByteSlice)}.
+ */
+public class ShardedDatabase {
+
+  private static final Logger log = LoggerFactory.getLogger(ShardedDatabase.class);
+
+  // holds the shard count in the base directory
+  private static final String SHARDS_FILE_NAME = "shards";
+
+  // wait for async operations to finish when stopping, like a single database does
+  private static final long ASYNC_SHUTDOWN_SECONDS = 30;
+
+  private final String dbBasePath;
+  private final Database[] shards;
+  // shared by the shards when the options name no async executor, null otherwise
+  private final ExecutorService asyncExecutor;
+
+  public ShardedDatabase(String dbBasePath, long initialSegmentSize, int shardCount) {
+    this(dbBasePath, initialSegmentSize, shardCount, new DatabaseOptions());
+  }
+
+  /**
+   * Every shard is opened with the same options, so limits such as the
+   * number of open channels apply to each shard rather than to all of them.
+   * Without an async executor in the options, the shards share one pool
+   * rather than each creating their own.
+   */
+  public ShardedDatabase(String dbBasePath, long initialSegmentSize, int shardCount, DatabaseOptions options) {
+    if (shardCount < 1) {
+      throw new IllegalArgumentException("Shard count must be positive");
+    }
+
+    this.dbBasePath = dbBasePath;
+    this.shards = new Database[shardCount];
+    // its threads are only started once asynchronous operations are used
+    this.asyncExecutor = options.getAsyncExecutor() == null ? Database.newAsyncExecutor() : null;
+
+    for (int i = 0; i < shardCount; i++) {
+      this.shards[i] = new Database(
+          Paths.get(dbBasePath, "shard-" + i).toString(), initialSegmentSize, options, this.asyncExecutor);
+    }
+  }
+
+  /**
+   * Starts every shard. If one fails to start, those already started are
+   * stopped again before the failure is thrown.
+   */
+  public void start() throws IOException {
+    log.debug("Starting {} shards", shards.length);
+
+    checkShardCount();
+
+    int started = 0;
+
+    try {
+      for (; started < shards.length; started++) {
+        shards[started].start();
+      }
+
+    } catch (IOException | RuntimeException e) {
+      log.debug("Shard {} failed to start, stopping the {} already started", started, started);
+
+      for (int i = started - 1; i >= 0; i--) {
+        try {
+          shards[i].stop();
+
+        } catch (InterruptedException stopError) {
+          Thread.currentThread().interrupt();
+          e.addSuppressed(stopError);
+
+        } catch (RuntimeException stopError) {
+          e.addSuppressed(stopError);
+        }
+      }
+
+      throw e;
+    }
+  }
+
+  private void checkShardCount() throws IOException {
+    Path base = Paths.get(dbBasePath);
+    Path shardsFile = base.resolve(SHARDS_FILE_NAME);
+
+    if (!Files.exists(shardsFile)) {
+      Files.createDirectories(base);
+      Files.write(shardsFile, Integer.toString(shards.length).getBytes(StandardCharsets.UTF_8));
+      return;
+    }
+
+    String recorded = new String(Files.readAllBytes(shardsFile), StandardCharsets.UTF_8).trim();
+
+    if (!recorded.equals(Integer.toString(shards.length))) {
+      throw new IOException("Database " + dbBasePath + " has " + recorded + " shards, not " + shards.length);
+    }
+  }
+
+  public void stop() throws InterruptedException {
+    // async operations already submitted finish before the shards flush the writes they queued
+    if (asyncExecutor != null) {
+      asyncExecutor.shutdown();
+
+      if (!asyncExecutor.awaitTermination(ASYNC_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+        log.warn("Async operations still running after {}s, stopping anyway", ASYNC_SHUTDOWN_SECONDS);
+      }
+    }
+
+    for (Database shard : shards) {
+      shard.stop();
+    }
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * The shard the key belongs to.
+   */
+  public int shardOf(ByteSlice key) {
+    int hash = key.hashCode();
+
+    // the hash of short keys varies mostly in its low bits, spread it over all of them
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+
+    return Math.floorMod(hash, shards.length);
+  }
+
+  private Database shard(ByteSlice key) {
+    return shards[shardOf(key)];
+  }
+
+  public boolean read(ByteSlice key, OutputStream out) throws IOException {
+    return shard(key).read(key, out);
+  }
+
+  public void write(ByteSlice key, InputStream value) throws IOException {
+    shard(key).write(key, value);
+  }
+
+  public void write(ByteSlice key, InputStream value, Durability durability) throws IOException {
+    shard(key).write(key, value, durability);
+  }
+
+  public void delete(ByteSlice key) throws IOException {
+    shard(key).delete(key);
+  }
+
+  public void delete(ByteSlice key, Durability durability) throws IOException {
+    shard(key).delete(key, durability);
+  }
+
+  public CompletableFuture<byte[]> readAsync(ByteSlice key) {
+    return shard(key).readAsync(key);
+  }
+
+  public CompletableFuture<Void> writeAsync(ByteSlice key, InputStream value) {
+    return shard(key).writeAsync(key, value);
+  }
+
+  public CompletableFuture<Void> writeAsync(ByteSlice key, InputStream value, Durability durability) {
+    return shard(key).writeAsync(key, value, durability);
+  }
+
+  public CompletableFuture<Void> deleteAsync(ByteSlice key) {
+    return shard(key).deleteAsync(key);
+  }
+
+  public CompletableFuture<Void> deleteAsync(ByteSlice key, Durability durability) {
+    return shard(key).deleteAsync(key, durability);
+  }
+
+  public void writeBatch(WriteBatch batch) throws IOException {
+    shardOf(batch).writeBatch(batch);
+  }
+
+  public void writeBatch(WriteBatch batch, Durability durability) throws IOException {
+    shardOf(batch).writeBatch(batch, durability);
+  }
+
+  private Database shardOf(WriteBatch batch) {
+    if (batch.size() == 0) {
+      return shards[0];
+    }
+
+    int shard = shardOf(batch.getKeys().get(0));
+
+    for (ByteSlice key : batch.getKeys()) {
+      if (shardOf(key) != shard) {
+        throw new IllegalArgumentException("Keys of a batch must all belong to the same shard");
+      }
+    }
+
+    return shards[shard];
+  }
+
+  public void compact() {
+    for (Database shard : shards) {
+      shard.compact();
+    }
+  }
+
+  /**
+   * The database holding the given shard, for its stats.
+   */
+  public Database getShard(int shard) {
+    return shards[shard];
+  }
+}
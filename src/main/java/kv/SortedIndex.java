@@ -0,0 +1,244 @@
+package kv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * Sparse index of a sorted segment. Such a segment is only ever written
+ * whole, by compaction, see {@link SortedSegmentWriter}, as its
+ * {@link SegmentHeader}, its entries in key order, this index and a footer:
+ * index position (8), record count (4), checksum of the index and the
+ * footer before it (4) and a marker (4). Each index record holds the offset
+ * of an entry (8), the length of its key (4) and the key, for the first
+ * entry and then for the first entry after every index interval. If the
+ * {@link SegmentHeader} says so, a {@link BloomFilter} of every key of the
+ * segment follows the records.
+ * <p>
+ * A key is found by searching the index for the last record whose key is
+ * not after it, then reading entries from that record's offset until the
+ * key is reached or passed, so the keys of a sorted segment need not be
+ * held in memory.
+ */
+public class SortedIndex {
+
+  public static final int FOOTER_SIZE = 20;
+  // "SSTI"
+  public static final int FOOTER_MARKER = 0x53535449;
+
+  private static final int RECORD_HEADER_SIZE = 12;
+
+  private ByteSlice[] keys;
+  private long[] offsets;
+  private int count;
+  // where the entries end and the index starts, known once the index is read
+  private long entriesEnd;
+  // null if the segment has no filter
+  private BloomFilter filter;
+
+  public SortedIndex() {
+    this(16);
+  }
+
+  private SortedIndex(int capacity) {
+    this.keys = new ByteSlice[capacity];
+    this.offsets = new long[capacity];
+  }
+
+  /**
+   * Adds a record for the entry of the key at the offset, which must come
+   * after every key and offset already added.
+   */
+  public void add(ByteSlice key, long offset) {
+    if (count == offsets.length) {
+      keys = Arrays.copyOf(keys, count * 2);
+      offsets = Arrays.copyOf(offsets, count * 2);
+    }
+
+    keys[count] = key;
+    offsets[count] = offset;
+    count++;
+  }
+
+  public int getRecordCount() {
+    return count;
+  }
+
+  public ByteSlice getKey(int record) {
+    return keys[record];
+  }
+
+  public long getOffset(int record) {
+    return offsets[record];
+  }
+
+  /**
+   * Bloom filter of every key of the segment, null if it has none.
+   */
+  public BloomFilter getFilter() {
+    return filter;
+  }
+
+  public void setFilter(BloomFilter filter) {
+    this.filter = filter;
+  }
+
+  public long getEntriesEnd() {
+    return entriesEnd;
+  }
+
+  /**
+   * Offset the entries of the record end at, where the next record starts.
+   */
+  public long getEnd(int record) {
+    return record + 1 < count ? offsets[record + 1] : entriesEnd;
+  }
+
+  /**
+   * The last record whose key is not after the given key, -1 if the key
+   * comes before every key of the segment.
+   */
+  public int floor(ByteSlice key) {
+    int low = 0;
+    int high = count - 1;
+
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int cmp = keys[middle].compareTo(key);
+
+      if (cmp < 0) {
+        low = middle + 1;
+      } else if (cmp > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+
+    return high;
+  }
+
+  /**
+   * Writes the index and the footer, for an index that starts at the given
+   * position of the file.
+   */
+  public void write(OutputStream out, long position, ChecksumType checksumType) throws IOException {
+    int length = FOOTER_SIZE + (filter == null ? 0 : filter.serializedSize());
+
+    for (int i = 0; i < count; i++) {
+      length += RECORD_HEADER_SIZE + keys[i].length();
+    }
+
+    ByteBuffer index = ByteBuffer.allocate(length);
+
+    for (int i = 0; i < count; i++) {
+      index.putLong(offsets[i]);
+      index.putInt(keys[i].length());
+      keys[i].writeTo(index);
+    }
+
+    if (filter != null) {
+      filter.writeTo(index);
+    }
+
+    index.putLong(position);
+    index.putInt(count);
+
+    Checksum checksum = checksumType.create();
+    checksum.update(index.array(), 0, index.position());
+
+    index.putInt((int) checksum.getValue());
+    index.putInt(FOOTER_MARKER);
+
+    out.write(index.array());
+  }
+
+  /**
+   * Reads the index of the sorted segment open on the channel, failing if
+   * anything about it does not add up.
+   */
+  public static SortedIndex read(FileChannel channel, SegmentHeader header) throws IOException {
+    long size = channel.size();
+
+    if (size < header.getLength() + FOOTER_SIZE) {
+      throw new IOException("Sorted segment is too short for its footer");
+    }
+
+    ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+    readFully(channel, footer, size - FOOTER_SIZE);
+
+    long indexPosition = footer.getLong(0);
+    int count = footer.getInt(8);
+    long indexLength = size - FOOTER_SIZE - indexPosition;
+
+    if (footer.getInt(16) != FOOTER_MARKER || count < 0 || indexPosition < header.getLength()
+        || (count == 0 && indexPosition != header.getLength())
+        || indexLength < (long) count * RECORD_HEADER_SIZE || indexLength > Integer.MAX_VALUE - FOOTER_SIZE) {
+      throw new IOException("Invalid sorted segment footer");
+    }
+
+    ByteBuffer records = ByteBuffer.allocate((int) indexLength + FOOTER_SIZE);
+    readFully(channel, records, indexPosition);
+
+    Checksum checksum = header.getChecksum().create();
+    checksum.update(records.array(), 0, (int) indexLength + 12);
+
+    if ((int) checksum.getValue() != footer.getInt(12)) {
+      throw new LogFormatter.CrcMismatchException();
+    }
+
+    SortedIndex index = new SortedIndex(Math.max(count, 1));
+    records.limit((int) indexLength);
+
+    for (int i = 0; i < count; i++) {
+      if (records.remaining() < RECORD_HEADER_SIZE) {
+        throw new IOException("Invalid sorted index record: " + i);
+      }
+
+      long offset = records.getLong();
+      int keyLength = records.getInt();
+
+      if (keyLength < 0 || keyLength > records.remaining()) {
+        throw new IOException("Invalid sorted index record: " + i);
+      }
+
+      byte[] key = new byte[keyLength];
+      records.get(key);
+      ByteSlice slice = new ByteSlice(key);
+
+      boolean ordered = i == 0
+          ? offset == header.getLength()
+          : offset > index.offsets[i - 1] && slice.compareTo(index.keys[i - 1]) > 0;
+
+      if (!ordered || offset >= indexPosition) {
+        throw new IOException("Invalid sorted index record: " + i);
+      }
+
+      index.add(slice, offset);
+    }
+
+    if (header.isFiltered()) {
+      index.filter = BloomFilter.readFrom(records);
+    }
+
+    if (records.hasRemaining()) {
+      throw new IOException("Invalid sorted segment footer");
+    }
+
+    index.entriesEnd = indexPosition;
+    return index;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected EOF when reading sorted index");
+      }
+    }
+
+    buffer.flip();
+  }
+}
@@ -0,0 +1,138 @@
+package kv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Writes a sorted segment, see {@link SortedIndex}. Entries must be written
+ * in increasing key order, and are encoded as in any other segment. The
+ * first entry and the first entry after every index interval bytes get an
+ * index record. The index, and the {@link BloomFilter} of every key if
+ * there are bits per key for one, is written by {@link #force()}, after
+ * which nothing more can be written.
+ * <p>
+ * No hint file is written, the keys of a sorted segment are never loaded
+ * into the {@link KeyDirectory}.
+ */
+public class SortedSegmentWriter implements SegmentWriter {
+
+  private static final Logger log = LoggerFactory.getLogger(SortedSegmentWriter.class);
+
+  private final FileOutputStream out;
+  private final int id;
+  private final SegmentHeader header;
+  private final Compression compression;
+  private final int indexInterval;
+  private final int bitsPerKey;
+  private final SortedIndex index = new SortedIndex();
+
+  // hashes of every key written, for the filter
+  private long[] keyHashes = new long[0];
+  private int keyCount;
+
+  private ByteSlice lastKey;
+  // where the next entry goes in the file, and where the last indexed one went
+  private long position;
+  private long indexedPosition;
+  private boolean finished;
+
+  public SortedSegmentWriter(
+      Path path, int id, SegmentHeader header,
+      Compression compression, int indexInterval, int bitsPerKey) throws IOException {
+
+    File file = path.toFile();
+
+    if (!file.createNewFile()) {
+      throw new IOException("Expected new segment to not exist");
+    }
+
+    this.out = new FileOutputStream(file);
+    this.id = id;
+    this.header = bitsPerKey > 0 ? header.withSorted().withFilter() : header.withSorted();
+    this.compression = compression;
+    this.indexInterval = indexInterval;
+    this.bitsPerKey = bitsPerKey;
+
+    this.header.write(out);
+    this.position = this.header.getLength();
+  }
+
+  @Override
+  public KeyDirectory.Location write(ByteSlice key, InputStream value) throws IOException {
+    if (finished) {
+      throw new IOException("Sorted segment is finished, cannot write");
+    }
+
+    if (lastKey != null && key.compareTo(lastKey) <= 0) {
+      throw new IOException("Sorted segment keys must be written in increasing order: " + key);
+    }
+
+    EncodedEntry entry = EncodedEntry.encode(key, value, header.getVersion(), header.getChecksum(), compression);
+
+    if (index.getRecordCount() == 0 || position - indexedPosition >= indexInterval) {
+      index.add(key, position);
+      indexedPosition = position;
+    }
+
+    if (bitsPerKey > 0) {
+      if (keyCount == keyHashes.length) {
+        keyHashes = Arrays.copyOf(keyHashes, Math.max(16, keyCount * 2));
+      }
+
+      keyHashes[keyCount++] = BloomFilter.hash(key);
+    }
+
+    long offset = position;
+    position += Segment.writeFully(out.getChannel(), entry.getBuffers());
+    lastKey = key;
+
+    return new KeyDirectory.Location(id, offset, entry.getLength());
+  }
+
+  /**
+   * Writes the index, unless it is already written, and forces the file to
+   * disk.
+   */
+  @Override
+  public void force() throws IOException {
+    if (!finished) {
+      if (bitsPerKey > 0) {
+        index.setFilter(BloomFilter.create(keyHashes, keyCount, bitsPerKey));
+        keyHashes = null;
+      }
+
+      index.write(out, position, header.getChecksum());
+      finished = true;
+
+      log.trace("Wrote sorted index of {} records", index.getRecordCount());
+    }
+
+    out.getChannel().force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  @Override
+  public void writeHints(Path segmentPath) {
+  }
+
+  @Override
+  public SegmentHeader getHeader() {
+    return header;
+  }
+
+  @Override
+  public Compression getCompression() {
+    return compression;
+  }
+}
@@ -0,0 +1,51 @@
+package kv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Puts and deletes applied atomically by {@link Database#writeBatch}. Values
+ * are read when the batch is written, not when they are added.
+ */
+public class WriteBatch {
+
+  private final List<ByteSlice> keys = new ArrayList<>();
+  // a null value marks a delete
+  private final List<InputStream> values = new ArrayList<>();
+
+  public WriteBatch put(ByteSlice key, InputStream value) {
+    if (value == null) {
+      throw new IllegalArgumentException("Value of a put cannot be null");
+    }
+
+    keys.add(key);
+    values.add(value);
+    return this;
+  }
+
+  public WriteBatch delete(ByteSlice key) {
+    keys.add(key);
+    values.add(null);
+    return this;
+  }
+
+  public int size() {
+    return keys.size();
+  }
+
+  List<ByteSlice> getKeys() {
+    return keys;
+  }
+
+  EncodedEntry encode(int version, ChecksumType checksum, Compression compression) throws IOException {
+    List<EncodedEntry> entries = new ArrayList<>(keys.size());
+
+    for (int i = 0; i < keys.size(); i++) {
+      entries.add(EncodedEntry.encode(keys.get(i), values.get(i), version, checksum, compression));
+    }
+
+    return EncodedEntry.encodeBatch(entries, version, checksum, compression);
+  }
+}
@@ -0,0 +1,239 @@
+package kv;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands entries committed concurrently to a single writer thread, which
+ * drains them from a bounded queue in batches and appends each batch with
+ * one flush. Unlike the {@link GroupCommitter}, no caller ever flushes, so
+ * there is no hand over of the leader role between callers, and callers
+ * are told the outcome through a future completed once the batch holding
+ * their entry has been flushed with the strongest {@link Durability} asked
+ * for by any entry in it.
+ * <p>
+ * Callers block while the queue is full, which bounds the entries, and the
+ * values they hold, waiting to be written.
+ */
+public class WriteSequencer implements Committer {
+
+  private static final Logger log = LoggerFactory.getLogger(WriteSequencer.class);
+
+  // entries flushed together at most, so a long queue does not become one huge append
+  private static final int MAX_BATCH_SIZE = 1024;
+
+  // queued by stop, the writer flushes what is left and exits once it takes it
+  private static final Pending STOP = new Pending(null, Durability.NONE);
+
+  private final GroupCommitter.Flusher flusher;
+  private final BlockingQueue<Pending> queue;
+  private final Thread writer;
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong entries = new AtomicLong();
+
+  // set by the writer before it flushes what is left in the queue and exits
+  private volatile boolean stopped;
+
+  public WriteSequencer(GroupCommitter.Flusher flusher, int capacity) {
+    this.flusher = flusher;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.writer = new Thread(this::run, "write-sequencer");
+  }
+
+  public void start() {
+    writer.start();
+  }
+
+  /**
+   * Flushes everything already queued and stops the writer thread. Entries
+   * submitted once it has stopped fail.
+   */
+  public void stop() throws InterruptedException {
+    // not interrupted, that would close the segment's channel under a flush
+    queue.put(STOP);
+    writer.join();
+  }
+
+  /**
+   * Queues the entry, waiting for room in the queue if it is full. The
+   * future completes once the entry has been flushed, or exceptionally with
+   * the exception the flush failed with.
+   */
+  public CompletableFuture<Void> submit(EncodedEntry entry, Durability durability) throws IOException {
+    Pending pending = new Pending(entry, durability);
+
+    if (stopped) {
+      pending.abandon();
+      return pending.future;
+    }
+
+    try {
+      queue.put(pending);
+    } catch (InterruptedException e) {
+      if (entry != null) {
+        Database.closeQuietly(entry);
+      }
+
+      throw new InterruptedIOException("Interrupted while waiting to queue entry");
+    }
+
+    // the writer may have drained the queue for the last time before the entry got in
+    if (stopped) {
+      List<Pending> abandoned = new ArrayList<>();
+      queue.drainTo(abandoned);
+
+      for (Pending left : abandoned) {
+        left.abandon();
+      }
+    }
+
+    return pending.future;
+  }
+
+  @Override
+  public void commit(EncodedEntry entry, Durability durability) throws IOException {
+    await(submit(entry, durability));
+  }
+
+  @Override
+  public void sync() throws IOException {
+    commit(null, Durability.SYNC);
+  }
+
+  /**
+   * Waits for the future of a submitted entry. Once queued, the entry may be
+   * written at any time, so the caller waits for the outcome even if
+   * interrupted.
+   */
+  static void await(CompletableFuture<Void> future) throws IOException {
+    boolean interrupted = false;
+
+    try {
+      while (true) {
+        try {
+          future.get();
+          return;
+
+        } catch (InterruptedException e) {
+          interrupted = true;
+
+        } catch (ExecutionException e) {
+          throw new IOException("Batch was not committed", e.getCause());
+        }
+      }
+
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void run() {
+    List<Pending> batch = new ArrayList<>();
+    boolean stopping = false;
+
+    while (!stopping) {
+      try {
+        batch.add(queue.take());
+
+      } catch (InterruptedException e) {
+        log.trace("Write sequencer interrupted, only stop ends it", e);
+        continue;
+      }
+
+      queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+      stopping = batch.remove(STOP);
+
+      if (!batch.isEmpty()) {
+        flush(batch);
+        batch.clear();
+      }
+    }
+
+    log.trace("Write sequencer stopping");
+
+    stopped = true;
+
+    while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+      flush(batch);
+      batch.clear();
+    }
+  }
+
+  private void flush(List<Pending> batch) {
+    List<EncodedEntry> batchEntries = new ArrayList<>(batch.size());
+    Durability durability = Durability.NONE;
+
+    for (Pending pending : batch) {
+      if (pending.entry != null) {
+        batchEntries.add(pending.entry);
+      }
+
+      if (pending.durability.compareTo(durability) > 0) {
+        durability = pending.durability;
+      }
+    }
+
+    log.trace("Flushing batch of {} entries, durability: {}", batchEntries.size(), durability);
+
+    Throwable error = null;
+
+    try {
+      flusher.flush(batchEntries, durability);
+
+    } catch (IOException | RuntimeException e) {
+      error = e;
+    }
+
+    batches.incrementAndGet();
+    entries.addAndGet(batchEntries.size());
+
+    for (Pending pending : batch) {
+      if (error == null) {
+        pending.future.complete(null);
+      } else {
+        pending.future.completeExceptionally(error);
+      }
+    }
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getEntries() {
+    return entries.get();
+  }
+
+  private static class Pending {
+    // null for a sync without an entry
+    private final EncodedEntry entry;
+    private final Durability durability;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private Pending(EncodedEntry entry, Durability durability) {
+      this.entry = entry;
+      this.durability = durability;
+    }
+
+    // fails an entry that will never be flushed
+    private void abandon() {
+      if (entry != null) {
+        Database.closeQuietly(entry);
+      }
+
+      future.completeExceptionally(new IOException("Write sequencer is stopped"));
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package kv;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class BloomFilterTest {
+
+  private static final int KEYS = 10_000;
+
+  private static ByteSlice key(String prefix, int i) {
+    return new ByteSlice((prefix + i).getBytes());
+  }
+
+  private static BloomFilter filter(int bitsPerKey) {
+    long[] hashes = new long[KEYS];
+
+    for (int i = 0; i < KEYS; i++) {
+      hashes[i] = BloomFilter.hash(key("key", i));
+    }
+
+    return BloomFilter.create(hashes, KEYS, bitsPerKey);
+  }
+
+  private static double falsePositiveRate(BloomFilter filter) {
+    int falsePositives = 0;
+
+    for (int i = 0; i < KEYS; i++) {
+      if (filter.mightContain(key("absent", i))) {
+        falsePositives++;
+      }
+    }
+
+    return (double) falsePositives / KEYS;
+  }
+
+  @Test
+  public void testHasNoFalseNegatives() {
+    BloomFilter filter = filter(10);
+
+    for (int i = 0; i < KEYS; i++) {
+      assertTrue(filter.mightContain(key("key", i)));
+    }
+  }
+
+  @Test
+  public void testFalsePositiveRateFollowsBitsPerKey() {
+    double rate4 = falsePositiveRate(filter(4));
+    double rate10 = falsePositiveRate(filter(10));
+    double rate16 = falsePositiveRate(filter(16));
+
+    // about 15%, 1% and 0.05% in theory
+    assertTrue("rate at 4 bits per key: " + rate4, rate4 < 0.25);
+    assertTrue("rate at 10 bits per key: " + rate10, rate10 < 0.02);
+    assertTrue("rate at 16 bits per key: " + rate16, rate16 < 0.005);
+    assertTrue(rate16 <= rate10 && rate10 < rate4);
+  }
+
+  @Test
+  public void testSerializes() throws IOException {
+    BloomFilter filter = filter(10);
+    ByteBuffer buffer = ByteBuffer.allocate(filter.serializedSize());
+    filter.writeTo(buffer);
+    buffer.flip();
+
+    BloomFilter read = BloomFilter.readFrom(buffer);
+
+    assertEquals(filter.getHashCount(), read.getHashCount());
+    assertEquals(filter.getBitCount(), read.getBitCount());
+    assertEquals(falsePositiveRate(filter), falsePositiveRate(read), 0);
+  }
+}
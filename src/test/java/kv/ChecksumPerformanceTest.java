@@ -0,0 +1,98 @@
+package kv;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+/**
+ * Throughput of each {@link ChecksumType}, on its own over heap and direct
+ * buffers and as part of encoding and decoding a whole entry.
+ */
+@RunWith(JUnit4.class)
+public class ChecksumPerformanceTest {
+
+  // bytes run through each measurement, split into operations of the value size
+  private static final long WARMUP_BYTES = 64L * 1024 * 1024;
+  private static final long MEASURED_BYTES = 512L * 1024 * 1024;
+
+  private interface Operation {
+    void run() throws IOException;
+  }
+
+  private static double measure(int valueSize, Operation operation) throws IOException {
+    for (long i = 0; i < WARMUP_BYTES / valueSize; i++) {
+      operation.run();
+    }
+
+    long operations = MEASURED_BYTES / valueSize;
+    long startTime = System.nanoTime();
+
+    for (long i = 0; i < operations; i++) {
+      operation.run();
+    }
+
+    return (System.nanoTime() - startTime) / (double) operations;
+  }
+
+  private static void print(String name, int valueSize, double nanos) {
+    double megabytesPerSecond = valueSize / nanos * 1_000_000_000 / (1024 * 1024);
+    System.out.printf("%-20s:%14.1f%14.1f\n", name, nanos, megabytesPerSecond);
+  }
+
+  private void runChecksumPerformanceTest(int valueSize) throws IOException {
+    byte[] value = new byte[valueSize];
+    new Random(valueSize).nextBytes(value);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(valueSize);
+    direct.put(value);
+    direct.flip();
+
+    ByteSlice key = new ByteSlice("some key".getBytes());
+    ByteBuffer valueBuffer = ByteBuffer.wrap(value);
+    ByteBuffer entry = ByteBuffer.allocateDirect(RecordCodec.encodedLength(key, valueSize));
+    RecordCodec codec = RecordCodec.get();
+
+    System.out.printf("Checksums of %d byte values ----------\n", valueSize);
+    System.out.printf("%-20s:%14s%14s\n", "Checksum", "Ns/Op", "MB/s");
+
+    for (ChecksumType type : ChecksumType.values()) {
+      Checksum checksum = type.create();
+
+      print(type + " heap", valueSize, measure(valueSize, () -> {
+        checksum.reset();
+        checksum.update(value, 0, value.length);
+        checksum.getValue();
+      }));
+
+      print(type + " direct", valueSize, measure(valueSize, () -> {
+        checksum.reset();
+        ChecksumType.update(checksum, direct.duplicate());
+        checksum.getValue();
+      }));
+
+      print(type + " entry", valueSize, measure(valueSize, () -> {
+        entry.clear();
+        codec.encode(entry, key, valueBuffer, LogFormatter.CURRENT_VERSION, type);
+        entry.flip();
+        codec.decode(entry, LogFormatter.CURRENT_VERSION, type);
+      }));
+    }
+
+    System.out.println("---------------------------------------------");
+  }
+
+  @Test
+  public void testSmallValues() throws IOException {
+    runChecksumPerformanceTest(100);
+  }
+
+  @Test
+  public void testLargeValues() throws IOException {
+    runChecksumPerformanceTest(1024 * 1024);
+  }
+}
@@ -8,9 +8,15 @@ import org.junit.runners.JUnit4;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @RunWith(JUnit4.class)
 public class DatabasePerformanceTest {
@@ -175,6 +181,347 @@ public class DatabasePerformanceTest {
         0.005f);
   }
 
+  private void runDurabilityPerformanceTest(
+      String description,
+      DatabaseOptions options,
+      int threadCount,
+      int writesPerThread) throws IOException, InterruptedException {
+
+    String dbPath = randomPath();
+
+    Database database = new Database(dbPath, 1024 * 1024, options);
+
+    database.start();
+
+    long[][] latencies = new long[threadCount][writesPerThread];
+    List<Thread> threads = new ArrayList<>();
+
+    for (int i = 0; i < threadCount; i++) {
+      long[] threadLatencies = latencies[i];
+
+      threads.add(new Thread(() -> {
+        for (int op = 0; op < writesPerThread; op++) {
+          try {
+            long opStart = System.nanoTime();
+            database.write(randomId(), randomId().toStream());
+            threadLatencies[op] = System.nanoTime() - opStart;
+
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      }));
+    }
+
+    long startTime = System.currentTimeMillis();
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    long elapsed = System.currentTimeMillis() - startTime;
+
+    database.stop();
+
+    long[] sorted = new long[threadCount * writesPerThread];
+
+    for (int i = 0; i < threadCount; i++) {
+      System.arraycopy(latencies[i], 0, sorted, i * writesPerThread, writesPerThread);
+    }
+
+    Arrays.sort(sorted);
+
+    int maxLength = 45;
+
+    System.out.print(description);
+    System.out.print(" ");
+    System.out.println(sep(maxLength - 1 - description.length()));
+    display("Elapsed", "%.2fs", elapsed / 1000.0);
+    display("Threads", "%s", threadCount);
+    display("Writes Per Thread", "%s", writesPerThread);
+    display("Writes/Second", "%.2f", perSecond(sorted.length, elapsed));
+    display("p50 Write", "%.1fus", percentile(sorted, 0.50) / 1000.0);
+    display("p99 Write", "%.1fus", percentile(sorted, 0.99) / 1000.0);
+    display("p99.9 Write", "%.1fus", percentile(sorted, 0.999) / 1000.0);
+    display("Max Write", "%.1fus", sorted[sorted.length - 1] / 1000.0);
+    System.out.println(sep(maxLength));
+
+    FileUtils.deleteDirectory(new File(dbPath));
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+  }
+
+  @Test
+  public void testDurabilityNone() throws IOException, InterruptedException {
+    runDurabilityPerformanceTest("Writes, No Sync",
+        new DatabaseOptions().setDurability(Durability.NONE), 100, 200);
+  }
+
+  @Test
+  public void testDurabilityPeriodic() throws IOException, InterruptedException {
+    runDurabilityPerformanceTest("Writes, Periodic Sync",
+        new DatabaseOptions().setDurability(Durability.PERIODIC), 100, 200);
+  }
+
+  @Test
+  public void testDurabilitySync() throws IOException, InterruptedException {
+    runDurabilityPerformanceTest("Writes, Sync",
+        new DatabaseOptions().setDurability(Durability.SYNC), 100, 200);
+  }
+
+  @Test
+  public void testSequencedNone() throws IOException, InterruptedException {
+    runDurabilityPerformanceTest("Sequenced Writes, No Sync",
+        new DatabaseOptions().setDurability(Durability.NONE).setSequencedWrites(true), 100, 200);
+  }
+
+  @Test
+  public void testSequencedPeriodic() throws IOException, InterruptedException {
+    runDurabilityPerformanceTest("Sequenced Writes, Periodic Sync",
+        new DatabaseOptions().setDurability(Durability.PERIODIC).setSequencedWrites(true), 100, 200);
+  }
+
+  @Test
+  public void testSequencedSync() throws IOException, InterruptedException {
+    runDurabilityPerformanceTest("Sequenced Writes, Sync",
+        new DatabaseOptions().setDurability(Durability.SYNC).setSequencedWrites(true), 100, 200);
+  }
+
+  /**
+   * Bytes allocated by the writing thread per write of values of growing
+   * size. The thread is alone, so it also appends its own writes.
+   */
+  @Test
+  public void testLargeValueAllocation() throws IOException, InterruptedException {
+    String dbPath = randomPath();
+    Database database = new Database(dbPath, 1024L * 1024 * 1024);
+    database.start();
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    System.out.println("Large Value Allocation ----------------------");
+    System.out.printf("%-20s:%24s\n", "Value Size", "Allocated/Write");
+
+    for (int megabytes : new int[]{1, 4, 16}) {
+      long valueSize = megabytes * 1024L * 1024;
+      int writes = 4;
+
+      long before = threads.getThreadAllocatedBytes(threadId);
+
+      for (int i = 0; i < writes; i++) {
+        database.write(randomId(), generatedValue(valueSize));
+      }
+
+      long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+      display(megabytes + "MB", "%.1fKB", allocated / (double) writes / 1024);
+    }
+
+    System.out.println(sep(45));
+
+    database.stop();
+    FileUtils.deleteDirectory(new File(dbPath));
+  }
+
+  /**
+   * Reads per second of a growing number of reader threads while one thread
+   * keeps writing batches, with reads holding the segment lock and with
+   * reads that never take it, see {@link DatabaseOptions#setLockFreeReads}.
+   */
+  @Test
+  public void testReadContention() throws IOException, InterruptedException {
+    int[] threadCounts = {1, 2, 4, 8, 16, 32, 64};
+
+    System.out.println("Read Contention -----------------------------");
+    System.out.printf("%-20s:%12s%12s\n", "Readers", "Locked", "Lock Free");
+
+    for (int threadCount : threadCounts) {
+      double locked = readsPerSecondUnderWrites(false, threadCount, 250);
+      double lockFree = readsPerSecondUnderWrites(true, threadCount, 250);
+
+      System.out.printf("%-20s:%12.0f%12.0f\n", threadCount, locked, lockFree);
+    }
+
+    System.out.println(sep(45));
+  }
+
+  private double readsPerSecondUnderWrites(
+      boolean lockFreeReads, int threadCount, long durationMillis) throws IOException, InterruptedException {
+
+    String dbPath = randomPath();
+    Database database = new Database(dbPath, 64 * 1024, new DatabaseOptions().setLockFreeReads(lockFreeReads));
+    database.start();
+
+    int keyCount = 1024;
+
+    for (int i = 0; i < keyCount; i++) {
+      database.write(contentionKey(i), contentionKey(i).toStream());
+    }
+
+    AtomicBoolean running = new AtomicBoolean(true);
+    long[] reads = new long[threadCount];
+    List<Thread> threads = new ArrayList<>();
+
+    threads.add(new Thread(() -> {
+      while (running.get()) {
+        try {
+          WriteBatch batch = new WriteBatch();
+
+          for (int i = 0; i < 8; i++) {
+            ByteSlice key = contentionKey(ThreadLocalRandom.current().nextInt(keyCount));
+            batch.put(key, key.toStream());
+          }
+
+          database.writeBatch(batch);
+
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+    }));
+
+    for (int i = 0; i < threadCount; i++) {
+      int reader = i;
+
+      threads.add(new Thread(() -> {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        while (running.get()) {
+          try {
+            out.reset();
+            database.read(contentionKey(ThreadLocalRandom.current().nextInt(keyCount)), out);
+            reads[reader]++;
+
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      }));
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    Thread.sleep(durationMillis);
+    running.set(false);
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    database.stop();
+    FileUtils.deleteDirectory(new File(dbPath));
+
+    return perSecond(Arrays.stream(reads).sum(), durationMillis);
+  }
+
+  /**
+   * Writes per second of the same writer threads spread over a growing
+   * number of shards, see {@link ShardedDatabase}, with and without syncing
+   * every write.
+   */
+  @Test
+  public void testShardScaling() throws IOException, InterruptedException {
+    int[] shardCounts = {1, 2, 4, 8};
+
+    System.out.println("Shard Scaling -------------------------------");
+    System.out.printf("%-20s:%12s%12s\n", "Shards", "No Sync", "Sync");
+
+    for (int shardCount : shardCounts) {
+      double none = shardedWritesPerSecond(shardCount, Durability.NONE, 32, 2000);
+      double sync = shardedWritesPerSecond(shardCount, Durability.SYNC, 32, 50);
+
+      System.out.printf("%-20s:%12.0f%12.0f\n", shardCount, none, sync);
+    }
+
+    System.out.println(sep(45));
+  }
+
+  private double shardedWritesPerSecond(
+      int shardCount, Durability durability,
+      int threadCount, int writesPerThread) throws IOException, InterruptedException {
+
+    String dbPath = randomPath();
+    ShardedDatabase database = new ShardedDatabase(
+        dbPath, 1024 * 1024, shardCount, new DatabaseOptions().setDurability(durability));
+    database.start();
+
+    List<Thread> threads = new ArrayList<>();
+
+    for (int i = 0; i < threadCount; i++) {
+      int writer = i;
+
+      threads.add(new Thread(() -> {
+        for (int op = 0; op < writesPerThread; op++) {
+          try {
+            ByteSlice key = contentionKey(writer * writesPerThread + op);
+            database.write(key, key.toStream());
+
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      }));
+    }
+
+    long startTime = System.currentTimeMillis();
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+    database.stop();
+    FileUtils.deleteDirectory(new File(dbPath));
+
+    return perSecond((long) threadCount * writesPerThread, elapsed);
+  }
+
+  private static ByteSlice contentionKey(int i) {
+    return new ByteSlice(String.format("key-%06d", i).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static InputStream generatedValue(long size) {
+    return new InputStream() {
+      long remaining = size;
+
+      @Override
+      public int read() {
+        if (remaining <= 0) return -1;
+        remaining--;
+        return (int) (remaining & 0xff);
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (remaining <= 0) return -1;
+
+        int n = (int) Math.min(len, remaining);
+
+        for (int i = 0; i < n; i++) {
+          b[off + i] = (byte) (remaining - i);
+        }
+
+        remaining -= n;
+        return n;
+      }
+    };
+  }
+
   private static class PerformanceTestThread extends Thread {
 
     private final Database database;
@@ -0,0 +1,123 @@
+package kv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.UUID;
+
+@RunWith(JUnit4.class)
+public class DatabaseRecoveryPerformanceTest {
+
+  private static final long TOTAL_BYTES = 16 * 1024 * 1024;
+
+  private static String randomPath() {
+    return "./" + UUID.randomUUID().toString();
+  }
+
+  /**
+   * Writes segment files directly, a running database would compact them
+   * away before they could be recovered.
+   */
+  private static void writeSegments(String dbPath, int segmentCount, int valueSize) throws IOException {
+    Files.createDirectory(Paths.get(dbPath));
+
+    Random random = new Random(segmentCount);
+    byte[] value = new byte[valueSize];
+    long entriesPerSegment = TOTAL_BYTES / segmentCount / valueSize;
+    long key = 0;
+
+    for (int segment = 1; segment <= segmentCount; segment++) {
+      File file = Paths.get(dbPath, String.format("seg-%d.bin", segment)).toFile();
+
+      try (FileOutputStream out = new FileOutputStream(file)) {
+        SegmentHeader.CURRENT.write(out);
+
+        for (long i = 0; i < entriesPerSegment; i++) {
+          random.nextBytes(value);
+          LogFormatter.write(out,
+              new ByteArrayInputStream(Long.toString(key++).getBytes()),
+              new ByteArrayInputStream(value),
+              LogFormatter.CURRENT_VERSION);
+        }
+      }
+    }
+  }
+
+  private static double timeStartup(
+      int segmentCount, int valueSize, int threads,
+      boolean hints, boolean verifyChecksums) throws IOException, InterruptedException {
+
+    String dbPath = randomPath();
+
+    try {
+      writeSegments(dbPath, segmentCount, valueSize);
+
+      if (hints) {
+        // the first start writes the hints the timed start reads
+        Database warmup = new Database(dbPath, TOTAL_BYTES, new DatabaseOptions().setRecoveryThreads(threads));
+        warmup.start();
+        warmup.stop();
+      }
+
+      Database database = new Database(dbPath, TOTAL_BYTES, new DatabaseOptions()
+          .setRecoveryThreads(threads)
+          .setVerifyChecksumsOnRecovery(verifyChecksums));
+
+      long startTime = System.nanoTime();
+      database.start();
+      long elapsed = System.nanoTime() - startTime;
+
+      database.stop();
+
+      return elapsed / 1_000_000.0;
+
+    } finally {
+      FileUtils.deleteDirectory(new File(dbPath));
+    }
+  }
+
+  private void runRecoveryPerformanceTest(int segmentCount, int valueSize) throws IOException, InterruptedException {
+    int cores = Runtime.getRuntime().availableProcessors();
+
+    System.out.printf("Recovery of %d segments, %d byte values --------\n", segmentCount, valueSize);
+    System.out.printf("%-20s:%12s%12s%12s\n", "Threads", "Scan (ms)", "No Crc (ms)", "Hints (ms)");
+
+    for (int threads : new int[]{1, Math.max(2, cores)}) {
+      System.out.printf("%-20s:%12.2f%12.2f%12.2f\n", threads,
+          timeStartup(segmentCount, valueSize, threads, false, true),
+          timeStartup(segmentCount, valueSize, threads, false, false),
+          timeStartup(segmentCount, valueSize, threads, true, true));
+    }
+
+    System.out.println("---------------------------------------------");
+  }
+
+  @Test
+  public void testFewSmallValues() throws IOException, InterruptedException {
+    runRecoveryPerformanceTest(8, 128);
+  }
+
+  @Test
+  public void testManySmallValues() throws IOException, InterruptedException {
+    runRecoveryPerformanceTest(64, 128);
+  }
+
+  @Test
+  public void testFewLargeValues() throws IOException, InterruptedException {
+    runRecoveryPerformanceTest(8, 4096);
+  }
+
+  @Test
+  public void testManyLargeValues() throws IOException, InterruptedException {
+    runRecoveryPerformanceTest(64, 4096);
+  }
+}
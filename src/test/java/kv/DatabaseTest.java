@@ -0,0 +1,1051 @@
+package kv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class DatabaseTest {
+
+  private String dbPath;
+  private Database database;
+
+  @Before
+  public void setUp() throws IOException {
+    dbPath = "./" + UUID.randomUUID().toString();
+    database = new Database(dbPath, 256);
+    database.start();
+  }
+
+  @After
+  public void tearDown() throws IOException, InterruptedException {
+    database.stop();
+    FileUtils.deleteDirectory(new File(dbPath));
+  }
+
+  private void restart() throws IOException, InterruptedException {
+    database.stop();
+    database = new Database(dbPath, 256);
+    database.start();
+  }
+
+  private void write(String key, String value) throws IOException {
+    database.write(key(key), new ByteArrayInputStream(value.getBytes()));
+  }
+
+  private String read(String key) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    return database.read(key(key), out) ? new String(out.toByteArray()) : null;
+  }
+
+  private static ByteSlice key(String key) {
+    return new ByteSlice(key.getBytes());
+  }
+
+  private void writeGenerations(int keys, int generations) throws IOException {
+    for (int generation = 0; generation < generations; generation++) {
+      for (int i = 0; i < keys; i++) {
+        write("key" + i, "value" + i + "-" + generation);
+      }
+    }
+  }
+
+  private void assertLatestGeneration(int keys, int generations) throws IOException {
+    for (int i = 0; i < keys; i++) {
+      assertEquals("value" + i + "-" + (generations - 1), read("key" + i));
+    }
+  }
+
+  private static int segmentId(Path path) {
+    String fileName = path.getFileName().toString();
+    return Integer.parseInt(fileName.substring(fileName.indexOf('-') + 1, fileName.indexOf('.')));
+  }
+
+  // waits for the segments it replaces to be deleted too, which happens once it is in use
+  private Path awaitCompactedSegmentOtherThan(Path previous) throws IOException, InterruptedException {
+    for (int attempt = 0; attempt < 100; attempt++) {
+      Optional<Path> compacted = Files.list(Paths.get(dbPath))
+          .filter(path -> path.getFileName().toString().matches("compact\\d+-\\d+\\.bin"))
+          .filter(path -> !path.equals(previous))
+          .findFirst();
+
+      if (compacted.isPresent()) {
+        boolean replaced = Files.list(Paths.get(dbPath))
+            .filter(path -> path.getFileName().toString().matches("(seg|compact\\d+)-\\d+\\.bin"))
+            .noneMatch(path -> !path.equals(compacted.get()) && segmentId(path) <= segmentId(compacted.get()));
+
+        if (replaced) {
+          return compacted.get();
+        }
+      }
+
+      Thread.sleep(100);
+    }
+
+    throw new AssertionError("Compaction did not complete");
+  }
+
+  /**
+   * Restarts with the options and waits for the compaction that follows
+   * recovery, which rewrites every key. Compactions triggered while writing
+   * may still be replacing each other until then.
+   */
+  private Path restartAndCompact(DatabaseOptions options) throws IOException, InterruptedException {
+    database.stop();
+
+    Path previous = Files.list(Paths.get(dbPath))
+        .filter(path -> path.getFileName().toString().matches("compact\\d+-\\d+\\.bin"))
+        .findFirst()
+        .orElse(null);
+
+    database = new Database(dbPath, 256, options);
+    database.start();
+
+    return awaitCompactedSegmentOtherThan(previous);
+  }
+
+  // the compaction that follows each restart may already have replaced the compacted segment
+  private void deleteCompactedHints() throws IOException {
+    List<Path> compacted = Files.list(Paths.get(dbPath))
+        .filter(path -> path.getFileName().toString().matches("compact\\d+-\\d+\\.bin"))
+        .collect(Collectors.toList());
+
+    for (Path path : compacted) {
+      Files.deleteIfExists(HintFile.pathFor(path));
+    }
+  }
+
+  private void awaitCompactedSegment() throws IOException, InterruptedException {
+    for (int attempt = 0; attempt < 100; attempt++) {
+      boolean compacted = Files.list(Paths.get(dbPath))
+          .anyMatch(path -> path.getFileName().toString().matches("compact\\d+-\\d+\\.bin"));
+
+      if (compacted) {
+        return;
+      }
+
+      Thread.sleep(100);
+    }
+
+    throw new AssertionError("Compaction did not complete");
+  }
+
+  @Test
+  public void testReadWriteDelete() throws IOException {
+    assertNull(read("missing"));
+
+    write("hello", "world");
+    assertEquals("world", read("hello"));
+
+    write("hello", "there");
+    assertEquals("there", read("hello"));
+
+    database.delete(key("hello"));
+    assertNull(read("hello"));
+    assertFalse(database.read(key("hello"), null));
+  }
+
+  @Test
+  public void testLatestWriteWinsAcrossSegments() throws IOException {
+    writeGenerations(20, 10);
+
+    assertLatestGeneration(20, 10);
+  }
+
+  @Test
+  public void testRecoveryAfterRestart() throws IOException, InterruptedException {
+    writeGenerations(20, 10);
+    database.delete(key("key3"));
+
+    restart();
+
+    assertNull(read("key3"));
+
+    for (int i = 0; i < 20; i++) {
+      if (i != 3) {
+        assertEquals("value" + i + "-9", read("key" + i));
+      }
+    }
+  }
+
+  @Test
+  public void testRecoveryFromHintFiles() throws IOException, InterruptedException {
+    writeGenerations(20, 10);
+    database.delete(key("key5"));
+
+    restart();
+
+    List<Path> hints = Files.list(Paths.get(dbPath))
+        .filter(HintFile::isHintFileName)
+        .collect(Collectors.toList());
+
+    assertFalse(hints.isEmpty());
+
+    // a damaged hint must fall back to scanning its segment
+    Files.write(hints.get(0), new byte[]{1, 2, 3});
+
+    restart();
+
+    assertNull(read("key5"));
+    assertEquals("value4-9", read("key4"));
+    assertLatestGeneration(5, 10);
+  }
+
+  @Test
+  public void testTruncatesTornTailOfActiveSegment() throws IOException, InterruptedException {
+    writeGenerations(5, 2);
+    database.stop();
+
+    Path active = Files.list(Paths.get(dbPath))
+        .filter(path -> path.getFileName().toString().matches("seg-\\d+\\.bin"))
+        .max(Comparator.comparing(path -> Integer.parseInt(path.getFileName().toString().replaceAll("\\D", ""))))
+        .get();
+
+    Files.write(active, new byte[]{(byte) 0xC5, (byte) 0xA3, 0, 1, 2}, StandardOpenOption.APPEND);
+
+    database = new Database(dbPath, 256);
+    database.start();
+
+    assertEquals(5, database.getRecoveryStats().getTruncatedBytes());
+    assertLatestGeneration(5, 2);
+  }
+
+  @Test
+  public void testReadsLegacySegments() throws IOException, InterruptedException {
+    write("key", "current");
+    database.stop();
+
+    try (FileOutputStream out = new FileOutputStream(Paths.get(dbPath, "seg-1000.bin").toFile())) {
+      LogFormatter.write(out,
+          new ByteArrayInputStream("legacy".getBytes()),
+          new ByteArrayInputStream("value".getBytes()));
+    }
+
+    database = new Database(dbPath, 256);
+    database.start();
+
+    assertEquals("value", read("legacy"));
+    assertEquals("current", read("key"));
+  }
+
+  @Test
+  public void testMixesChecksums() throws IOException, InterruptedException {
+    write("crc32", "value");
+    database.stop();
+
+    try (FileOutputStream out = new FileOutputStream(Paths.get(dbPath, "seg-1000.bin").toFile())) {
+      new SegmentHeader(LogFormatter.MARKED_VERSION, 0, SegmentHeader.SIZE).write(out);
+      LogFormatter.write(out,
+          new ByteArrayInputStream("marked".getBytes()),
+          new ByteArrayInputStream("value".getBytes()),
+          LogFormatter.MARKED_VERSION);
+    }
+
+    DatabaseOptions options = new DatabaseOptions().setChecksum(ChecksumType.CRC32C);
+    database = new Database(dbPath, 256, options);
+    database.start();
+
+    byte[] large = new byte[EncodedEntry.STREAMING_THRESHOLD + 1];
+    new Random(1).nextBytes(large);
+
+    write("crc32c", "value");
+    database.write(key("large"), new ByteArrayInputStream(large));
+    database.writeBatch(new WriteBatch()
+        .put(key("batched"), new ByteArrayInputStream("value".getBytes()))
+        .delete(key("crc32")));
+
+    for (int i = 0; i < 2; i++) {
+      assertNull(read("crc32"));
+      assertEquals("value", read("marked"));
+      assertEquals("value", read("crc32c"));
+      assertEquals("value", read("batched"));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertTrue(database.read(key("large"), out));
+      assertArrayEquals(large, out.toByteArray());
+
+      database.stop();
+      database = new Database(dbPath, 256, options);
+      database.start();
+    }
+
+    List<Path> written = Files.list(Paths.get(dbPath))
+        .filter(path -> path.toString().endsWith(".bin") && !path.endsWith("seg-1000.bin"))
+        .collect(Collectors.toList());
+
+    assertFalse(written.isEmpty());
+
+    for (Path path : written) {
+      try {
+        assertEquals(ChecksumType.CRC32C, SegmentHeader.read(path).getChecksum());
+      } catch (NoSuchFileException e) {
+        // compacted away since it was listed
+      }
+    }
+  }
+
+  @Test
+  public void testCompressesValues() throws IOException, InterruptedException {
+    database.stop();
+    DatabaseOptions options = new DatabaseOptions()
+        .setCompression(new DeflateCodec())
+        .setCompressionThreshold(64);
+    database = new Database(dbPath, 4096, options);
+    database.start();
+
+    StringBuilder document = new StringBuilder();
+
+    for (int i = 0; i < 20; i++) {
+      document.append("{\"id\": ").append(i).append(", \"name\": \"some name\", \"tags\": [\"a\", \"b\"]}");
+    }
+
+    byte[] large = new byte[EncodedEntry.STREAMING_THRESHOLD + 1];
+    new Random(1).nextBytes(large);
+
+    for (int i = 0; i < 10; i++) {
+      write("document" + i, document + "-" + i);
+    }
+
+    write("small", "value");
+    database.write(key("large"), new ByteArrayInputStream(large));
+    database.writeBatch(new WriteBatch()
+        .put(key("batched"), new ByteArrayInputStream(document.toString().getBytes()))
+        .delete(key("document9")));
+
+    long size = 0;
+
+    for (Path path : Files.list(Paths.get(dbPath)).collect(Collectors.toList())) {
+      if (path.toString().endsWith(".bin")) {
+        size += Files.size(path);
+      }
+    }
+
+    assertTrue(size < large.length + document.length() * 2);
+
+    for (int i = 0; i < 3; i++) {
+      for (int d = 0; d < 9; d++) {
+        assertEquals(document + "-" + d, read("document" + d));
+      }
+
+      assertNull(read("document9"));
+      assertEquals("value", read("small"));
+      assertEquals(document.toString(), read("batched"));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertTrue(database.read(key("large"), out));
+      assertArrayEquals(large, out.toByteArray());
+
+      if (i == 0) {
+        database.compact();
+        awaitCompactedSegment();
+      } else {
+        // segments compressed with deflate stay readable without compression configured
+        restart();
+      }
+    }
+  }
+
+  @Test
+  public void testCompactsIntoBlocks() throws IOException, InterruptedException {
+    byte[] large = new byte[5000];
+    new Random(1).nextBytes(large);
+
+    for (int i = 0; i < 200; i++) {
+      write("key" + i, "{\"id\": " + i + ", \"name\": \"some name\"}");
+    }
+
+    database.write(key("large"), new ByteArrayInputStream(large));
+    database.delete(key("key7"));
+
+    Path compacted = restartAndCompact(new DatabaseOptions().setCompactionBlockSize(1024));
+    assertTrue(SegmentHeader.read(compacted).isBlocks());
+    assertTrue(Files.size(compacted) < large.length + 200 * 20);
+
+    for (int attempt = 0; attempt < 3; attempt++) {
+      for (int i = 0; i < 200; i++) {
+        assertEquals(i == 7 ? null : "{\"id\": " + i + ", \"name\": \"some name\"}", read("key" + i));
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertTrue(database.read(key("large"), out));
+      assertArrayEquals(large, out.toByteArray());
+
+      // read live, then recovered from the hint file, then by scanning the blocks
+      if (attempt == 1) {
+        deleteCompactedHints();
+      }
+
+      restart();
+    }
+  }
+
+  @Test
+  public void testCompactsWithDictionary() throws IOException, InterruptedException {
+    String[] names = {"alice", "bob", "carol", "dave"};
+    List<String> values = new ArrayList<>();
+
+    for (int i = 0; i < 200; i++) {
+      values.add("{\"id\": " + i + ", \"name\": \"" + names[i % names.length]
+          + "\", \"status\": \"active\", \"created_at\": \"2020-01-01\"}");
+      write("key" + i, values.get(i));
+    }
+
+    Path compacted = restartAndCompact(new DatabaseOptions().setCompactionDictionarySize(1024));
+    SegmentHeader header = SegmentHeader.read(compacted);
+    assertNotNull(header.getDictionary());
+    assertEquals(DeflateCodec.ID, header.getCompression());
+
+    long rawLength = values.stream().mapToLong(String::length).sum();
+    assertTrue(Files.size(compacted) < rawLength);
+
+    for (int attempt = 0; attempt < 3; attempt++) {
+      for (int i = 0; i < 200; i++) {
+        assertEquals(values.get(i), read("key" + i));
+      }
+
+      // read live, then recovered from the hint file, then by scanning
+      if (attempt == 1) {
+        deleteCompactedHints();
+      }
+
+      restart();
+    }
+  }
+
+  @Test
+  public void testCompactsSorted() throws IOException, InterruptedException {
+    for (int i = 0; i < 200; i++) {
+      write("key" + i, "value" + i);
+    }
+
+    database.delete(key("key7"));
+
+    DatabaseOptions options = new DatabaseOptions().setCompactionIndexInterval(128);
+    Path compacted = restartAndCompact(options);
+    SegmentHeader header = SegmentHeader.read(compacted);
+    assertTrue(header.isSorted());
+    assertTrue(header.isFiltered());
+
+    for (int i = 0; i < 100; i++) {
+      assertNull(read("missing" + i));
+    }
+
+    FilterStats stats = database.getFilterStats();
+    assertEquals(100, stats.getNegatives() + stats.getFalsePositives());
+    assertTrue(stats.toString(), stats.getFalsePositiveRate() < 0.1);
+
+    Segment segment = new Segment(compacted.toString(), null, 0, true, 0, new ChannelCache(1), header, null);
+    segment.seal();
+
+    List<ByteSlice> keys = new ArrayList<>();
+    Segment.Cursor cursor = segment.cursor();
+
+    while (cursor.next()) {
+      keys.add(cursor.key());
+    }
+
+    assertEquals(199, keys.size());
+    assertFalse(keys.contains(key("key7")));
+
+    for (int i = 1; i < keys.size(); i++) {
+      assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0);
+    }
+
+    // masking the sorted segment, until the next compaction merges with it
+    write("key3", "updated");
+    database.delete(key("key5"));
+
+    for (int attempt = 0; attempt < 3; attempt++) {
+      assertNull(read("missing"));
+
+      for (int i = 0; i < 200; i++) {
+        String expected = i == 7 || i == 5 ? null : i == 3 ? "updated" : "value" + i;
+        assertEquals(expected, read("key" + i));
+      }
+
+      database.stop();
+
+      // merged into a new sorted segment, then rewritten unsorted
+      database = new Database(dbPath, 256, attempt == 0 ? options : new DatabaseOptions());
+      database.start();
+
+      if (attempt < 2) {
+        compacted = awaitCompactedSegmentOtherThan(compacted);
+        assertEquals(attempt == 0, SegmentHeader.read(compacted).isSorted());
+      }
+    }
+  }
+
+  @Test
+  public void testGroupCommitFromManyThreads() throws IOException, InterruptedException {
+    database.stop();
+    database = new Database(dbPath, 256, new DatabaseOptions().setDurability(Durability.SYNC));
+    database.start();
+
+    List<Thread> threads = new ArrayList<>();
+    List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+    for (int t = 0; t < 8; t++) {
+      int thread = t;
+
+      threads.add(new Thread(() -> {
+        try {
+          for (int i = 0; i < 20; i++) {
+            write("key" + thread + "-" + i, "value" + i);
+          }
+
+          database.delete(key("key" + thread + "-0"));
+
+        } catch (IOException e) {
+          failures.add(e);
+        }
+      }));
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+
+    restart();
+
+    for (int t = 0; t < 8; t++) {
+      assertNull(read("key" + t + "-0"));
+
+      for (int i = 1; i < 20; i++) {
+        assertEquals("value" + i, read("key" + t + "-" + i));
+      }
+    }
+  }
+
+  @Test
+  public void testSequencedWrites() throws IOException, InterruptedException {
+    database.stop();
+    database = new Database(dbPath, 256, new DatabaseOptions().setSequencedWrites(true).setWriteQueueCapacity(4));
+    database.start();
+
+    List<Thread> threads = new ArrayList<>();
+    List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+    for (int t = 0; t < 8; t++) {
+      int thread = t;
+
+      threads.add(new Thread(() -> {
+        try {
+          for (int i = 0; i < 20; i++) {
+            write("key" + thread + "-" + i, "value" + i);
+          }
+
+          database.delete(key("key" + thread + "-0"), Durability.SYNC);
+
+        } catch (IOException e) {
+          failures.add(e);
+        }
+      }));
+    }
+
+    for (Thread thread : threads) {
+      thread.start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+
+    restart();
+
+    for (int t = 0; t < 8; t++) {
+      assertNull(read("key" + t + "-0"));
+
+      for (int i = 1; i < 20; i++) {
+        assertEquals("value" + i, read("key" + t + "-" + i));
+      }
+    }
+  }
+
+  @Test
+  public void testInterruptedWriterDoesNotBreakLaterWrites() throws IOException, InterruptedException {
+    AtomicBoolean stillInterrupted = new AtomicBoolean();
+    List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+
+    Thread writer = new Thread(() -> {
+      Thread.currentThread().interrupt();
+
+      try {
+        write("interrupted", "value");
+        stillInterrupted.set(Thread.currentThread().isInterrupted());
+      } catch (IOException e) {
+        failures.add(e);
+      }
+    });
+
+    writer.start();
+    writer.join();
+
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertTrue(stillInterrupted.get());
+
+    write("after", "value");
+    assertEquals("value", read("interrupted"));
+    assertEquals("value", read("after"));
+
+    restart();
+
+    assertEquals("value", read("interrupted"));
+    assertEquals("value", read("after"));
+  }
+
+  @Test
+  public void testPerWriteDurability() throws IOException, InterruptedException {
+    database.stop();
+    database = new Database(dbPath, 256, new DatabaseOptions()
+        .setDurability(Durability.PERIODIC)
+        .setSyncIntervalMillis(10)
+        .setSyncIntervalBytes(64));
+    database.start();
+
+    writeGenerations(10, 3);
+    database.write(key("synced"), new ByteArrayInputStream("value".getBytes()), Durability.SYNC);
+    database.write(key("unsynced"), new ByteArrayInputStream("value".getBytes()), Durability.NONE);
+    database.delete(key("synced"), Durability.SYNC);
+
+    restart();
+
+    assertLatestGeneration(10, 3);
+    assertNull(read("synced"));
+    assertEquals("value", read("unsynced"));
+  }
+
+  @Test
+  public void testWriteBatch() throws IOException, InterruptedException {
+    write("deleted", "value");
+
+    WriteBatch batch = new WriteBatch();
+
+    for (int i = 0; i < 20; i++) {
+      batch.put(key("key" + i), new ByteArrayInputStream(("value" + i + "-0").getBytes()));
+    }
+
+    batch.delete(key("deleted"));
+    database.writeBatch(batch);
+
+    assertLatestGeneration(20, 1);
+    assertNull(read("deleted"));
+
+    restart();
+
+    assertLatestGeneration(20, 1);
+    assertNull(read("deleted"));
+  }
+
+  @Test
+  public void testStreamsLargeValues() throws IOException, InterruptedException {
+    byte[] value = new byte[EncodedEntry.STREAMING_THRESHOLD * 3 + 5];
+    new Random(1).nextBytes(value);
+
+    write("before", "small");
+    database.write(key("large"), new ByteArrayInputStream(value));
+    write("after", "small");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertTrue(database.read(key("large"), out));
+    assertArrayEquals(value, out.toByteArray());
+
+    restart();
+
+    out = new ByteArrayOutputStream();
+    assertTrue(database.read(key("large"), out));
+    assertArrayEquals(value, out.toByteArray());
+    assertEquals("small", read("before"));
+    assertEquals("small", read("after"));
+    assertEquals(0, Files.list(Paths.get(dbPath, "spool")).count());
+  }
+
+  @Test
+  public void testFailedAppendIsTruncated() throws IOException {
+    Path path = Files.createTempFile("segment", ".data");
+    FileOutputStream out = new FileOutputStream(path.toFile());
+    SegmentHeader header = SegmentHeader.CURRENT;
+    header.write(out);
+
+    Segment segment = new Segment(path.toString(), out, 0, false, 1 << 20, new ChannelCache(1), header, null);
+
+    try {
+      KeyDirectory.Location first = segment.write(key("first"), new ByteArrayInputStream("value1".getBytes()));
+      long size = Files.size(path);
+
+      EncodedEntry failing = EncodedEntry.encodeStreaming(key("failing"),
+          new ByteArrayInputStream(new byte[EncodedEntry.STREAMING_THRESHOLD * 2]),
+          header.getVersion(), header.getChecksum(), null, path.getParent());
+      assertTrue(failing.isStreamed());
+
+      // the spooled value can no longer be read once its stream is closed
+      failing.close();
+
+      try {
+        segment.write(Arrays.asList(
+            EncodedEntry.encode(key("second"), new ByteArrayInputStream("value2".getBytes()),
+                header.getVersion(), header.getChecksum(), null),
+            failing));
+        fail("Append of a closed stream succeeded");
+      } catch (IOException e) {
+        assertEquals(size, Files.size(path));
+      }
+
+      KeyDirectory.Location third = segment.write(key("third"), new ByteArrayInputStream("value3".getBytes()));
+      assertEquals(size, third.getOffset());
+
+      segment.seal();
+
+      List<String> hinted = new ArrayList<>();
+      HintFile.read(HintFile.pathFor(path), Files.size(path),
+          (key, offset, length, tombstone) -> hinted.add(new String(key.copyData())));
+      assertEquals(Arrays.asList("first", "third"), hinted);
+
+      ByteArrayOutputStream value = new ByteArrayOutputStream();
+      assertTrue(segment.read(first, value));
+      assertEquals("value1", value.toString());
+
+      value.reset();
+      assertTrue(segment.read(third, value));
+      assertEquals("value3", value.toString());
+
+    } finally {
+      segment.close();
+      Files.deleteIfExists(HintFile.pathFor(path));
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  public void testSpoolsOnlyValuesPastThreshold() throws IOException, InterruptedException {
+    Path spool = Paths.get(dbPath, "spool");
+    Random random = new Random(4);
+
+    for (int length : new int[]{0, 1, 8191, 8192, 8193, 20_000, EncodedEntry.STREAMING_THRESHOLD}) {
+      byte[] value = new byte[length];
+      random.nextBytes(value);
+
+      EncodedEntry entry = EncodedEntry.encodeStreaming(key("key" + length), new ByteArrayInputStream(value),
+          LogFormatter.CURRENT_VERSION, ChecksumType.CRC32, null, spool);
+      assertFalse(entry.isStreamed());
+
+      database.write(key("key" + length), new ByteArrayInputStream(value));
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertTrue(database.read(key("key" + length), out));
+      assertArrayEquals(value, out.toByteArray());
+    }
+
+    EncodedEntry streamed = EncodedEntry.encodeStreaming(key("streamed"),
+        new ByteArrayInputStream(new byte[EncodedEntry.STREAMING_THRESHOLD + 1]),
+        LogFormatter.CURRENT_VERSION, ChecksumType.CRC32, null, spool);
+    assertTrue(streamed.isStreamed());
+    assertEquals(1, Files.list(spool).count());
+
+    streamed.close();
+    assertEquals(0, Files.list(spool).count());
+
+    // values a previous run spooled but never appended are dropped on start
+    Files.createFile(spool.resolve("value-leftover.tmp"));
+    restart();
+    assertEquals(0, Files.list(spool).count());
+  }
+
+  @Test
+  public void testFailedStreamOnlyFailsItsWrite() throws IOException, InterruptedException {
+    byte[] head = new byte[EncodedEntry.STREAMING_THRESHOLD * 2];
+
+    // fails once the value is past the streaming threshold
+    InputStream failing = new SequenceInputStream(new ByteArrayInputStream(head), new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("connection reset");
+      }
+    });
+
+    write("before", "small");
+
+    try {
+      database.write(key("failed"), failing);
+      fail("Write of a failing stream succeeded");
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+
+    write("after", "small");
+    assertNull(read("failed"));
+
+    restart();
+
+    assertNull(read("failed"));
+    assertEquals("small", read("before"));
+    assertEquals("small", read("after"));
+  }
+
+  @Test
+  public void testCompactionKeepsLatestValues() throws IOException, InterruptedException {
+    writeGenerations(20, 10);
+    database.delete(key("key7"));
+    write("other", "value");
+
+    database.compact();
+    awaitCompactedSegment();
+
+    assertNull(read("key7"));
+    assertEquals("value", read("other"));
+    assertTrue(database.read(key("key0"), null));
+
+    restart();
+
+    assertNull(read("key7"));
+    assertEquals("value", read("other"));
+    assertEquals("value0-9", read("key0"));
+  }
+
+  @Test
+  public void testReadsWhileCompacting() throws IOException, InterruptedException {
+    writeGenerations(20, 1);
+
+    List<Thread> readers = new ArrayList<>();
+    List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+    AtomicBoolean writing = new AtomicBoolean(true);
+
+    for (int t = 0; t < 4; t++) {
+      readers.add(new Thread(() -> {
+        try {
+          while (writing.get()) {
+            for (int i = 0; i < 20; i++) {
+              String value = read("key" + i);
+
+              if (value == null || !value.startsWith("value" + i + "-")) {
+                failures.add(new AssertionError("key" + i + " read as " + value));
+              }
+            }
+          }
+
+        } catch (IOException e) {
+          failures.add(e);
+        }
+      }));
+    }
+
+    for (Thread reader : readers) {
+      reader.start();
+    }
+
+    // every few segments filled triggers a compaction that retires the ones before
+    writeGenerations(20, 50);
+    writing.set(false);
+
+    for (Thread reader : readers) {
+      reader.join();
+    }
+
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertLatestGeneration(20, 50);
+  }
+
+  @Test
+  public void testAsyncOperations() throws Exception {
+    runAsyncOperations();
+
+    database.stop();
+    database = new Database(dbPath, 256, new DatabaseOptions().setSequencedWrites(true));
+    database.start();
+
+    runAsyncOperations();
+
+    // the sorted segment is searched on the executor rather than read by location
+    restartAndCompact(new DatabaseOptions().setCompactionIndexInterval(4));
+    assertEquals("value3-1", new String(database.readAsync(key("key3")).get()));
+  }
+
+  @Test
+  public void testNoAsyncExecutorAfterStop() throws Exception {
+    database.stop();
+
+    try {
+      database.writeAsync(key("key"), new ByteArrayInputStream("value".getBytes())).get();
+      fail("Async write of a stopped database was run");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    } finally {
+      database = new Database(dbPath, 256);
+      database.start();
+    }
+  }
+
+  @Test
+  public void testRejectedAsyncCommitDeletesSpooledValue() throws Exception {
+    AtomicInteger executions = new AtomicInteger();
+
+    // runs the encoding of the value, then rejects its commit
+    ExecutorService rejecting = new AbstractExecutorService() {
+      @Override
+      public void execute(Runnable command) {
+        if (executions.incrementAndGet() > 1) {
+          throw new RejectedExecutionException("shut down");
+        }
+
+        command.run();
+      }
+
+      @Override
+      public void shutdown() {
+      }
+
+      @Override
+      public List<Runnable> shutdownNow() {
+        return Collections.emptyList();
+      }
+
+      @Override
+      public boolean isShutdown() {
+        return false;
+      }
+
+      @Override
+      public boolean isTerminated() {
+        return false;
+      }
+
+      @Override
+      public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return true;
+      }
+    };
+
+    database.stop();
+    database = new Database(dbPath, 256, new DatabaseOptions().setAsyncExecutor(rejecting));
+    database.start();
+
+    byte[] value = new byte[EncodedEntry.STREAMING_THRESHOLD * 2];
+
+    try {
+      database.writeAsync(key("large"), new ByteArrayInputStream(value)).get();
+      fail("Rejected async write succeeded");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+
+    assertEquals(0, Files.list(Paths.get(dbPath, "spool")).count());
+    assertNull(read("large"));
+  }
+
+  @Test
+  public void testChannelCacheBoundsBothKindsOfChannel() throws IOException {
+    ChannelCache cache = new ChannelCache(3);
+    List<Path> files = new ArrayList<>();
+
+    try {
+      for (int i = 0; i < 4; i++) {
+        Path file = Files.createTempFile("channel", ".bin");
+        files.add(file);
+
+        cache.get(file.toString());
+        cache.getAsync(file.toString());
+
+        assertTrue(cache.size() <= 3);
+      }
+
+      assertEquals(3, cache.size());
+
+      // the least recently used channel of the last file was evicted, not the one just opened
+      assertTrue(cache.getAsync(files.get(3).toString()).isOpen());
+
+    } finally {
+      cache.close();
+
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+  }
+
+  private void runAsyncOperations() throws Exception {
+    List<CompletableFuture<Void>> writes = new ArrayList<>();
+
+    for (int generation = 0; generation < 2; generation++) {
+      for (int i = 0; i < 20; i++) {
+        // each key's writes are ordered, the next generation waits for the last
+        byte[] value = ("value" + i + "-" + generation).getBytes();
+        writes.add(database.writeAsync(key("key" + i), new ByteArrayInputStream(value)));
+      }
+
+      for (CompletableFuture<Void> write : writes) {
+        write.get();
+      }
+
+      writes.clear();
+    }
+
+    database.deleteAsync(key("key7"), Durability.SYNC).get();
+
+    List<CompletableFuture<byte[]>> reads = new ArrayList<>();
+
+    for (int i = 0; i < 20; i++) {
+      reads.add(database.readAsync(key("key" + i)));
+    }
+
+    for (int i = 0; i < 20; i++) {
+      byte[] value = reads.get(i).get();
+      assertEquals(i == 7 ? null : "value" + i + "-1", value == null ? null : new String(value));
+    }
+
+    assertNull(database.readAsync(key("missing")).get());
+
+    restart();
+
+    assertEquals("value0-1", new String(database.readAsync(key("key0")).get()));
+    assertNull(database.readAsync(key("key7")).get());
+  }
+}
@@ -0,0 +1,123 @@
+package kv;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class GroupCommitterTest {
+
+  private static EncodedEntry entry(String key) throws IOException {
+    return EncodedEntry.encode(new ByteSlice(key.getBytes()),
+        new ByteArrayInputStream("value".getBytes()), LogFormatter.CURRENT_VERSION, ChecksumType.CRC32, null);
+  }
+
+  @Test
+  public void testQueuedEntriesShareABatch() throws IOException, InterruptedException {
+    CountDownLatch firstFlushStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstFlush = new CountDownLatch(1);
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    List<Durability> batchDurabilities = Collections.synchronizedList(new ArrayList<>());
+
+    GroupCommitter committer = new GroupCommitter((entries, durability) -> {
+      if (batchSizes.isEmpty()) {
+        firstFlushStarted.countDown();
+
+        try {
+          releaseFirstFlush.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+
+      batchSizes.add(entries.size());
+      batchDurabilities.add(durability);
+    });
+
+    Thread leader = new Thread(() -> commit(committer, "leader", Durability.NONE));
+    leader.start();
+    firstFlushStarted.await();
+
+    List<Thread> followers = new ArrayList<>();
+
+    for (int i = 0; i < 4; i++) {
+      String key = "follower" + i;
+      Durability durability = i == 0 ? Durability.SYNC : Durability.PERIODIC;
+      followers.add(new Thread(() -> commit(committer, key, durability)));
+    }
+
+    for (Thread follower : followers) {
+      follower.start();
+    }
+
+    // wait until every follower is queued behind the leader's flush
+    while (followers.stream().anyMatch(follower -> follower.getState() != Thread.State.WAITING)) {
+      Thread.sleep(10);
+    }
+
+    releaseFirstFlush.countDown();
+    leader.join();
+
+    for (Thread follower : followers) {
+      follower.join();
+    }
+
+    assertEquals(2, committer.getBatches());
+    assertEquals(5, committer.getEntries());
+    assertEquals(4, (int) batchSizes.get(1));
+    assertEquals(Arrays.asList(Durability.NONE, Durability.SYNC), batchDurabilities);
+  }
+
+  @Test
+  public void testFailedFlushFailsEveryCaller() throws IOException {
+    GroupCommitter committer = new GroupCommitter((entries, durability) -> {
+      throw new IOException("disk full");
+    });
+
+    try {
+      committer.commit(entry("key"), Durability.SYNC);
+      fail("Expected the commit to fail");
+
+    } catch (IOException e) {
+      assertTrue(e.getCause().getMessage().contains("disk full"));
+    }
+  }
+
+  @Test
+  public void testInterruptedCallerFlushesUninterrupted() throws IOException {
+    List<Boolean> flushedInterrupted = new ArrayList<>();
+    GroupCommitter committer = new GroupCommitter(
+        (entries, durability) -> flushedInterrupted.add(Thread.currentThread().isInterrupted()));
+
+    Thread.currentThread().interrupt();
+
+    try {
+      committer.commit(entry("key"), Durability.NONE);
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+
+    assertEquals(Collections.singletonList(false), flushedInterrupted);
+  }
+
+  private static void commit(GroupCommitter committer, String key, Durability durability) {
+    try {
+      committer.commit(entry(key), durability);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
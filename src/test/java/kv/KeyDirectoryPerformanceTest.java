@@ -0,0 +1,77 @@
+package kv;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+@RunWith(JUnit4.class)
+public class KeyDirectoryPerformanceTest {
+
+  private static final int KEY_COUNT = 500_000;
+  private static final int KEY_LENGTH = 16;
+
+  private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+  private static long usedHeap() {
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+    }
+
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  private static ByteSlice key(int i) {
+    byte[] data = new byte[KEY_LENGTH];
+
+    for (int b = 0; b < 4; b++) {
+      data[b] = (byte) (i >>> (b * 8));
+    }
+
+    return new ByteSlice(data);
+  }
+
+  private static void fill(KeyDirectory directory) {
+    for (int i = 0; i < KEY_COUNT; i++) {
+      directory.put(key(i), new KeyDirectory.Location(i % 1000, i * 64L, 64));
+    }
+  }
+
+  private static void display(String description, String format, Object... args) {
+    System.out.printf("%-20s:%24s\n", description, String.format(format, args));
+  }
+
+  @Test
+  public void testBytesPerKey() {
+    long baseline = usedHeap();
+    KeyDirectory heap = new HeapKeyDirectory();
+    fill(heap);
+    long heapBytes = usedHeap() - baseline;
+
+    if (heap.size() != KEY_COUNT) {
+      throw new AssertionError("Unexpected heap directory size: " + heap.size());
+    }
+
+    heap = null;
+
+    baseline = usedHeap();
+    OffHeapKeyDirectory offHeap = new OffHeapKeyDirectory();
+    fill(offHeap);
+    long offHeapHeapBytes = usedHeap() - baseline;
+    long offHeapBytes = offHeap.offHeapBytes();
+
+    if (offHeap.size() != KEY_COUNT) {
+      throw new AssertionError("Unexpected off heap directory size: " + offHeap.size());
+    }
+
+    System.out.println("Key Directory Bytes Per Key ------------------");
+    display("Keys", "%s", KEY_COUNT);
+    display("Key Length", "%s", KEY_LENGTH);
+    display("Heap Map", "%.2f", ((double) heapBytes) / KEY_COUNT);
+    display("Off Heap (heap)", "%.2f", ((double) Math.max(0, offHeapHeapBytes)) / KEY_COUNT);
+    display("Off Heap (direct)", "%.2f", ((double) offHeapBytes) / KEY_COUNT);
+    System.out.println("---------------------------------------------");
+  }
+}
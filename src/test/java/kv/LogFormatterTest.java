@@ -9,10 +9,19 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.function.Consumer;
+import java.util.zip.Checksum;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(JUnit4.class)
 public class LogFormatterTest {
@@ -83,4 +92,106 @@ public class LogFormatterTest {
       arr[arr.length - 1] = 0;
     });
   }
+
+  @Test
+  public void testReadFromByteBuffer() throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    buffer.write(writeToByteArray("first", "one"));
+    buffer.write(writeToByteArray("second", "two"));
+
+    ByteBuffer in = ByteBuffer.allocateDirect(buffer.size());
+    in.put(buffer.toByteArray());
+    in.flip();
+
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+
+    assertTrue(LogFormatter.read(in, first));
+    assertTrue(LogFormatter.read(in, second));
+
+    assertEquals("one", new String(first.toByteArray()));
+    assertEquals("two", new String(second.toByteArray()));
+    assertEquals(0, in.remaining());
+  }
+
+  @Test
+  public void testChecksumCombine() {
+    Random random = new Random(1);
+
+    for (ChecksumType type : ChecksumType.values()) {
+      for (int length : new int[]{0, 1, 9, 100, 70_000}) {
+        byte[] first = new byte[17];
+        byte[] second = new byte[length];
+        random.nextBytes(first);
+        random.nextBytes(second);
+
+        Checksum joined = type.create();
+        joined.update(first, 0, first.length);
+        joined.update(second, 0, second.length);
+
+        assertEquals(type + " of " + length, joined.getValue(),
+            type.combine(checksum(type, first), checksum(type, second), length));
+      }
+    }
+  }
+
+  @Test
+  public void testChecksumOfBuffers() {
+    byte[] bytes = new byte[20_000];
+    new Random(3).nextBytes(bytes);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    direct.put(bytes).flip();
+
+    for (ChecksumType type : ChecksumType.values()) {
+      long expected = checksum(type, Arrays.copyOfRange(bytes, 5, bytes.length));
+
+      for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.wrap(bytes), direct.duplicate()}) {
+        buffer.position(5);
+        ByteBuffer slice = buffer.slice();
+
+        Checksum checksum = type.create();
+        ChecksumType.update(checksum, slice);
+
+        assertEquals(type + " of " + (buffer.isDirect() ? "direct" : "heap") + " buffer", expected, checksum.getValue());
+        assertEquals(0, slice.remaining());
+      }
+    }
+  }
+
+  private static long checksum(ChecksumType type, byte[] bytes) {
+    Checksum checksum = type.create();
+    checksum.update(bytes, 0, bytes.length);
+    return checksum.getValue();
+  }
+
+  @Test
+  public void testStreamingWriteMatchesBufferedWrite() throws IOException {
+    byte[] value = new byte[200_000];
+    new Random(2).nextBytes(value);
+
+    for (ChecksumType checksum : ChecksumType.values()) {
+      Path path = Files.createTempFile("entry", ".bin");
+
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+        channel.position(3);
+        long length = LogFormatter.write(channel, "key".getBytes(), new ByteArrayInputStream(value),
+            LogFormatter.CURRENT_VERSION, checksum);
+
+        assertEquals(LogEntry.STATIC_HEADER_SIZE + 3 + value.length, length);
+        assertEquals(3 + length, channel.position());
+      }
+
+      try {
+        byte[] expected = LogFormatter.encode(new ByteSlice("key".getBytes()), value, value.length,
+            LogFormatter.CURRENT_VERSION, checksum);
+        byte[] written = Files.readAllBytes(path);
+
+        assertArrayEquals(expected, Arrays.copyOfRange(written, 3, written.length));
+
+      } finally {
+        Files.delete(path);
+      }
+    }
+  }
 }
@@ -0,0 +1,124 @@
+package kv;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class OffHeapKeyDirectoryTest {
+
+  private static ByteSlice key(int i) {
+    return new ByteSlice(("key-" + i).getBytes());
+  }
+
+  @Test
+  public void testPutGetRemove() {
+    OffHeapKeyDirectory directory = new OffHeapKeyDirectory(16);
+    KeyDirectory.Location location = new KeyDirectory.Location(7, 1L << 35, 42);
+
+    assertNull(directory.get(key(1)));
+
+    directory.put(key(1), location);
+    assertEquals(location, directory.get(key(1)));
+    assertTrue(directory.contains(key(1)));
+    assertEquals(1, directory.size());
+
+    directory.remove(key(1));
+    assertNull(directory.get(key(1)));
+    assertFalse(directory.contains(key(1)));
+    assertEquals(0, directory.size());
+  }
+
+  @Test
+  public void testReplaceOnlyWhenExpected() {
+    OffHeapKeyDirectory directory = new OffHeapKeyDirectory(16);
+    KeyDirectory.Location first = new KeyDirectory.Location(1, 0, 10);
+    KeyDirectory.Location second = new KeyDirectory.Location(2, 0, 10);
+    KeyDirectory.Location third = new KeyDirectory.Location(3, 0, 10);
+
+    directory.put(key(1), first);
+
+    assertFalse(directory.replace(key(1), second, third));
+    assertEquals(first, directory.get(key(1)));
+
+    assertTrue(directory.replace(key(1), first, second));
+    assertEquals(second, directory.get(key(1)));
+  }
+
+  @Test
+  public void testRemoveOnlyWhenExpected() {
+    OffHeapKeyDirectory directory = new OffHeapKeyDirectory(16);
+    KeyDirectory.Location first = new KeyDirectory.Location(1, 0, 10);
+    KeyDirectory.Location second = new KeyDirectory.Location(2, 0, 10);
+
+    directory.put(key(1), first);
+
+    assertFalse(directory.remove(key(1), second));
+    assertEquals(first, directory.get(key(1)));
+
+    assertTrue(directory.remove(key(1), first));
+    assertNull(directory.get(key(1)));
+    assertEquals(0, directory.size());
+  }
+
+  @Test
+  public void testMatchesHashMapUnderRandomOperations() {
+    OffHeapKeyDirectory directory = new OffHeapKeyDirectory(16);
+    Map<ByteSlice, KeyDirectory.Location> expected = new HashMap<>();
+    Random random = new Random(42);
+
+    for (int i = 0; i < 200_000; i++) {
+      ByteSlice key = key(random.nextInt(20_000));
+
+      if (random.nextInt(4) == 0) {
+        directory.remove(key);
+        expected.remove(key);
+
+      } else {
+        KeyDirectory.Location location = new KeyDirectory.Location(
+            random.nextInt(1000), random.nextInt(Integer.MAX_VALUE), random.nextInt(4096));
+
+        directory.put(key, location);
+        expected.put(key, location);
+      }
+    }
+
+    assertEquals(expected.size(), directory.size());
+
+    Map<ByteSlice, KeyDirectory.Location> actual = new HashMap<>();
+    directory.forEach(actual::put);
+
+    assertEquals(expected, actual);
+
+    for (int i = 0; i < 20_000; i++) {
+      assertEquals(expected.get(key(i)), directory.get(key(i)));
+    }
+  }
+
+  @Test
+  public void testReclaimsArenaOfRemovedKeys() {
+    OffHeapKeyDirectory directory = new OffHeapKeyDirectory(16);
+    ByteSlice key = new ByteSlice(new byte[100]);
+    KeyDirectory.Location location = new KeyDirectory.Location(1, 0, 10);
+
+    for (int i = 0; i < 200_000; i++) {
+      directory.put(key, location);
+      directory.remove(key);
+    }
+
+    assertEquals(0, directory.size());
+    assertTrue("Off heap bytes: " + directory.offHeapBytes(), directory.offHeapBytes() < 1024 * 1024);
+
+    directory.put(key, location);
+    assertEquals(location, directory.get(key));
+  }
+}
@@ -0,0 +1,95 @@
+package kv;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Bytes allocated and time taken per encode and decode of one entry, going
+ * through streams and going through {@link RecordCodec}. Allocation is read
+ * from the thread's allocation counter, the same one JMH's gc profiler
+ * reports as gc.alloc.rate.norm.
+ */
+@RunWith(JUnit4.class)
+public class RecordCodecPerformanceTest {
+
+  private static final int WARMUP_OPERATIONS = 20_000;
+  private static final int OPERATIONS = 100_000;
+
+  private interface Operation {
+    void run() throws IOException;
+  }
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private static double[] measure(Operation operation) throws IOException {
+    for (int i = 0; i < WARMUP_OPERATIONS; i++) {
+      operation.run();
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+    long startTime = System.nanoTime();
+
+    for (int i = 0; i < OPERATIONS; i++) {
+      operation.run();
+    }
+
+    long elapsed = System.nanoTime() - startTime;
+    long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+    return new double[]{allocated / (double) OPERATIONS, elapsed / (double) OPERATIONS};
+  }
+
+  private void runCodecPerformanceTest(int valueSize) throws IOException {
+    byte[] value = new byte[valueSize];
+    new Random(valueSize).nextBytes(value);
+    ByteSlice key = new ByteSlice("some key".getBytes());
+
+    double[] streams = measure(() -> {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      LogFormatter.write(out, key.toStream(), new ByteArrayInputStream(value), LogFormatter.LEGACY_VERSION);
+      LogFormatter.readLogEntry(new ByteArrayInputStream(out.toByteArray()));
+    });
+
+    RecordCodec codec = RecordCodec.get();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(RecordCodec.encodedLength(key, valueSize));
+    ByteBuffer valueBuffer = ByteBuffer.wrap(value);
+
+    double[] codecs = measure(() -> {
+      buffer.clear();
+      codec.encode(buffer, key, valueBuffer, LogFormatter.CURRENT_VERSION, ChecksumType.CRC32);
+      buffer.flip();
+      codec.decode(buffer, LogFormatter.CURRENT_VERSION, ChecksumType.CRC32).value();
+    });
+
+    System.out.printf("Encode and decode of %d byte values ----------\n", valueSize);
+    System.out.printf("%-20s:%14s%14s\n", "Path", "Bytes/Op", "Ns/Op");
+    System.out.printf("%-20s:%14.1f%14.1f\n", "Streams", streams[0], streams[1]);
+    System.out.printf("%-20s:%14.1f%14.1f\n", "RecordCodec", codecs[0], codecs[1]);
+    System.out.println("---------------------------------------------");
+  }
+
+  @Test
+  public void testSmallValues() throws IOException {
+    runCodecPerformanceTest(16);
+  }
+
+  @Test
+  public void testMediumValues() throws IOException {
+    runCodecPerformanceTest(512);
+  }
+
+  @Test
+  public void testLargeValues() throws IOException {
+    runCodecPerformanceTest(16 * 1024);
+  }
+}
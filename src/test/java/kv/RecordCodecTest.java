@@ -0,0 +1,122 @@
+package kv;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class RecordCodecTest {
+
+  private static final ByteSlice KEY = new ByteSlice("key".getBytes());
+
+  private static String string(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return new String(bytes);
+  }
+
+  @Test
+  public void testMatchesStreamEncoding() throws IOException {
+    for (int version : new int[]{LogFormatter.LEGACY_VERSION, LogFormatter.CURRENT_VERSION}) {
+      for (ChecksumType checksum : ChecksumType.values()) {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        LogFormatter.write(expected, KEY.toStream(), new ByteArrayInputStream("value".getBytes()), version, checksum);
+
+        ByteBuffer out = ByteBuffer.allocateDirect(64);
+        RecordCodec.get().encode(out, KEY, ByteBuffer.wrap("value".getBytes()), version, checksum);
+        out.flip();
+
+        byte[] encoded = new byte[out.remaining()];
+        out.get(encoded);
+
+        assertArrayEquals(expected.toByteArray(), encoded);
+      }
+    }
+  }
+
+  @Test
+  public void testHeaderMatchesEncoding() {
+    RecordCodec codec = RecordCodec.get();
+    ByteBuffer value = ByteBuffer.wrap("value".getBytes());
+
+    ByteBuffer expected = ByteBuffer.allocate(64);
+    codec.encode(expected, KEY, value, LogFormatter.CURRENT_VERSION, ChecksumType.CRC32);
+
+    ByteBuffer header = codec.encodeHeader(KEY, value, LogFormatter.CURRENT_VERSION, ChecksumType.CRC32);
+
+    for (int i = 0; i < LogEntry.STATIC_HEADER_SIZE; i++) {
+      assertEquals(expected.get(i), header.get(i));
+    }
+
+    assertEquals(0, value.position());
+  }
+
+  @Test
+  public void testDecodesViewsInPlace() throws IOException {
+    RecordCodec codec = RecordCodec.get();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(128);
+    codec.encode(buffer, KEY, ByteBuffer.wrap("first".getBytes()), LogFormatter.CURRENT_VERSION, ChecksumType.CRC32);
+    int second = buffer.position();
+    codec.encode(buffer, KEY, null, LogFormatter.CURRENT_VERSION, ChecksumType.CRC32);
+    buffer.flip();
+
+    RecordCodec.Record record = codec.decode(buffer, LogFormatter.CURRENT_VERSION, ChecksumType.CRC32);
+    assertFalse(record.isTombstone());
+    assertEquals("key", string(record.key()));
+    assertEquals("first", string(record.value()));
+    assertEquals(second, buffer.position());
+
+    record = codec.decode(buffer, second, buffer.limit(), LogFormatter.CURRENT_VERSION, ChecksumType.CRC32);
+    assertTrue(record.isTombstone());
+    assertEquals(0, record.getValueLength());
+    // decoding at an index leaves the buffer alone
+    assertEquals(second, buffer.position());
+  }
+
+  @Test
+  public void testChecksumsDiffer() throws IOException {
+    RecordCodec codec = RecordCodec.get();
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    codec.encode(buffer, KEY, ByteBuffer.wrap("value".getBytes()), LogFormatter.CURRENT_VERSION, ChecksumType.CRC32C);
+    buffer.flip();
+
+    RecordCodec.Record record = codec.decode(buffer.duplicate(), LogFormatter.CURRENT_VERSION, ChecksumType.CRC32C);
+    assertEquals("value", string(record.value()));
+
+    try {
+      codec.decode(buffer, LogFormatter.CURRENT_VERSION, ChecksumType.CRC32);
+      fail("Expected a crc mismatch");
+
+    } catch (LogFormatter.CrcMismatchException e) {
+      assertEquals(0, buffer.position());
+    }
+  }
+
+  @Test
+  public void testDetectsCorruption() throws IOException {
+    RecordCodec codec = RecordCodec.get();
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    codec.encode(buffer, KEY, ByteBuffer.wrap("value".getBytes()), LogFormatter.CURRENT_VERSION, ChecksumType.CRC32);
+    buffer.flip();
+    buffer.put(buffer.limit() - 1, (byte) 0);
+
+    try {
+      codec.decode(buffer, LogFormatter.CURRENT_VERSION, ChecksumType.CRC32);
+      fail("Expected a crc mismatch");
+
+    } catch (LogFormatter.CrcMismatchException e) {
+      assertEquals(0, buffer.position());
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package kv;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(JUnit4.class)
+public class SegmentScannerTest {
+
+  private Path segmentPath;
+
+  @Before
+  public void setUp() throws IOException {
+    segmentPath = Files.createTempFile("segment", ".bin");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(segmentPath);
+  }
+
+  private static void writeEntry(ByteArrayOutputStream out, String key, String value) throws IOException {
+    writeEntry(out, key, value, LogFormatter.LEGACY_VERSION);
+  }
+
+  private static void writeEntry(ByteArrayOutputStream out, String key, String value, int version) throws IOException {
+    LogFormatter.write(out,
+        new ByteArrayInputStream(key.getBytes()),
+        value == null ? null : new ByteArrayInputStream(value.getBytes()),
+        version);
+  }
+
+  private List<String> scan(boolean verifyChecksums) throws IOException {
+    return scan(verifyChecksums, false);
+  }
+
+  private List<String> scan(boolean verifyChecksums, boolean truncateInvalidTail) throws IOException {
+    return scan(verifyChecksums, truncateInvalidTail, null);
+  }
+
+  private List<String> scan(
+      boolean verifyChecksums, boolean truncateInvalidTail,
+      CompressionCodec blockCodec) throws IOException {
+
+    List<String> scanned = new ArrayList<>();
+
+    try (SegmentScanner scanner = new SegmentScanner(segmentPath, verifyChecksums, truncateInvalidTail)) {
+      scanner.scan((key, offset, length, tombstone) ->
+          scanned.add(String.format("%s@%d+%d%s",
+              new String(key.copyData()), offset, length, tombstone ? "!" : "")), blockCodec);
+    }
+
+    return scanned;
+  }
+
+  private List<String> writeBlocks(String... keysAndValues) throws IOException {
+    Files.delete(segmentPath);
+
+    List<String> written = new ArrayList<>();
+    Compression compression = new Compression(new DeflateCodec(), 0);
+
+    try (BlockSegmentWriter writer = new BlockSegmentWriter(segmentPath, 1, SegmentHeader.CURRENT, compression, 64)) {
+      for (int i = 0; i < keysAndValues.length; i += 2) {
+        String value = keysAndValues[i + 1];
+        KeyDirectory.Location location = writer.write(new ByteSlice(keysAndValues[i].getBytes()),
+            value == null ? null : new ByteArrayInputStream(value.getBytes()));
+
+        written.add(String.format("%s@%d+%d%s",
+            keysAndValues[i], location.getOffset(), location.getLength(), value == null ? "!" : ""));
+      }
+
+      writer.force();
+    }
+
+    return written;
+  }
+
+  private byte[] currentVersionSegment(String... keysAndValues) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SegmentHeader.CURRENT.write(out);
+
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      writeEntry(out, keysAndValues[i], keysAndValues[i + 1], LogFormatter.CURRENT_VERSION);
+    }
+
+    return out.toByteArray();
+  }
+
+  private static void writeBatch(ByteArrayOutputStream out, String... keysAndValues) throws IOException {
+    List<byte[]> entries = new ArrayList<>();
+
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      ByteArrayOutputStream entry = new ByteArrayOutputStream();
+      writeEntry(entry, keysAndValues[i], keysAndValues[i + 1], LogFormatter.CURRENT_VERSION);
+      entries.add(entry.toByteArray());
+    }
+
+    LogFormatter.writeBatch(out, entries);
+  }
+
+  @Test
+  public void testScansHeadersAndKeys() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeEntry(out, "a", "first");
+    writeEntry(out, "bb", null);
+    writeEntry(out, "a", "second value");
+    Files.write(segmentPath, out.toByteArray());
+
+    List<String> expected = Arrays.asList("a@0+23", "bb@23+19!", "a@42+30");
+
+    assertEquals(expected, scan(true));
+    assertEquals(expected, scan(false));
+  }
+
+  @Test
+  public void testSkipsCorruptEntries() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    writeEntry(out, "a", "first");
+    writeEntry(out, "b", "second");
+    writeEntry(out, "c", "third");
+
+    byte[] bytes = out.toByteArray();
+    // corrupt the value of "b", and tear off the end of "c"
+    bytes[23 + LogEntry.STATIC_HEADER_SIZE + 1] ^= 1;
+    Files.write(segmentPath, Arrays.copyOf(bytes, bytes.length - 1));
+
+    assertEquals(Arrays.asList("a@0+23"), scan(true));
+  }
+
+  @Test
+  public void testResyncsAtSyncMarker() throws IOException {
+    byte[] bytes = currentVersionSegment("a", "first", "b", "second", "c", "third");
+    // corrupt the value of "b", the scan picks up again at the marker of "c"
+    bytes[SegmentHeader.SIZE + 23 + LogEntry.STATIC_HEADER_SIZE + 1] ^= 1;
+    Files.write(segmentPath, bytes);
+
+    try (SegmentScanner scanner = new SegmentScanner(segmentPath, true, false)) {
+      List<String> scanned = new ArrayList<>();
+      scanner.scan((key, offset, length, tombstone) -> scanned.add(new String(key.copyData())));
+
+      assertEquals(Arrays.asList("a", "c"), scanned);
+      assertEquals(1, scanner.getSkippedRegions());
+      assertEquals(24, scanner.getSkippedBytes());
+    }
+  }
+
+  @Test
+  public void testTruncatesInvalidTail() throws IOException {
+    byte[] bytes = currentVersionSegment("a", "first", "b", "second");
+    Files.write(segmentPath, Arrays.copyOf(bytes, bytes.length - 3));
+
+    assertEquals(Arrays.asList("a@12+23"), scan(true, true));
+    assertEquals(SegmentHeader.SIZE + 23, Files.size(segmentPath));
+  }
+
+  @Test
+  public void testScansBatchedEntries() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(currentVersionSegment("a", "first"));
+    writeBatch(out, "b", "second", "c", null);
+    Files.write(segmentPath, out.toByteArray());
+
+    // the batch header takes 17 bytes before the first batched entry
+    List<String> expected = Arrays.asList("a@12+23", "b@52+24", "c@76+18!");
+
+    assertEquals(expected, scan(true));
+    assertEquals(expected, scan(false));
+  }
+
+  @Test
+  public void testDropsTornBatchWhole() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(currentVersionSegment("a", "first"));
+    writeBatch(out, "b", "second", "c", "third");
+    byte[] bytes = out.toByteArray();
+    Files.write(segmentPath, Arrays.copyOf(bytes, bytes.length - 3));
+
+    assertEquals(Arrays.asList("a@12+23"), scan(true, true));
+    assertEquals(SegmentHeader.SIZE + 23, Files.size(segmentPath));
+  }
+
+  @Test
+  public void testSkipsCorruptBatchWhole() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(currentVersionSegment("a", "first"));
+    writeBatch(out, "b", "second", "c", "third");
+    writeEntry(out, "d", "fourth", LogFormatter.CURRENT_VERSION);
+    byte[] bytes = out.toByteArray();
+    // corrupt the value of "c", which is valid on its own but not resynced to
+    bytes[76 + LogEntry.STATIC_HEADER_SIZE + 1] ^= 1;
+    Files.write(segmentPath, bytes);
+
+    List<String> keys = new ArrayList<>();
+
+    for (String scanned : scan(true)) {
+      keys.add(scanned.substring(0, 1));
+    }
+
+    assertEquals(Arrays.asList("a", "d"), keys);
+  }
+
+  @Test
+  public void testScansBlocks() throws IOException {
+    List<String> written = writeBlocks(
+        "a", "value a", "b", "value b", "c", null, "d", "value d", "e", "value e");
+
+    assertEquals(Arrays.asList("a@0+25", "b@25+25", "c@50+18!", "d@68+25", "e@93+25"), written);
+    assertEquals(written, scan(true, false, new DeflateCodec()));
+  }
+
+  @Test
+  public void testSkipsCorruptBlock() throws IOException {
+    writeBlocks("a", "value a", "b", "value b", "c", "value c", "d", "value d");
+
+    long position;
+
+    try (FileChannel channel = FileChannel.open(segmentPath)) {
+      position = BlockIndex.read(channel, SegmentHeader.read(channel)).getPosition(1);
+    }
+
+    byte[] bytes = Files.readAllBytes(segmentPath);
+    bytes[(int) position + 1] ^= 1;
+    Files.write(segmentPath, bytes);
+
+    List<String> keys = new ArrayList<>();
+
+    for (String scanned : scan(true, false, new DeflateCodec())) {
+      keys.add(scanned.substring(0, 1));
+    }
+
+    assertEquals(Arrays.asList("a", "b"), keys);
+  }
+}
@@ -0,0 +1,191 @@
+package kv;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class ShardedDatabaseTest {
+
+  private String dbPath;
+  private ShardedDatabase database;
+
+  @Before
+  public void setUp() throws IOException {
+    dbPath = "./" + UUID.randomUUID().toString();
+    database = new ShardedDatabase(dbPath, 256, 4);
+    database.start();
+  }
+
+  @After
+  public void tearDown() throws IOException, InterruptedException {
+    database.stop();
+    FileUtils.deleteDirectory(new File(dbPath));
+  }
+
+  private void restart() throws IOException, InterruptedException {
+    database.stop();
+    database = new ShardedDatabase(dbPath, 256, 4);
+    database.start();
+  }
+
+  private void write(String key, String value) throws IOException {
+    database.write(key(key), new ByteArrayInputStream(value.getBytes()));
+  }
+
+  private String read(String key) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    return database.read(key(key), out) ? new String(out.toByteArray()) : null;
+  }
+
+  private static ByteSlice key(String key) {
+    return new ByteSlice(key.getBytes());
+  }
+
+  @Test
+  public void testSpreadsKeysOverShards() throws IOException, InterruptedException {
+    int[] counts = new int[database.getShardCount()];
+
+    for (int i = 0; i < 100; i++) {
+      write("key" + i, "value" + i);
+      counts[database.shardOf(key("key" + i))]++;
+    }
+
+    database.delete(key("key7"));
+
+    for (int count : counts) {
+      assertTrue(count > 0);
+    }
+
+    restart();
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i == 7 ? null : "value" + i, read("key" + i));
+    }
+  }
+
+  @Test
+  public void testBatchWithinShard() throws IOException {
+    int shard = database.shardOf(key("key0"));
+    WriteBatch batch = new WriteBatch();
+    WriteBatch spanning = new WriteBatch();
+
+    for (int i = 0; i < 50; i++) {
+      if (database.shardOf(key("key" + i)) == shard) {
+        batch.put(key("key" + i), new ByteArrayInputStream(("value" + i).getBytes()));
+      } else {
+        spanning.put(key("key" + i), new ByteArrayInputStream(("value" + i).getBytes()));
+      }
+    }
+
+    database.writeBatch(batch);
+    assertEquals("value0", read("key0"));
+
+    spanning.put(key("key0"), new ByteArrayInputStream("other".getBytes()));
+
+    try {
+      database.writeBatch(spanning);
+      fail("Batch spanning shards was written");
+    } catch (IllegalArgumentException e) {
+      assertEquals("value0", read("key0"));
+    }
+  }
+
+  @Test
+  public void testRejectsDifferentShardCount() throws IOException, InterruptedException {
+    write("key", "value");
+    database.stop();
+
+    database = new ShardedDatabase(dbPath, 256, 2);
+
+    try {
+      database.start();
+      fail("Database started with a different shard count");
+    } catch (IOException e) {
+      database = new ShardedDatabase(dbPath, 256, 4);
+      database.start();
+    }
+
+    assertEquals("value", read("key"));
+    assertNull(read("missing"));
+  }
+
+  @Test
+  public void testShardsShareAsyncExecutor() throws Exception {
+    long threadsBefore = asyncThreads();
+    List<CompletableFuture<Void>> writes = new ArrayList<>();
+
+    for (int i = 0; i < 100; i++) {
+      writes.add(database.writeAsync(key("key" + i), new ByteArrayInputStream(("value" + i).getBytes())));
+    }
+
+    for (CompletableFuture<Void> write : writes) {
+      write.get();
+    }
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals("value" + i, new String(database.readAsync(key("key" + i)).get()));
+    }
+
+    // one pool for all shards, not one per shard
+    assertTrue(asyncThreads() - threadsBefore <= Runtime.getRuntime().availableProcessors());
+  }
+
+  private static long asyncThreads() {
+    return Thread.getAllStackTraces().keySet().stream()
+        .filter(thread -> thread.getName().equals("kv-async"))
+        .count();
+  }
+
+  @Test
+  public void testStopsStartedShardsWhenOneFails() throws IOException, InterruptedException {
+    write("key", "value");
+    database.stop();
+
+    // a file where the last shard's directory should be
+    Path lastShard = Paths.get(dbPath, "shard-3");
+    FileUtils.deleteDirectory(lastShard.toFile());
+    Files.write(lastShard, new byte[]{1});
+
+    database = new ShardedDatabase(dbPath, 256, 4);
+
+    try {
+      database.start();
+      fail("Database started without the directory of a shard");
+    } catch (NotDirectoryException e) {
+      assertEquals(0, e.getSuppressed().length);
+    }
+
+    try {
+      database.getShard(0).write(key("key"), new ByteArrayInputStream("other".getBytes()));
+      fail("Shard started before the failure was left running");
+    } catch (IOException e) {
+      Files.delete(lastShard);
+      database = new ShardedDatabase(dbPath, 256, 4);
+      database.start();
+    }
+
+    assertEquals("value", read("key"));
+  }
+}
@@ -0,0 +1,128 @@
+package kv;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class WriteSequencerTest {
+
+  private static EncodedEntry entry(String key) throws IOException {
+    return EncodedEntry.encode(new ByteSlice(key.getBytes()),
+        new ByteArrayInputStream("value".getBytes()), LogFormatter.CURRENT_VERSION, ChecksumType.CRC32, null);
+  }
+
+  @Test
+  public void testQueuedEntriesShareABatch() throws Exception {
+    CountDownLatch firstFlushStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstFlush = new CountDownLatch(1);
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    List<Durability> batchDurabilities = Collections.synchronizedList(new ArrayList<>());
+
+    WriteSequencer sequencer = new WriteSequencer((entries, durability) -> {
+      if (batchSizes.isEmpty()) {
+        firstFlushStarted.countDown();
+
+        try {
+          releaseFirstFlush.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+
+      batchSizes.add(entries.size());
+      batchDurabilities.add(durability);
+    }, 16);
+
+    sequencer.start();
+
+    CompletableFuture<Void> first = sequencer.submit(entry("first"), Durability.NONE);
+    firstFlushStarted.await();
+
+    List<CompletableFuture<Void>> queued = new ArrayList<>();
+
+    for (int i = 0; i < 4; i++) {
+      queued.add(sequencer.submit(entry("queued" + i), i == 0 ? Durability.SYNC : Durability.PERIODIC));
+    }
+
+    assertFalse(first.isDone());
+    releaseFirstFlush.countDown();
+
+    first.get();
+
+    for (CompletableFuture<Void> future : queued) {
+      future.get();
+    }
+
+    sequencer.stop();
+
+    assertEquals(2, sequencer.getBatches());
+    assertEquals(5, sequencer.getEntries());
+    assertEquals(Arrays.asList(1, 4), batchSizes);
+    assertEquals(Arrays.asList(Durability.NONE, Durability.SYNC), batchDurabilities);
+  }
+
+  @Test
+  public void testFailedFlushFailsEveryFuture() throws IOException, InterruptedException {
+    WriteSequencer sequencer = new WriteSequencer((entries, durability) -> {
+      throw new IOException("disk full");
+    }, 16);
+
+    sequencer.start();
+
+    try {
+      sequencer.commit(entry("key"), Durability.SYNC);
+      fail("Expected the commit to fail");
+
+    } catch (IOException e) {
+      assertTrue(e.getCause().getMessage().contains("disk full"));
+    }
+
+    sequencer.stop();
+  }
+
+  @Test
+  public void testStopFlushesQueuedEntries() throws Exception {
+    List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+    WriteSequencer sequencer = new WriteSequencer((entries, durability) -> batchSizes.add(entries.size()), 16);
+
+    List<CompletableFuture<Void>> queued = new ArrayList<>();
+
+    // queued before the writer starts, so all of them are waiting when it stops
+    for (int i = 0; i < 8; i++) {
+      queued.add(sequencer.submit(entry("key" + i), Durability.NONE));
+    }
+
+    sequencer.start();
+    sequencer.stop();
+
+    for (CompletableFuture<Void> future : queued) {
+      future.get();
+    }
+
+    assertEquals(8, sequencer.getEntries());
+
+    try {
+      sequencer.submit(entry("late"), Durability.NONE).get();
+      fail("Entry submitted after stop was accepted");
+
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+}